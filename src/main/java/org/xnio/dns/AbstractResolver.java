@@ -31,6 +31,7 @@ import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import org.xnio.AbstractConvertingIoFuture;
+import org.xnio.AbstractIoFuture;
 import org.xnio.IoFuture;
 import org.xnio.dns.record.TxtRecord;
 import org.xnio.dns.record.PtrRecord;
@@ -39,9 +40,19 @@ import org.xnio.dns.record.AaaaRecord;
 
 /**
  * An abstract convenience base class for resolvers which implements the majority of the resolver methods.
+ * <p>
+ * The {@link #resolveAllInet(Domain)} and {@link #resolveInet(Domain)} methods send an A and an AAAA query at the same
+ * time and order the addresses found by RFC 6724 destination address selection against the local interfaces;
+ * {@code resolveInet} returns as soon as the preferred family has an address.
+ * <p>
+ * The address, text and reverse lookup methods take their results from the records of a single answer.  They do not
+ * follow aliases themselves; a resolver whose answers may end in an unresolved CNAME or DNAME should be wrapped in a
+ * {@link ChasingResolver}.
  */
 public abstract class AbstractResolver implements Resolver {
 
+    static final AddressSorter addressSorter = new AddressSorter();
+
     /** {@inheritDoc} */
     public abstract IoFuture<Answer> resolve(Domain name, RRClass rrClass, RRType rrType, Set<ResolverFlag> flags);
 
@@ -60,7 +71,7 @@ public abstract class AbstractResolver implements Resolver {
         if (name == null) {
             throw new NullPointerException("name is null");
         }
-        return new FutureInetAddressList(resolve(name, RRClass.IN, RRType.ANY));
+        return new FutureInetAddressList().start(resolve(name, RRClass.IN, RRType.A), resolve(name, RRClass.IN, RRType.AAAA));
     }
 
     /** {@inheritDoc} */
@@ -68,7 +79,7 @@ public abstract class AbstractResolver implements Resolver {
         if (name == null) {
             throw new NullPointerException("name is null");
         }
-        return new FutureInetAddress(resolve(name, RRClass.IN, RRType.ANY));
+        return new FutureInetAddress().start(resolve(name, RRClass.IN, RRType.A), resolve(name, RRClass.IN, RRType.AAAA));
     }
 
     /** {@inheritDoc} */
@@ -163,54 +174,140 @@ public abstract class AbstractResolver implements Resolver {
         }
     }
 
-    private static final class FutureInetAddressList extends AbstractConvertingIoFuture<List<InetAddress>, Answer> {
-
-        protected FutureInetAddressList(final IoFuture<? extends Answer> delegate) {
-            super(delegate);
+    /**
+     * The merged result of an A and an AAAA query which are sent at the same time.  A family whose query fails or
+     * is answered with an error contributes no addresses; the lookup fails only if both do.
+     */
+    private abstract static class FutureInetAddressPair<T> extends AbstractIoFuture<T> {
+        // guarded by this
+        private List<InetAddress> inet4;
+        private List<InetAddress> inet6;
+        private IOException exception;
+        private int pending = 2;
+
+        /**
+         * Start listening for the answers.  This is not done by the constructor, since the notifiers of a finished
+         * future run at once, and must not see a subclass which is not fully constructed.
+         *
+         * @param futureA the future answer of the A query
+         * @param futureAaaa the future answer of the AAAA query
+         * @return this future
+         */
+        IoFuture<T> start(final IoFuture<? extends Answer> futureA, final IoFuture<? extends Answer> futureAaaa) {
+            addCancelHandler(futureA);
+            addCancelHandler(futureAaaa);
+            futureA.addNotifier(new FamilyNotifier(), Boolean.FALSE);
+            futureAaaa.addNotifier(new FamilyNotifier(), Boolean.TRUE);
+            return this;
         }
 
-        protected List<InetAddress> convert(final Answer arg) throws IOException {
-            final ResultCode resultCode = arg.getResultCode();
-            if (resultCode != ResultCode.NOERROR) {
-                throw new DNSException(resultCode);
+        /**
+         * Handle the answer for one family.
+         *
+         * @param inet6 {@code true} for the AAAA answer
+         * @param addresses the addresses of that family, or {@code null} if its query failed
+         * @param finished {@code true} if both answers are in
+         */
+        abstract void answered(boolean inet6, List<InetAddress> addresses, boolean finished);
+
+        /**
+         * Get every address found, in order of preference, or fail.
+         *
+         * @return the addresses, or {@code null} if the result was set to a failure
+         */
+        List<InetAddress> merge() {
+            final List<InetAddress> merged = new ArrayList<InetAddress>();
+            final IOException exception;
+            synchronized (this) {
+                if (inet4 == null && inet6 == null) {
+                    exception = this.exception;
+                } else {
+                    exception = null;
+                    if (inet4 != null) {
+                        merged.addAll(inet4);
+                    }
+                    if (inet6 != null) {
+                        merged.addAll(inet6);
+                    }
+                }
             }
-            final List<Record> answers = arg.getAnswerRecords();
-            final List<InetAddress> list = new ArrayList<InetAddress>(answers.size());
-            for (Record record : answers) {
-                if (record instanceof ARecord) {
-                    final ARecord aRecord = (ARecord) record;
-                    list.add(aRecord.getAddress());
-                } else if (record instanceof AaaaRecord) {
-                    final AaaaRecord aaaaRecord = (AaaaRecord) record;
-                    list.add(aaaaRecord.getAddress());
+            if (exception != null) {
+                setException(exception);
+                return null;
+            }
+            return addressSorter.sort(merged);
+        }
+
+        private void complete(final boolean inet6, final List<InetAddress> addresses, final IOException exception) {
+            final boolean finished;
+            synchronized (this) {
+                if (inet6) {
+                    this.inet6 = addresses;
+                } else {
+                    this.inet4 = addresses;
+                }
+                if (exception != null && (this.exception == null || ! inet6)) {
+                    // the IPv4 failure is the one to report
+                    this.exception = exception;
                 }
+                finished = -- pending == 0;
             }
-            return list;
+            answered(inet6, addresses, finished);
         }
-    }
 
-    private static final class FutureInetAddress extends AbstractConvertingIoFuture<InetAddress, Answer> {
+        private final class FamilyNotifier extends HandlingNotifier<Answer, Boolean> {
+            public void handleCancelled(final Boolean inet6) {
+                setCancelled();
+            }
+
+            public void handleFailed(final IOException exception, final Boolean inet6) {
+                complete(inet6.booleanValue(), null, exception);
+            }
 
-        protected FutureInetAddress(final IoFuture<? extends Answer> delegate) {
-            super(delegate);
+            public void handleDone(final Answer answer, final Boolean inet6) {
+                final ResultCode resultCode = answer.getResultCode();
+                if (resultCode != ResultCode.NOERROR) {
+                    complete(inet6.booleanValue(), null, new DNSException(resultCode));
+                    return;
+                }
+                final List<Record> answers = answer.getAnswerRecords();
+                final List<InetAddress> list = new ArrayList<InetAddress>(answers.size());
+                for (Record record : answers) {
+                    if (record instanceof ARecord) {
+                        list.add(((ARecord) record).getAddress());
+                    } else if (record instanceof AaaaRecord) {
+                        list.add(((AaaaRecord) record).getAddress());
+                    }
+                }
+                complete(inet6.booleanValue(), list, null);
+            }
         }
+    }
 
-        protected InetAddress convert(final Answer arg) throws IOException {
-            final ResultCode resultCode = arg.getResultCode();
-            if (resultCode != ResultCode.NOERROR) {
-                throw new DNSException(resultCode);
+    private static final class FutureInetAddressList extends FutureInetAddressPair<List<InetAddress>> {
+        void answered(final boolean inet6, final List<InetAddress> addresses, final boolean finished) {
+            if (finished) {
+                final List<InetAddress> merged = merge();
+                if (merged != null) {
+                    setResult(merged);
+                }
             }
-            final List<Record> answers = arg.getAnswerRecords();
-            for (Record record : answers) {
-                if (record instanceof ARecord) {
-                    final ARecord aRecord = (ARecord) record;
-                    return aRecord.getAddress();
-                } else if (record instanceof AaaaRecord) {
-                    final AaaaRecord aaaaRecord = (AaaaRecord) record;
-                    return aaaaRecord.getAddress();
+        }
+    }
+
+    private static final class FutureInetAddress extends FutureInetAddressPair<InetAddress> {
+        private final boolean preferInet6 = addressSorter.prefersInet6();
+
+        void answered(final boolean inet6, final List<InetAddress> addresses, final boolean finished) {
+            if (inet6 == preferInet6 && addresses != null && ! addresses.isEmpty()) {
+                // the preferred family is enough; don't wait for the other
+                setResult(addressSorter.sort(addresses).get(0));
+            } else if (finished) {
+                final List<InetAddress> merged = merge();
+                if (merged != null) {
+                    setResult(merged.isEmpty() ? null : merged.get(0));
                 }
             }
-            return null;
         }
     }
 
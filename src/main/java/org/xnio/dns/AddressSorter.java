@@ -0,0 +1,382 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sorter of destination addresses by the rules of RFC 6724, section 6, against the addresses of the local network
+ * interfaces.  A destination which no local address can reach sorts last; among the rest, a destination whose source
+ * address has the same scope and label is preferred, then a destination of higher precedence in the default policy
+ * table, then one of smaller scope, then one which shares a longer prefix with its source address.  Otherwise the
+ * original order is kept.  The rules which need information the platform does not give (deprecated and home addresses,
+ * native transport) are not applied.
+ * <p>
+ * The local addresses are read again at most every thirty seconds.  Sorted lists are cached by the set of addresses
+ * they hold until the local addresses are next read.
+ */
+final class AddressSorter {
+
+    private static final long REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(30L);
+    private static final int MAX_CACHED = 256;
+
+    private static final int SCOPE_LINK_LOCAL = 2;
+    private static final int SCOPE_SITE_LOCAL = 5;
+    private static final int SCOPE_GLOBAL = 14;
+
+    // prefix, prefix length, precedence, label; longest prefixes first
+    private static final Object[][] POLICY_TABLE = {
+        { "::1", 128, 50, 0 },
+        { "::ffff:0:0", 96, 35, 4 },
+        { "::", 96, 1, 3 },
+        { "2001::", 32, 5, 5 },
+        { "2002::", 16, 30, 2 },
+        { "3ffe::", 16, 1, 12 },
+        { "fec0::", 10, 1, 11 },
+        { "fc00::", 7, 3, 13 },
+        { "::", 0, 40, 1 },
+    };
+
+    private static final byte[][] POLICY_PREFIXES;
+
+    static {
+        POLICY_PREFIXES = new byte[POLICY_TABLE.length][];
+        for (int i = 0; i < POLICY_TABLE.length; i ++) {
+            try {
+                POLICY_PREFIXES[i] = InetAddress.getByName((String) POLICY_TABLE[i][0]).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final List<Source> fixedSources;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Construct a new instance which sorts against the addresses of the local network interfaces.
+     */
+    AddressSorter() {
+        fixedSources = null;
+    }
+
+    /**
+     * Construct a new instance which sorts against the given source addresses rather than those of the local network
+     * interfaces.
+     *
+     * @param sources the source addresses
+     */
+    AddressSorter(final List<Source> sources) {
+        fixedSources = new ArrayList<Source>(sources);
+    }
+
+    /**
+     * Sort a collection of destination addresses.
+     *
+     * @param addresses the addresses
+     * @return the sorted addresses
+     */
+    List<InetAddress> sort(final Collection<? extends InetAddress> addresses) {
+        if (addresses.size() < 2) {
+            return new ArrayList<InetAddress>(addresses);
+        }
+        final Snapshot snapshot = getSnapshot();
+        final Set<InetAddress> key = new HashSet<InetAddress>(addresses);
+        final List<InetAddress> cached = snapshot.sorted.get(key);
+        if (cached != null) {
+            return new ArrayList<InetAddress>(cached);
+        }
+        final List<Destination> destinations = new ArrayList<Destination>(addresses.size());
+        for (InetAddress address : addresses) {
+            destinations.add(new Destination(address, snapshot.chooseSource(address)));
+        }
+        // a stable sort, so that the original order decides ties
+        Collections.sort(destinations, DestinationComparator.INSTANCE);
+        final List<InetAddress> sorted = new ArrayList<InetAddress>(destinations.size());
+        for (Destination destination : destinations) {
+            sorted.add(destination.address);
+        }
+        if (snapshot.sorted.size() >= MAX_CACHED) {
+            final Iterator<Set<InetAddress>> iterator = snapshot.sorted.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        snapshot.sorted.put(key, Collections.unmodifiableList(new ArrayList<InetAddress>(sorted)));
+        return sorted;
+    }
+
+    /**
+     * Determine whether an ordinary global IPv6 destination would sort before an IPv4 one, which is the case when
+     * there is an ordinary global IPv6 address to use as the source.
+     *
+     * @return {@code true} if IPv6 destinations are preferred
+     */
+    boolean prefersInet6() {
+        return getSnapshot().globalInet6;
+    }
+
+    private Snapshot getSnapshot() {
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot != null && System.nanoTime() - snapshot.createdAt < REFRESH_INTERVAL) {
+            return snapshot;
+        }
+        final Snapshot newSnapshot = new Snapshot(fixedSources == null ? readSources() : fixedSources);
+        this.snapshot = newSnapshot;
+        return newSnapshot;
+    }
+
+    private static List<Source> readSources() {
+        final List<Source> sources = new ArrayList<Source>();
+        try {
+            final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                final NetworkInterface networkInterface = interfaces.nextElement();
+                if (networkInterface.isUp()) {
+                    for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                        sources.add(new Source(interfaceAddress.getAddress(), interfaceAddress.getNetworkPrefixLength()));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // no usable sources; every destination sorts by policy alone
+        }
+        return sources;
+    }
+
+    static int scope(final InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        if (address instanceof Inet6Address) {
+            if (bytes[0] == (byte) 0xff) {
+                // multicast scope
+                return bytes[1] & 0x0f;
+            } else if (address.isLoopbackAddress() || address.isLinkLocalAddress()) {
+                return SCOPE_LINK_LOCAL;
+            } else if (address.isSiteLocalAddress()) {
+                return SCOPE_SITE_LOCAL;
+            } else {
+                return SCOPE_GLOBAL;
+            }
+        } else {
+            // private IPv4 addresses are treated as global
+            return address.isLoopbackAddress() || address.isLinkLocalAddress() ? SCOPE_LINK_LOCAL : SCOPE_GLOBAL;
+        }
+    }
+
+    private static int policy(final InetAddress address) {
+        final byte[] bytes = toInet6Bytes(address);
+        for (int i = 0; i < POLICY_TABLE.length; i ++) {
+            if (commonPrefixLength(bytes, POLICY_PREFIXES[i]) >= (Integer) POLICY_TABLE[i][1]) {
+                return i;
+            }
+        }
+        return POLICY_TABLE.length - 1;
+    }
+
+    private static byte[] toInet6Bytes(final InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        if (bytes.length == 16) {
+            return bytes;
+        }
+        // IPv4-mapped
+        final byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        System.arraycopy(bytes, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    static int commonPrefixLength(final byte[] a, final byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i ++) {
+            final int diff = (a[i] ^ b[i]) & 0xff;
+            if (diff != 0) {
+                return (i << 3) + Integer.numberOfLeadingZeros(diff) - 24;
+            }
+        }
+        return length << 3;
+    }
+
+    /**
+     * A local source address, with the length of the prefix of its network.
+     */
+    static final class Source {
+        private final InetAddress address;
+        private final int networkPrefixLength;
+
+        Source(final InetAddress address, final int networkPrefixLength) {
+            this.address = address;
+            this.networkPrefixLength = networkPrefixLength;
+        }
+
+        InetAddress getAddress() {
+            return address;
+        }
+
+        int getNetworkPrefixLength() {
+            return networkPrefixLength;
+        }
+    }
+
+    private static final class Snapshot {
+        final long createdAt = System.nanoTime();
+        final List<Source> sources;
+        final boolean globalInet6;
+        final ConcurrentMap<Set<InetAddress>, List<InetAddress>> sorted = new ConcurrentHashMap<Set<InetAddress>, List<InetAddress>>();
+
+        Snapshot(final List<Source> sources) {
+            this.sources = sources;
+            boolean globalInet6 = false;
+            for (Source source : sources) {
+                final InetAddress address = source.getAddress();
+                // a unique local or transition address is no match for an ordinary global destination
+                if (address instanceof Inet6Address && scope(address) == SCOPE_GLOBAL && policy(address) == POLICY_TABLE.length - 1) {
+                    globalInet6 = true;
+                }
+            }
+            this.globalInet6 = globalInet6;
+        }
+
+        /**
+         * Choose the source address for a destination among the local addresses of the same family: the same address
+         * if it is local, otherwise one of appropriate scope, then one with the same label, then the one which shares
+         * the longest prefix with it.
+         */
+        Source chooseSource(final InetAddress destination) {
+            final boolean inet6 = destination instanceof Inet6Address;
+            final int destinationScope = scope(destination);
+            final int destinationLabel = (Integer) POLICY_TABLE[policy(destination)][3];
+            final byte[] destinationBytes = destination.getAddress();
+            Source best = null;
+            int bestScope = 0;
+            boolean bestLabel = false;
+            int bestPrefix = -1;
+            for (Source source : sources) {
+                final InetAddress address = source.getAddress();
+                if (address instanceof Inet6Address != inet6 || address.isLoopbackAddress() != destination.isLoopbackAddress()) {
+                    continue;
+                }
+                if (address.equals(destination)) {
+                    return source;
+                }
+                final int scope = scope(address);
+                final boolean label = (Integer) POLICY_TABLE[policy(address)][3] == destinationLabel;
+                final int prefix = commonPrefixLength(address.getAddress(), destinationBytes);
+                if (best == null || isBetterScope(scope, bestScope, destinationScope) || scope == bestScope && (label && ! bestLabel || label == bestLabel && prefix > bestPrefix)) {
+                    best = source;
+                    bestScope = scope;
+                    bestLabel = label;
+                    bestPrefix = prefix;
+                }
+            }
+            return best;
+        }
+
+        private static boolean isBetterScope(final int scope, final int bestScope, final int destinationScope) {
+            if (bestScope < destinationScope) {
+                return scope > bestScope;
+            } else {
+                return scope >= destinationScope && scope < bestScope;
+            }
+        }
+    }
+
+    private static final class Destination {
+        final InetAddress address;
+        final boolean usable;
+        final boolean matchingScope;
+        final boolean matchingLabel;
+        final int precedence;
+        final int scope;
+        final int prefixLength;
+
+        Destination(final InetAddress address, final Source source) {
+            this.address = address;
+            final int policy = policy(address);
+            precedence = (Integer) POLICY_TABLE[policy][2];
+            scope = scope(address);
+            usable = source != null;
+            if (usable) {
+                final InetAddress sourceAddress = source.getAddress();
+                matchingScope = scope(sourceAddress) == scope;
+                matchingLabel = (Integer) POLICY_TABLE[policy(sourceAddress)][3] == (Integer) POLICY_TABLE[policy][3];
+                prefixLength = Math.min(commonPrefixLength(sourceAddress.getAddress(), address.getAddress()), source.getNetworkPrefixLength());
+            } else {
+                matchingScope = false;
+                matchingLabel = false;
+                prefixLength = 0;
+            }
+        }
+    }
+
+    private static final class DestinationComparator implements Comparator<Destination> {
+        static final DestinationComparator INSTANCE = new DestinationComparator();
+
+        public int compare(final Destination a, final Destination b) {
+            // rule 1: avoid unusable destinations
+            if (a.usable != b.usable) {
+                return a.usable ? -1 : 1;
+            }
+            // rule 2: prefer matching scope
+            if (a.matchingScope != b.matchingScope) {
+                return a.matchingScope ? -1 : 1;
+            }
+            // rule 5: prefer matching label
+            if (a.matchingLabel != b.matchingLabel) {
+                return a.matchingLabel ? -1 : 1;
+            }
+            // rule 6: prefer higher precedence
+            if (a.precedence != b.precedence) {
+                return a.precedence > b.precedence ? -1 : 1;
+            }
+            // rule 8: prefer smaller scope
+            if (a.scope != b.scope) {
+                return a.scope < b.scope ? -1 : 1;
+            }
+            // rule 9: use longest matching prefix, within one family
+            if (a.address instanceof Inet6Address == b.address instanceof Inet6Address && a.prefixLength != b.prefixLength) {
+                return a.prefixLength > b.prefixLength ? -1 : 1;
+            }
+            // rule 10: otherwise, leave the order unchanged
+            return 0;
+        }
+    }
+}
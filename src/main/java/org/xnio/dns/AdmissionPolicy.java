@@ -0,0 +1,49 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+/**
+ * A policy which decides whether a new cache entry is worth keeping at the expense of an existing one.  A policy may
+ * be given to a {@link CachingResolver} when it is constructed.  Its methods are called by every thread which uses the
+ * cache, so they must be thread-safe, and {@link #record(QueryKey)} is called on every miss, so it must be cheap.
+ * Hits are recorded only once for each pass of the cache's clock over the entry, so that asking a hot question does
+ * not write to the policy's shared state.
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Record that a question was asked.
+     *
+     * @param key the question
+     */
+    void record(QueryKey key);
+
+    /**
+     * Decide whether a new entry should replace the entry chosen for eviction.
+     *
+     * @param candidate the question of the new entry
+     * @param victim the question of the entry chosen for eviction
+     * @return {@code true} to evict the victim and keep the candidate, {@code false} to evict the candidate
+     */
+    boolean admit(QueryKey candidate, QueryKey victim);
+}
@@ -0,0 +1,196 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.xnio.dns.record.CNameRecord;
+import org.xnio.dns.record.DNameRecord;
+
+/**
+ * The chain of aliases followed while resolving one question.  Each answer is searched for the records asked for,
+ * following any CNAME records, and DNAME records which cover the name, that it holds; if the chain leaves the answer
+ * without reaching the records, the name at its end must be asked about next.  A chain which returns to a name it has
+ * already visited, or which grows longer than its limit, is broken.
+ * <p>
+ * Instances are not thread-safe; the answers of one resolution are expected to arrive one at a time.
+ */
+final class AliasChain {
+
+    private final Domain name;
+    private final RRClass rrClass;
+    private final RRType rrType;
+    private final int maxLength;
+    // the aliases taken from earlier answers
+    private final List<Record> aliases = new ArrayList<Record>();
+    // CNAME records synthesized from DNAME records of the last answer, which do not appear in it
+    private final List<Record> synthesized = new ArrayList<Record>();
+    private final Set<Domain> seen = new HashSet<Domain>();
+    private Domain target;
+    private int length;
+    private boolean broken;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param name the name asked about
+     * @param rrClass the class asked about
+     * @param rrType the type asked about
+     * @param maxLength the most aliases to follow
+     */
+    AliasChain(final Domain name, final RRClass rrClass, final RRType rrType, final int maxLength) {
+        this.name = name;
+        this.rrClass = rrClass;
+        this.rrType = rrType;
+        this.maxLength = maxLength;
+        target = name;
+        seen.add(name);
+    }
+
+    /**
+     * Get the name asked about.
+     *
+     * @return the name
+     */
+    Domain getName() {
+        return name;
+    }
+
+    /**
+     * Get the name which is being resolved: the name asked about, or the end of the chain so far.
+     *
+     * @return the name
+     */
+    Domain getTarget() {
+        return target;
+    }
+
+    /**
+     * Determine whether the chain was found to loop or to be too long.
+     *
+     * @return {@code true} if the chain is broken
+     */
+    boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Follow the aliases in an answer about the current target.
+     *
+     * @param answer the answer
+     * @return {@code true} if the chain leaves the answer without reaching the records asked for, so the new target
+     *      must be asked about; {@code false} if the answer is complete, or if the chain is broken
+     */
+    boolean follow(final Answer answer) {
+        synthesized.clear();
+        if (answer.getResultCode() != ResultCode.NOERROR || rrType == RRType.CNAME || rrType == RRType.DNAME || rrType == RRType.ANY) {
+            return false;
+        }
+        final List<Record> records = answer.getAnswerRecords();
+        final List<Record> followed = new ArrayList<Record>();
+        final List<Record> newSynthesized = new ArrayList<Record>();
+        Domain current = target;
+        for (;;) {
+            Record alias = null;
+            Record dname = null;
+            Domain next = null;
+            for (Record record : records) {
+                final Domain owner = record.getName();
+                if (owner.equals(current)) {
+                    if (record.getRrType() == rrType) {
+                        // the records are there
+                        synthesized.addAll(newSynthesized);
+                        return false;
+                    } else if (record instanceof CNameRecord) {
+                        alias = record;
+                        dname = null;
+                        next = ((CNameRecord) record).getCname();
+                    }
+                } else if (alias == null && record instanceof DNameRecord && current.isSubdomainOf(owner)) {
+                    dname = record;
+                    try {
+                        next = current.replaceSuffix(owner, ((DNameRecord) record).getTarget());
+                    } catch (IllegalArgumentException e) {
+                        // the new name is too long
+                        broken = true;
+                        return false;
+                    }
+                    alias = new CNameRecord(current, record.getRrClass(), record.getTtlSpec(), next);
+                }
+            }
+            if (alias == null) {
+                break;
+            }
+            if (! seen.add(next) || ++ length > maxLength) {
+                broken = true;
+                return false;
+            }
+            if (dname != null && ! followed.contains(dname)) {
+                // keep the DNAME with the CNAME synthesized from it
+                followed.add(dname);
+            }
+            followed.add(alias);
+            if (! records.contains(alias)) {
+                newSynthesized.add(alias);
+            }
+            current = next;
+        }
+        if (followed.isEmpty()) {
+            return false;
+        }
+        aliases.addAll(followed);
+        target = current;
+        return true;
+    }
+
+    /**
+     * Build the answer to the original question from the final answer, with the aliases followed before it.
+     *
+     * @param answer the final answer
+     * @return the merged answer
+     */
+    Answer merge(final Answer answer) {
+        if (aliases.isEmpty() && synthesized.isEmpty()) {
+            return answer;
+        }
+        final Answer.Builder builder = Answer.builder().setHeaderInfo(name, rrClass, rrType, answer.getResultCode());
+        for (Record record : aliases) {
+            builder.addAnswerRecord(record);
+        }
+        for (Record record : synthesized) {
+            builder.addAnswerRecord(record);
+        }
+        for (Record record : answer.getAnswerRecords()) {
+            builder.addAnswerRecord(record);
+        }
+        for (Record record : answer.getAuthorityRecords()) {
+            builder.addAuthorityRecord(record);
+        }
+        for (Record record : answer.getAdditionalRecords()) {
+            builder.addAdditionalRecord(record);
+        }
+        return builder.create();
+    }
+}
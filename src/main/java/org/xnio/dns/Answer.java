@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.Set;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import org.xnio.dns.record.OptRecord;
 
 /**
  * A query answer.
@@ -40,6 +41,7 @@ public final class Answer {
     private final List<Record> authorityRecords;
     private final List<Record> additionalRecords;
     private final Set<Flag> flags;
+    private final OptRecord optRecord;
 
     private static List<Record> emptyList() {
         return Collections.emptyList();
@@ -49,7 +51,7 @@ public final class Answer {
         return Collections.emptySet();
     }
 
-    private Answer(final Domain queryDomain, final RRClass queryRRClass, final RRType queryRRType, final ResultCode resultCode, final List<Record> answerRecords, final List<Record> authorityRecords, final List<Record> additionalRecords, final Set<Flag> flags) {
+    private Answer(final Domain queryDomain, final RRClass queryRRClass, final RRType queryRRType, final ResultCode resultCode, final List<Record> answerRecords, final List<Record> authorityRecords, final List<Record> additionalRecords, final Set<Flag> flags, final OptRecord optRecord) {
         this.queryDomain = queryDomain;
         this.queryRRClass = queryRRClass;
         this.queryRRType = queryRRType;
@@ -58,6 +60,7 @@ public final class Answer {
         this.authorityRecords = authorityRecords;
         this.additionalRecords = additionalRecords;
         this.flags = flags;
+        this.optRecord = optRecord;
     }
 
     public static Builder builder() {
@@ -73,6 +76,7 @@ public final class Answer {
         private List<Record> authorityRecords;
         private List<Record> additionalRecords;
         private Set<Flag> flags;
+        private OptRecord optRecord;
 
         public Builder setAnswerRecords(List<Record> list) {
             answerRecords = copy(list);
@@ -171,6 +175,11 @@ public final class Answer {
             return this;
         }
 
+        public Builder setOptRecord(OptRecord optRecord) {
+            this.optRecord = optRecord;
+            return this;
+        }
+
         public Builder addFlag(Flag flag) {
             if (flags == null) {
                 flags = EnumSet.of(flag);
@@ -189,7 +198,8 @@ public final class Answer {
                     answerRecords == null ? emptyList() : Collections.unmodifiableList(answerRecords),
                     authorityRecords == null ? emptyList() : Collections.unmodifiableList(authorityRecords),
                     additionalRecords == null ? emptyList() : Collections.unmodifiableList(additionalRecords),
-                    flags == null ? emptySet() : Collections.unmodifiableSet(flags)
+                    flags == null ? emptySet() : Collections.unmodifiableSet(flags),
+                    optRecord
             );
         }
     }
@@ -266,6 +276,15 @@ public final class Answer {
         return flags;
     }
 
+    /**
+     * Get the EDNS(0) OPT pseudo-record of the reply, if any.
+     *
+     * @return the OPT record, or {@code null} if the reply had none
+     */
+    public OptRecord getOptRecord() {
+        return optRecord;
+    }
+
     public enum Flag {
         AUTHORATIVE,
         TRUNCATED,
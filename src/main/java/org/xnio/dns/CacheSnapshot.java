@@ -0,0 +1,304 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import org.xnio.IoUtils;
+
+/**
+ * A snapshot of cached answers in a file, used to warm a cache when the process restarts.
+ * <p>
+ * The file holds a header (a magic number and a version) followed by one entry per answer: the length of the
+ * message, the time at which the answer expires, the time at which the message was encoded, and the answer as a
+ * wire-format reply message.  The TTLs in a message count from the time it was encoded, so the absolute expiry time
+ * of every record survives the restart.
+ * <p>
+ * A snapshot is read through a read-only memory mapping.  Opening it only reads the question and expiry time of each
+ * entry, skipping the expired ones; an answer is decoded the first time it is asked for.
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x58444e53;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 8;
+    // message length (4) + expiry time (8) + encoding time (8)
+    private static final int ENTRY_HEADER = 20;
+
+    private final MappedByteBuffer mapping;
+    // guarded by this
+    private final Map<QueryKey, Integer> index;
+
+    private CacheSnapshot(final MappedByteBuffer mapping, final Map<QueryKey, Integer> index) {
+        this.mapping = mapping;
+        this.index = index;
+    }
+
+    /**
+     * Open a snapshot file.
+     *
+     * @param file the snapshot file
+     * @param now the current time in milliseconds
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    static CacheSnapshot open(final File file, final long now) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final MappedByteBuffer mapping;
+        try {
+            final FileChannel channel = raf.getChannel();
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        } finally {
+            IoUtils.safeClose(raf);
+        }
+        if (mapping.remaining() < FILE_HEADER || mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+            throw new IOException("File " + file + " is not a cache snapshot");
+        }
+        final Map<QueryKey, Integer> index = new HashMap<QueryKey, Integer>();
+        final int limit = mapping.limit();
+        int offset = FILE_HEADER;
+        try {
+            while (offset + ENTRY_HEADER <= limit) {
+                final int length = mapping.getInt(offset);
+                if (length < WireFormat.HEADER_LENGTH || length > limit - offset - ENTRY_HEADER) {
+                    // truncated; keep what was read so far
+                    break;
+                }
+                if (mapping.getLong(offset + 4) > now) {
+                    final ByteBuffer message = mapping.duplicate();
+                    message.limit(offset + ENTRY_HEADER + length);
+                    message.position(offset + ENTRY_HEADER);
+                    index.put(WireFormat.readQuestion(message), Integer.valueOf(offset));
+                }
+                offset += ENTRY_HEADER + length;
+            }
+        } catch (BufferUnderflowException e) {
+            // a corrupt entry; keep what was read so far
+        } catch (IllegalArgumentException e) {
+            // likewise
+        }
+        return new CacheSnapshot(mapping, index);
+    }
+
+    /**
+     * Take the answer to a question out of the snapshot.  Each answer is returned at most once.
+     *
+     * @param question the question
+     * @param now the current time in milliseconds
+     * @return the answer, with TTLs counting down to the original expiry times of its records, or {@code null} if the
+     *      snapshot has no unexpired answer to the question
+     */
+    Answer take(final QueryKey question, final long now) {
+        final Integer offset;
+        synchronized (this) {
+            offset = index.remove(question);
+        }
+        if (offset == null) {
+            return null;
+        }
+        final int pos = offset.intValue();
+        if (mapping.getLong(pos + 4) <= now) {
+            return null;
+        }
+        final long encodedAt = mapping.getLong(pos + 12);
+        final ByteBuffer message = mapping.duplicate();
+        message.limit(pos + ENTRY_HEADER + mapping.getInt(pos));
+        message.position(pos + ENTRY_HEADER);
+        final Answer answer;
+        try {
+            answer = WireFormat.readAnswer(message);
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        final Answer.Builder builder = Answer.builder();
+        builder.setHeaderInfo(answer);
+        for (Record record : answer.getAnswerRecords()) {
+            builder.addAnswerRecord(makeAbsolute(record, encodedAt));
+        }
+        for (Record record : answer.getAuthorityRecords()) {
+            builder.addAuthorityRecord(makeAbsolute(record, encodedAt));
+        }
+        for (Record record : answer.getAdditionalRecords()) {
+            builder.addAdditionalRecord(makeAbsolute(record, encodedAt));
+        }
+        for (Answer.Flag flag : answer.getFlags()) {
+            builder.addFlag(flag);
+        }
+        builder.setOptRecord(answer.getOptRecord());
+        return builder.create();
+    }
+
+    private static Record makeAbsolute(final Record record, final long encodedAt) {
+        return record.withTtlSpec(TTLSpec.createVariable(encodedAt + (record.getTtlSpec().getTtl() & 0xffffffffL) * 1000L));
+    }
+
+    /**
+     * Determine whether every answer has been taken out of the snapshot.
+     *
+     * @return {@code true} if the snapshot is exhausted
+     */
+    synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * A writer for a new snapshot file.  The snapshot is written to a temporary file next to the target file, which
+     * replaces the target file when the snapshot is committed, so an interrupted snapshot never corrupts an existing
+     * one.
+     */
+    static final class Writer implements Closeable {
+        private final File file;
+        private final File tempFile;
+        private final DataOutputStream output;
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private boolean committed;
+
+        /**
+         * Construct a new instance.
+         *
+         * @param file the snapshot file
+         * @throws IOException if the temporary file cannot be created
+         */
+        Writer(final File file) throws IOException {
+            this.file = file;
+            tempFile = new File(file.getPath() + ".tmp");
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+        }
+
+        /**
+         * Add an answer.
+         *
+         * @param answer the answer
+         * @param storedAt the time at which the answer was stored, from which its fixed TTLs count
+         * @param expiresAt the time at which the answer expires
+         * @throws IOException if writing fails
+         */
+        void add(final Answer answer, final long storedAt, final long expiresAt) throws IOException {
+            final Answer.Builder builder = Answer.builder();
+            builder.setHeaderInfo(answer);
+            for (Record record : answer.getAnswerRecords()) {
+                builder.addAnswerRecord(makeVariable(record, storedAt));
+            }
+            for (Record record : answer.getAuthorityRecords()) {
+                builder.addAuthorityRecord(makeVariable(record, storedAt));
+            }
+            for (Record record : answer.getAdditionalRecords()) {
+                builder.addAdditionalRecord(makeVariable(record, storedAt));
+            }
+            for (Answer.Flag flag : answer.getFlags()) {
+                builder.addFlag(flag);
+            }
+            builder.setOptRecord(answer.getOptRecord());
+            final Answer variable = builder.create();
+            // the remaining TTLs are computed as the message is encoded
+            final long encodedAt = System.currentTimeMillis();
+            for (;;) {
+                buffer.clear();
+                try {
+                    WireFormat.writeAnswer(buffer, variable);
+                    break;
+                } catch (BufferOverflowException e) {
+                    if (buffer.capacity() == 65535) {
+                        return;
+                    }
+                    buffer = ByteBuffer.allocate(65535);
+                } catch (UnsupportedOperationException e) {
+                    // not every answer can be encoded
+                    return;
+                }
+            }
+            buffer.flip();
+            add(buffer, encodedAt, expiresAt);
+        }
+
+        private static Record makeVariable(final Record record, final long storedAt) {
+            final TTLSpec ttlSpec = record.getTtlSpec();
+            return ttlSpec.isFixed() ? record.withTtlSpec(TTLSpec.createVariable(storedAt + ttlSpec.getTtl() * 1000L)) : record;
+        }
+
+        /**
+         * Add an encoded answer.
+         *
+         * @param message the reply message, whose TTLs count from {@code encodedAt}
+         * @param encodedAt the time at which the message was encoded
+         * @param expiresAt the time at which the answer expires
+         * @throws IOException if writing fails
+         */
+        void add(final ByteBuffer message, final long encodedAt, final long expiresAt) throws IOException {
+            output.writeInt(message.remaining());
+            output.writeLong(expiresAt);
+            output.writeLong(encodedAt);
+            if (message.hasArray()) {
+                output.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+                message.position(message.limit());
+            } else {
+                while (message.hasRemaining()) {
+                    output.write(message.get());
+                }
+            }
+        }
+
+        /**
+         * Finish the snapshot and replace the target file with it.
+         *
+         * @throws IOException if the snapshot cannot be completed
+         */
+        void commit() throws IOException {
+            output.close();
+            if (! tempFile.renameTo(file)) {
+                // some platforms will not rename over an existing file
+                file.delete();
+                if (! tempFile.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tempFile + " to " + file);
+                }
+            }
+            committed = true;
+        }
+
+        /**
+         * Abandon the snapshot if it was not committed.
+         */
+        public void close() {
+            if (! committed) {
+                IoUtils.safeClose(output);
+                tempFile.delete();
+            }
+        }
+    }
+}
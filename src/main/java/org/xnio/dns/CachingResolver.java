@@ -22,24 +22,259 @@
 
 package org.xnio.dns;
 
+import org.xnio.FinishedIoFuture;
 import org.xnio.IoFuture;
 import org.xnio.FutureResult;
-import java.util.Set;
+import org.xnio.OptionMap;
+import org.xnio.dns.record.SoaRecord;
+import org.jboss.logging.Logger;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.IOException;
 
+/**
+ * A resolver which caches the answers of another resolver.  Concurrent queries for the same question share a single
+ * upstream query.
+ * <p>
+ * The cache is a concurrent map, so lookups take no locks.  Recency is tracked with the CLOCK (second chance)
+ * algorithm: a hit only sets a flag on the entry, and only if it is not already set, so hits on a hot entry do not
+ * write to shared memory at all.  When the cache grows beyond its size limit, one thread at a time sweeps a clock hand
+ * over the entries, clearing the flags it finds set and evicting the first entries whose flag is already clear.
+ * <p>
+ * The size of every cached answer is estimated from its records when it is stored, so that the cache can also be
+ * bounded by memory with {@link DnsOptions#CACHE_MAX_BYTES}; a single answer with dozens of TXT records counts for as
+ * much as a hundred address answers.  The limit applies to positive answers; negative answers, which hold little more
+ * than an SOA record, are limited by count alone.  The estimated size of all cached answers is given by
+ * {@link #getCachedBytes()}.
+ * <p>
+ * If {@link DnsOptions#CACHE_FREQUENCY_ADMISSION} is set, the positive cache uses the W-TinyLFU policy, so that a burst
+ * of one-off questions cannot flush the popular answers.  The frequency of every question is estimated by a compact
+ * sketch.  New entries first enter a small window, one percent of the cache, and when the cache is full the oldest
+ * entry of the window is kept only if its question is asked more often than that of the entry the clock would evict.
+ * Another {@link AdmissionPolicy} may be given when the cache is constructed, and then decides in the same place.
+ * <p>
+ * When an answer arrives, the earliest expiry time of its answer records is computed once and stored in the entry,
+ * so checking a hit is a single comparison against the coarse clock of a {@link TimingWheel}.  The same timing wheel
+ * removes each entry from the cache as soon as it expires, or as soon as it is too old to be served stale (see below).
+ * <p>
+ * Negative answers ({@code NXDOMAIN}, or {@code NOERROR} with no answer records) are cached as described in RFC 2308.
+ * They are kept in a separate region with its own size limit, so that a flood of lookups for names which do not exist
+ * cannot push out positive answers.  A negative answer expires after the lesser of the TTL and the MINIMUM field of the
+ * {@link SoaRecord} in its authority section; negative answers without an SOA record are not kept.  Other answers
+ * without answer records are passed to the queries waiting for them but are not kept.
+ * <p>
+ * The time for which an answer is kept can be adjusted.  {@link DnsOptions#CACHE_MIN_TTL} and
+ * {@link DnsOptions#CACHE_MAX_TTL} clamp the TTL of every answer, so that TTLs of zero or one second do not defeat the
+ * cache and very long TTLs do not pin old data; {@link DnsOptions#CACHE_TTL_OVERRIDES} gives other limits for
+ * particular record types or domains.  {@link DnsOptions#CACHE_TTL_JITTER_PERCENT} shortens each TTL by a random
+ * amount, so that a fleet of caches which stored an answer at the same moment do not all ask for it again at the same
+ * moment.  The records of an answer keep the TTLs given by the upstream resolver.
+ * <p>
+ * If {@link DnsOptions#CACHE_PREFETCH_PERCENT} is given, popular answers are refreshed before they expire.  Once an
+ * answer enters the last part of its lifetime, hits on it are counted, and when {@link DnsOptions#CACHE_PREFETCH_HITS}
+ * hits have been seen the question is queued for a background refresh.  The old answer keeps being served until the
+ * new one arrives.  The refresh queue holds at most {@link DnsOptions#CACHE_PREFETCH_QUEUE_SIZE} questions, further
+ * refreshes are dropped, and only a few refreshes are sent upstream at a time, so that prefetching never competes with
+ * real cache misses.
+ * <p>
+ * If {@link DnsOptions#CACHE_STALE_WINDOW} is given, expired answers are kept for that long and served stale, as
+ * described in RFC 8767, when the upstream resolver cannot refresh them.  A query for an expired answer is sent
+ * upstream as usual; if it fails, is answered with {@code SERVFAIL} or {@code REFUSED}, or has no answer after
+ * {@link DnsOptions#CACHE_STALE_CLIENT_TIMEOUT} milliseconds, the stale answer is returned with a TTL of 30 seconds
+ * while the refresh carries on in the background.  After a failed refresh the stale answer is served for 30 seconds
+ * before the upstream resolver is tried again.
+ * <p>
+ * Unless {@link DnsOptions#RRSET_CACHE_SIZE} is zero, the records of every answer from the upstream resolver are also
+ * kept in an RRset cache, keyed by owner name, class and type.  A question which misses the answer cache is
+ * answered from those RRsets if they hold its answer, possibly through a CNAME chain, before the upstream resolver is
+ * asked.
+ * <p>
+ * If {@link DnsOptions#CACHE_OFF_HEAP_SIZE} is given, positive answers are kept in that many bytes of direct memory,
+ * in wire format, rather than on the heap, and are decoded on every hit.  This keeps the heap small and flat however
+ * many answers are cached.  The off-heap cache evicts the oldest answers first, and answers kept there are neither
+ * prefetched nor served stale.  Answers which cannot be encoded, such as those with records of unknown types, are
+ * kept on the heap as usual.
+ * <p>
+ * The cache can be saved to a file with {@link #saveSnapshot(File)} and warmed from one with
+ * {@link #loadSnapshot(File)}, so that a restarted process does not begin with a storm of cache misses.  The positive
+ * answers are saved in wire format together with their absolute expiry times.  Loading a snapshot only maps the file
+ * into memory and indexes its unexpired answers; each answer is decoded and moved into the cache the first time it is
+ * asked for.  If {@link DnsOptions#CACHE_SNAPSHOT_FILE} is given, the cache is warmed from that file when it is
+ * constructed and saved to it every {@link DnsOptions#CACHE_SNAPSHOT_INTERVAL} milliseconds and when the virtual
+ * machine shuts down, until {@link #stopSnapshots()} is called.
+ * <p>
+ * The cache counts its hits, misses and evictions in striped counters, so that counting adds no contention; the
+ * counters are available as an MXBean from {@link #getStatistics()}.
+ */
 public final class CachingResolver extends AbstractResolver implements Resolver {
 
-    private final Map<QueryKey, FutureResult<Answer>> cache;
+    private static final int MAX_PREFETCHES = 4;
+    private static final int STALE_TTL = 30;
+
+    private static final Logger log = Logger.getLogger("org.xnio.dns.cache");
+
+    private final Region positive;
+    private final Region negative;
+    private final RRsetCache rrsets;
+    private final OffHeapAnswerCache offHeap;
+    // null if TTLs are used as given
+    private final TtlPolicy ttlPolicy;
     private final Resolver realResolver;
     private final Executor executor;
+    private final TimingWheel timingWheel;
+    private final int prefetchPercent;
+    private final int prefetchHits;
+    private final int prefetchQueueSize;
+    private final long staleWindow;
+    private final long staleClientTimeout;
+    private final ConcurrentLinkedQueue<Prefetch> prefetchQueue = new ConcurrentLinkedQueue<Prefetch>();
+    private final AtomicInteger prefetchQueueLength = new AtomicInteger();
+    private final AtomicInteger prefetchesInFlight = new AtomicInteger();
+    private volatile CacheSnapshot snapshot;
+    // serializes saves, which all write to the same temporary file
+    private final Object snapshotLock = new Object();
+    // guarded by snapshotLock
+    private File snapshotFile;
+    private TimingWheel.Key snapshotTimerKey;
+    private Thread snapshotHook;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter negativeHits = new StripedCounter();
+    private final StripedCounter inFlightJoins = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter expiredHits = new StripedCounter();
+    private final StripedCounter staleAnswers = new StripedCounter();
+    private final StripedCounter prefetches = new StripedCounter();
+    private final CachingResolverMXBean statistics = new Statistics();
 
     public CachingResolver(final Resolver resolver, final Executor executor, final int cacheSize) {
-        cache = new CacheMap<QueryKey, FutureResult<Answer>>(cacheSize);
+        this(resolver, executor, cacheSize, cacheSize, TimingWheel.getDefault());
+    }
+
+    /**
+     * Construct a new instance.  The negative cache has the same size limit as the positive cache.
+     *
+     * @param resolver the resolver whose answers are cached
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param cacheSize the maximum number of cached answers
+     * @param timingWheel the timing wheel used to expire answers and as the clock
+     */
+    public CachingResolver(final Resolver resolver, final Executor executor, final int cacheSize, final TimingWheel timingWheel) {
+        this(resolver, executor, cacheSize, cacheSize, timingWheel);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param resolver the resolver whose answers are cached
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param cacheSize the maximum number of cached positive answers
+     * @param negativeCacheSize the maximum number of cached negative answers, or 0 to disable negative caching
+     * @param timingWheel the timing wheel used to expire answers and as the clock
+     */
+    public CachingResolver(final Resolver resolver, final Executor executor, final int cacheSize, final int negativeCacheSize, final TimingWheel timingWheel) {
+        this(resolver, executor, cacheSize, 0L, negativeCacheSize, 0, 0L, null, null, 0, 1, 0, 0, 0, timingWheel);
+    }
+
+    /**
+     * Construct a new instance.  The cache sizes are given by {@link DnsOptions#CACHE_SIZE} (1024 by default),
+     * {@link DnsOptions#NEGATIVE_CACHE_SIZE} (the positive cache size by default) and
+     * {@link DnsOptions#RRSET_CACHE_SIZE} (four times the positive cache size by default), positive answers are also
+     * limited to {@link DnsOptions#CACHE_MAX_BYTES} if it is given, and an off-heap cache is
+     * used if {@link DnsOptions#CACHE_OFF_HEAP_SIZE} is given; {@link DnsOptions#CACHE_FREQUENCY_ADMISSION} enables
+     * frequency-based admission; TTLs are adjusted by {@link DnsOptions#CACHE_MIN_TTL},
+     * {@link DnsOptions#CACHE_MAX_TTL}, {@link DnsOptions#CACHE_TTL_OVERRIDES} and
+     * {@link DnsOptions#CACHE_TTL_JITTER_PERCENT}; prefetching is configured by
+     * {@link DnsOptions#CACHE_PREFETCH_PERCENT}, {@link DnsOptions#CACHE_PREFETCH_HITS} and
+     * {@link DnsOptions#CACHE_PREFETCH_QUEUE_SIZE}; serving stale answers is configured by
+     * {@link DnsOptions#CACHE_STALE_WINDOW} and {@link DnsOptions#CACHE_STALE_CLIENT_TIMEOUT}; snapshots are
+     * configured by {@link DnsOptions#CACHE_SNAPSHOT_FILE} and {@link DnsOptions#CACHE_SNAPSHOT_INTERVAL}.
+     *
+     * @param resolver the resolver whose answers are cached
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param optionMap the cache options
+     * @param timingWheel the timing wheel used to expire answers and as the clock
+     */
+    public CachingResolver(final Resolver resolver, final Executor executor, final OptionMap optionMap, final TimingWheel timingWheel) {
+        this(resolver, executor, optionMap, null, timingWheel);
+    }
+
+    /**
+     * Construct a new instance with the given admission policy for positive answers.  The options are those of
+     * {@link #CachingResolver(Resolver, Executor, OptionMap, TimingWheel)}, except that the policy takes the place of
+     * {@link DnsOptions#CACHE_FREQUENCY_ADMISSION}.
+     *
+     * @param resolver the resolver whose answers are cached
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param optionMap the cache options
+     * @param admissionPolicy the policy which decides whether a new answer may evict a cached one, such as a
+     *      {@link TinyLfuAdmissionPolicy}, or {@code null} to use {@link DnsOptions#CACHE_FREQUENCY_ADMISSION}
+     * @param timingWheel the timing wheel used to expire answers and as the clock
+     */
+    public CachingResolver(final Resolver resolver, final Executor executor, final OptionMap optionMap, final AdmissionPolicy admissionPolicy, final TimingWheel timingWheel) {
+        this(resolver, executor, optionMap.get(DnsOptions.CACHE_SIZE, 1024), optionMap.get(DnsOptions.CACHE_MAX_BYTES, 0L), optionMap.get(DnsOptions.NEGATIVE_CACHE_SIZE, optionMap.get(DnsOptions.CACHE_SIZE, 1024)), optionMap.get(DnsOptions.RRSET_CACHE_SIZE, optionMap.get(DnsOptions.CACHE_SIZE, 1024) << 2), optionMap.get(DnsOptions.CACHE_OFF_HEAP_SIZE, 0L), admissionPolicy != null ? admissionPolicy : getAdmissionPolicy(optionMap, executor), TtlPolicy.create(optionMap), optionMap.get(DnsOptions.CACHE_PREFETCH_PERCENT, 0), optionMap.get(DnsOptions.CACHE_PREFETCH_HITS, 8), optionMap.get(DnsOptions.CACHE_PREFETCH_QUEUE_SIZE, 128), optionMap.get(DnsOptions.CACHE_STALE_WINDOW, 0), optionMap.get(DnsOptions.CACHE_STALE_CLIENT_TIMEOUT, 1800), timingWheel);
+        final String snapshotFile = optionMap.get(DnsOptions.CACHE_SNAPSHOT_FILE);
+        if (snapshotFile != null) {
+            final int snapshotInterval = optionMap.get(DnsOptions.CACHE_SNAPSHOT_INTERVAL, 300000);
+            if (snapshotInterval < 0) {
+                throw new IllegalArgumentException("Snapshot interval must not be negative");
+            }
+            startSnapshots(new File(snapshotFile), snapshotInterval);
+        }
+    }
+
+    private static AdmissionPolicy getAdmissionPolicy(final OptionMap optionMap, final Executor executor) {
+        return optionMap.get(DnsOptions.CACHE_FREQUENCY_ADMISSION, false) ? new TinyLfuAdmissionPolicy(optionMap.get(DnsOptions.CACHE_SIZE, 1024), executor) : null;
+    }
+
+    private CachingResolver(final Resolver resolver, final Executor executor, final int cacheSize, final long maxBytes, final int negativeCacheSize, final int rrsetCacheSize, final long offHeapSize, final AdmissionPolicy admissionPolicy, final TtlPolicy ttlPolicy, final int prefetchPercent, final int prefetchHits, final int prefetchQueueSize, final int staleWindow, final int staleClientTimeout, final TimingWheel timingWheel) {
+        if (maxBytes < 0L) {
+            throw new IllegalArgumentException("Cache byte limit must not be negative");
+        }
+        if (negativeCacheSize < 0) {
+            throw new IllegalArgumentException("Negative cache size must not be negative");
+        }
+        if (rrsetCacheSize < 0) {
+            throw new IllegalArgumentException("RRset cache size must not be negative");
+        }
+        if (offHeapSize < 0L) {
+            throw new IllegalArgumentException("Off-heap cache size must not be negative");
+        }
+        if (prefetchPercent < 0 || prefetchPercent > 99) {
+            throw new IllegalArgumentException("Prefetch percentage must be between 0 and 99");
+        }
+        if (prefetchHits < 1 || prefetchQueueSize < 0) {
+            throw new IllegalArgumentException("Invalid prefetch limits");
+        }
+        if (staleWindow < 0 || staleClientTimeout < 0) {
+            throw new IllegalArgumentException("Invalid stale answer limits");
+        }
+        positive = new Region(cacheSize, maxBytes == 0L ? Long.MAX_VALUE : maxBytes, admissionPolicy);
+        negative = new Region(negativeCacheSize, Long.MAX_VALUE, null);
+        rrsets = rrsetCacheSize == 0 ? null : new RRsetCache(rrsetCacheSize, timingWheel);
+        offHeap = offHeapSize == 0L ? null : new OffHeapAnswerCache(offHeapSize);
+        this.ttlPolicy = ttlPolicy;
         realResolver = resolver;
         this.executor = executor;
+        this.timingWheel = timingWheel;
+        this.prefetchPercent = prefetchQueueSize == 0 ? 0 : prefetchPercent;
+        this.prefetchHits = prefetchHits;
+        this.prefetchQueueSize = prefetchQueueSize;
+        this.staleWindow = staleWindow;
+        this.staleClientTimeout = staleClientTimeout;
     }
 
     /** {@inheritDoc} */
@@ -49,76 +284,839 @@ public final class CachingResolver extends AbstractResolver implements Resolver
             return realResolver.resolve(name, rrClass, rrType, flags);
         } else {
             final QueryKey key = new QueryKey(name, rrClass, rrType);
-            final FutureResult<Answer> newAnswer;
-            synchronized (cache) {
-                final FutureResult<Answer> future = cache.get(key);
-                if (future != null) {
-                    final IoFuture.Status status = future.getIoFuture().getStatus();
-                    if (status == IoFuture.Status.WAITING) {
-                        // still waiting for result
-                        return future.getIoFuture();
-                    } else if (status == IoFuture.Status.DONE) {
-                        try {
-                            boolean expired = false;
-                            for (Record record : future.getIoFuture().get().getAnswerRecords()) {
-                                if (record.getTtlSpec().isExpired()) {
-                                    expired = true;
-                                    break;
-                                }
-                            }
-                            if (! expired) {
-                                return future.getIoFuture();
-                            }
-                        } catch (IOException e) {
-                            // fall out and re-query, the future has gone bad
-                            // technically shouldn't be possible because status was "done"
-                        }
+            final ConcurrentMap<QueryKey, Entry> cache = positive.map;
+            Entry entry = cache.get(key);
+            if (entry != null && entry.expiresAt > timingWheel.currentTimeMillis()) {
+                return hit(entry, flags);
+            }
+            final Entry negativeEntry = negative.map.get(key);
+            if (negativeEntry != null && negativeEntry.expiresAt > timingWheel.currentTimeMillis()) {
+                negativeHits.increment();
+                negativeEntry.touch();
+                return negativeEntry.future.getIoFuture();
+            }
+            if (offHeap != null) {
+                final Answer answer = offHeap.get(key, timingWheel.currentTimeMillis());
+                if (answer != null) {
+                    hits.increment();
+                    return new FinishedIoFuture<Answer>(answer);
+                }
+            }
+            if (entry != null && entry.answer != null) {
+                expiredHits.increment();
+            }
+            if (positive.admissionPolicy != null) {
+                // a miss is always counted, since the entry it makes will have to win admission
+                positive.admissionPolicy.record(key);
+            }
+            // queries in flight always live in the positive region
+            final Entry newEntry = new Entry(key, new FutureResult<Answer>(executor), positive);
+            Entry stale = null;
+            for (;;) {
+                if (entry == null) {
+                    entry = cache.putIfAbsent(key, newEntry);
+                    if (entry == null) {
+                        positive.added(newEntry);
+                        break;
+                    }
+                } else if (cache.replace(key, entry, newEntry)) {
+                    entry.cancelTimer();
+                    positive.discharge(entry);
+                    if (entry.answer != null && entry.staleUntil > timingWheel.currentTimeMillis()) {
+                        stale = entry;
                     }
+                    break;
+                } else {
+                    entry = cache.get(key);
                 }
-                newAnswer = new FutureResult<Answer>(executor);
-                cache.put(key, newAnswer);
+                // lost a race; maybe the winner is usable
+                if (entry != null && entry.expiresAt > timingWheel.currentTimeMillis()) {
+                    return hit(entry, flags);
+                }
+            }
+            if (positive.isFull()) {
+                positive.evict();
             }
+            final Answer composed = rrsets == null ? null : rrsets.lookup(key);
+            if (composed != null) {
+                hits.increment();
+                newEntry.future.setResult(composed);
+                store(newEntry, composed);
+                return newEntry.future.getIoFuture();
+            }
+            final CacheSnapshot snapshot = this.snapshot;
+            if (snapshot != null) {
+                final Answer saved = snapshot.take(key, timingWheel.currentTimeMillis());
+                if (snapshot.isEmpty()) {
+                    this.snapshot = null;
+                }
+                if (saved != null) {
+                    hits.increment();
+                    newEntry.future.setResult(saved);
+                    store(newEntry, saved);
+                    return newEntry.future.getIoFuture();
+                }
+            }
+            final Answer staleAnswer;
+            final long staleUntil;
+            final TimingWheel.Key staleTimerKey;
+            if (stale == null) {
+                staleAnswer = null;
+                staleUntil = 0L;
+                staleTimerKey = null;
+            } else {
+                staleAnswer = getStaleAnswer(stale.answer);
+                staleUntil = stale.staleUntil;
+                // answer with the stale data if the refresh is slow, but let the refresh carry on
+                staleTimerKey = timingWheel.schedule(new Runnable() {
+                    public void run() {
+                        if (newEntry.future.setResult(staleAnswer)) {
+                            staleAnswers.increment();
+                        }
+                    }
+                }, staleClientTimeout, TimeUnit.MILLISECONDS);
+            }
+            misses.increment();
             final IoFuture<Answer> realFuture = realResolver.resolve(name, rrClass, rrType, flags);
             realFuture.addNotifier(new IoFuture.HandlingNotifier<Answer, FutureResult<Answer>>() {
                 public void handleCancelled(final FutureResult<Answer> attachment) {
-                    synchronized (cache) {
-                        if (cache.get(key).equals(attachment)) {
-                            cache.remove(key);
-                        }
+                    if (staleTimerKey != null) {
+                        staleTimerKey.cancel();
                     }
+                    cache.remove(key, newEntry);
                     attachment.setCancelled();
                 }
 
                 public void handleFailed(final IOException exception, final FutureResult<Answer> attachment) {
-                    synchronized (cache) {
-                        if (cache.get(key).equals(attachment)) {
-                            cache.remove(key);
-                        }
+                    if (staleAnswer == null) {
+                        cache.remove(key, newEntry);
+                        attachment.setException(exception);
+                        return;
+                    }
+                    serveStale(attachment);
+                }
+
+                private void serveStale(final FutureResult<Answer> attachment) {
+                    staleTimerKey.cancel();
+                    if (attachment.setResult(staleAnswer)) {
+                        staleAnswers.increment();
+                    }
+                    // keep serving the stale answer for a while before the upstream is tried again
+                    final long now = timingWheel.currentTimeMillis();
+                    final FutureResult<Answer> result = new FutureResult<Answer>(executor);
+                    result.setResult(staleAnswer);
+                    final Entry staleEntry = new Entry(key, result, positive);
+                    staleEntry.answer = staleAnswer;
+                    staleEntry.expiresAt = Math.min(staleUntil, now + STALE_TTL * 1000L);
+                    staleEntry.staleUntil = staleUntil;
+                    if (cache.replace(key, newEntry, staleEntry)) {
+                        staleEntry.timerKey = timingWheel.schedule(staleEntry, Math.max(0L, staleUntil - now), TimeUnit.MILLISECONDS);
+                        positive.charge(staleEntry, getWeight(staleAnswer));
                     }
-                    attachment.setException(exception);
                 }
 
                 public void handleDone(final Answer result, final FutureResult<Answer> attachment) {
-                    attachment.setResult(result);
+                    final ResultCode resultCode = result.getResultCode();
+                    if (staleAnswer != null && (resultCode == ResultCode.SERVER_FAILURE || resultCode == ResultCode.REFUSED)) {
+                        // a failure all the same, even if it came as an answer
+                        serveStale(attachment);
+                        return;
+                    }
+                    if (staleTimerKey != null) {
+                        staleTimerKey.cancel();
+                    }
+                    if (rrsets != null) {
+                        rrsets.harvest(result);
+                    }
+                    if (attachment.setResult(result)) {
+                        store(newEntry, result);
+                    } else {
+                        // the stale answer was served already; the fresh answer replaces it in the cache
+                        final FutureResult<Answer> future = new FutureResult<Answer>(executor);
+                        future.setResult(result);
+                        final Entry freshEntry = new Entry(key, future, positive);
+                        if (cache.replace(key, newEntry, freshEntry)) {
+                            store(freshEntry, result);
+                        }
+                    }
+                }
+            }, newEntry.future);
+            return newEntry.future.getIoFuture();
+        }
+    }
+
+    /**
+     * Store an answer in an entry which is in the positive region, moving the entry to the negative region or
+     * removing it if need be.
+     *
+     * @param entry the entry
+     * @param result the answer
+     */
+    private void store(final Entry entry, final Answer result) {
+        final QueryKey key = entry.key;
+        final long now = timingWheel.currentTimeMillis();
+        if (isNegative(result)) {
+            final long expiresAt = negative.maxSize == 0 ? now : adjustExpiry(key, now, getNegativeExpiry(result, now));
+            // the entry leaves the positive region either way
+            if (positive.map.remove(key, entry) && expiresAt > now) {
+                entry.expiresAt = expiresAt;
+                entry.region = negative;
+                final Entry old = negative.map.put(key, entry);
+                if (old != null) {
+                    old.cancelTimer();
+                    negative.discharge(old);
+                }
+                entry.timerKey = timingWheel.schedule(entry, expiresAt - now, TimeUnit.MILLISECONDS);
+                negative.charge(entry, getWeight(result));
+            }
+        } else {
+            final long expiresAt = adjustExpiry(key, now, getExpiry(result, now));
+            entry.setAnswer(result, now, expiresAt);
+            if (expiresAt <= now) {
+                positive.map.remove(key, entry);
+            } else if (offHeap != null && offHeap.put(key, result, now, expiresAt)) {
+                // the answer lives off the heap from now on
+                positive.map.remove(key, entry);
+            } else if (positive.map.get(key) == entry) {
+                entry.timerKey = timingWheel.schedule(entry, entry.staleUntil - now, TimeUnit.MILLISECONDS);
+                positive.charge(entry, getWeight(result));
+            }
+        }
+    }
+
+    /**
+     * Get the estimated number of bytes of heap retained by the cached answers, positive and negative.  Answers kept off
+     * the heap are not counted.
+     *
+     * @return the estimated size in bytes
+     */
+    public long getCachedBytes() {
+        return positive.bytes.get() + negative.bytes.get();
+    }
+
+    /**
+     * Get the statistics of this resolver, which may be registered with an MBean server.
+     *
+     * @return the statistics
+     */
+    public CachingResolverMXBean getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Save the unexpired positive answers in the cache to a file.  The file is replaced only once the whole snapshot
+     * has been written.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void saveSnapshot(final File file) throws IOException {
+        synchronized (snapshotLock) {
+            writeSnapshot(file);
+        }
+    }
+
+    private void writeSnapshot(final File file) throws IOException {
+        final long now = timingWheel.currentTimeMillis();
+        final CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file);
+        try {
+            for (Entry entry : positive.map.values()) {
+                final Answer answer = entry.answer;
+                // stale answers which are being served after a failed refresh have no storage time
+                if (answer != null && entry.storedAt != 0L && entry.expiresAt > now) {
+                    writer.add(answer, entry.storedAt, entry.expiresAt);
+                }
+            }
+            if (offHeap != null) {
+                offHeap.visit(new OffHeapAnswerCache.Visitor() {
+                    public void visit(final ByteBuffer message, final long storedAt, final long expiresAt) throws IOException {
+                        writer.add(message, storedAt, expiresAt);
+                    }
+                }, now);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Warm the cache from a file written by {@link #saveSnapshot(File)}.  Expired answers in the file are ignored, and
+     * answers already in the cache take precedence over those in the file.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot cannot be read
+     */
+    public void loadSnapshot(final File file) throws IOException {
+        final CacheSnapshot snapshot = CacheSnapshot.open(file, timingWheel.currentTimeMillis());
+        this.snapshot = snapshot.isEmpty() ? null : snapshot;
+    }
+
+    private void startSnapshots(final File file, final int interval) {
+        if (file.exists()) {
+            try {
+                loadSnapshot(file);
+            } catch (IOException e) {
+                log.warn("Failed to load cache snapshot from '%s': %s", file, e);
+            }
+        }
+        final SaveTask save = new SaveTask(file);
+        synchronized (snapshotLock) {
+            snapshotFile = file;
+            if (interval > 0) {
+                snapshotTimerKey = timingWheel.schedule(new SnapshotTask(save, interval), interval, TimeUnit.MILLISECONDS);
+            }
+            snapshotHook = new Thread(save, "DNS cache snapshot");
+            Runtime.getRuntime().addShutdownHook(snapshotHook);
+        }
+    }
+
+    /**
+     * Stop saving the cache to the {@link DnsOptions#CACHE_SNAPSHOT_FILE}, periodically and at shutdown, and save it
+     * one last time.  This does nothing if snapshots were not configured or have been stopped already.
+     *
+     * @throws IOException if the last snapshot cannot be written
+     */
+    public void stopSnapshots() throws IOException {
+        synchronized (snapshotLock) {
+            if (snapshotHook == null) {
+                return;
+            }
+            if (snapshotTimerKey != null) {
+                snapshotTimerKey.cancel();
+                snapshotTimerKey = null;
+            }
+            final Thread hook = snapshotHook;
+            snapshotHook = null;
+            try {
+                if (! Runtime.getRuntime().removeShutdownHook(hook)) {
+                    return;
+                }
+            } catch (IllegalStateException e) {
+                // shutting down; the hook saves the snapshot
+                return;
+            }
+            writeSnapshot(snapshotFile);
+        }
+    }
+
+    /**
+     * The periodic snapshot, which reschedules itself until snapshots are stopped.
+     */
+    private final class SnapshotTask implements Runnable {
+        private final SaveTask save;
+        private final int interval;
+
+        SnapshotTask(final SaveTask save, final int interval) {
+            this.save = save;
+            this.interval = interval;
+        }
+
+        public void run() {
+            synchronized (snapshotLock) {
+                if (snapshotTimerKey == null) {
+                    // stopped
+                    return;
+                }
+                snapshotTimerKey = timingWheel.schedule(this, interval, TimeUnit.MILLISECONDS);
+            }
+            // timer tasks must not block, so the snapshot is written by the executor
+            executor.execute(save);
+        }
+    }
+
+    private final class SaveTask implements Runnable {
+        private final File file;
+
+        SaveTask(final File file) {
+            this.file = file;
+        }
+
+        public void run() {
+            try {
+                saveSnapshot(file);
+            } catch (IOException e) {
+                log.warn("Failed to save cache snapshot to '%s': %s", file, e);
+            }
+        }
+    }
+
+    private static Answer getStaleAnswer(final Answer answer) {
+        // RFC 8767 section 4: stale records are served with a short TTL
+        final TTLSpec ttlSpec = TTLSpec.createFixed(STALE_TTL);
+        final Answer.Builder builder = Answer.builder();
+        builder.setHeaderInfo(answer);
+        for (Record record : answer.getAnswerRecords()) {
+            builder.addAnswerRecord(record.withTtlSpec(ttlSpec));
+        }
+        for (Record record : answer.getAuthorityRecords()) {
+            builder.addAuthorityRecord(record.withTtlSpec(ttlSpec));
+        }
+        for (Record record : answer.getAdditionalRecords()) {
+            builder.addAdditionalRecord(record.withTtlSpec(ttlSpec));
+        }
+        for (Answer.Flag flag : answer.getFlags()) {
+            builder.addFlag(flag);
+        }
+        builder.setOptRecord(answer.getOptRecord());
+        return builder.create();
+    }
+
+    private IoFuture<Answer> hit(final Entry entry, final Set<ResolverFlag> flags) {
+        if (entry.answer == null) {
+            inFlightJoins.increment();
+        } else {
+            hits.increment();
+        }
+        if (entry.touch() && positive.admissionPolicy != null) {
+            // a hit is only counted once per pass of the clock, so that hot questions do not write to the sketch
+            positive.admissionPolicy.record(entry.key);
+        }
+        if (prefetchPercent > 0 && timingWheel.currentTimeMillis() >= entry.prefetchAt && entry.countPrefetchHit(prefetchHits)) {
+            if (prefetchQueueLength.incrementAndGet() > prefetchQueueSize) {
+                // the queue is full; let the entry expire normally
+                prefetchQueueLength.decrementAndGet();
+            } else {
+                prefetchQueue.add(new Prefetch(entry, flags));
+                startPrefetches();
+            }
+        }
+        return entry.future.getIoFuture();
+    }
+
+    private void startPrefetches() {
+        for (;;) {
+            final int inFlight = prefetchesInFlight.get();
+            if (inFlight >= MAX_PREFETCHES || prefetchQueue.isEmpty()) {
+                return;
+            }
+            if (! prefetchesInFlight.compareAndSet(inFlight, inFlight + 1)) {
+                continue;
+            }
+            final Prefetch prefetch = prefetchQueue.poll();
+            if (prefetch == null) {
+                prefetchesInFlight.decrementAndGet();
+                continue;
+            }
+            prefetchQueueLength.decrementAndGet();
+            // never on the thread of the lookup which triggered it
+            try {
+                executor.execute(prefetch);
+            } catch (RejectedExecutionException e) {
+                prefetchesInFlight.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private void prefetchDone() {
+        prefetchesInFlight.decrementAndGet();
+        startPrefetches();
+    }
+
+    private static long getExpiry(final Answer answer, final long now) {
+        long expiresAt = Long.MAX_VALUE;
+        boolean found = false;
+        for (Record record : answer.getAnswerRecords()) {
+            expiresAt = Math.min(expiresAt, getEol(record.getTtlSpec(), now));
+            found = true;
+        }
+        return found ? expiresAt : -1L;
+    }
+
+    private long adjustExpiry(final QueryKey key, final long now, final long expiresAt) {
+        if (ttlPolicy == null || expiresAt < 0L) {
+            // answers which carry no TTL at all are never kept
+            return expiresAt;
+        }
+        return ttlPolicy.adjust(key, now, expiresAt);
+    }
+
+    private static int getWeight(final Answer answer) {
+        // the entry, its key, its map node, its future, and the answer with its lists
+        int weight = 256;
+        for (Record record : answer.getAnswerRecords()) {
+            weight += record.estimateSize();
+        }
+        for (Record record : answer.getAuthorityRecords()) {
+            weight += record.estimateSize();
+        }
+        for (Record record : answer.getAdditionalRecords()) {
+            weight += record.estimateSize();
+        }
+        final Record optRecord = answer.getOptRecord();
+        return optRecord == null ? weight : weight + optRecord.estimateSize();
+    }
+
+    private static boolean isNegative(final Answer answer) {
+        final ResultCode resultCode = answer.getResultCode();
+        return resultCode == ResultCode.NXDOMAIN || resultCode == ResultCode.NOERROR && answer.getAnswerRecords().isEmpty();
+    }
+
+    private static long getNegativeExpiry(final Answer answer, final long now) {
+        // RFC 2308 section 5: the lesser of the SOA TTL and the SOA MINIMUM field
+        for (Record record : answer.getAuthorityRecords()) {
+            if (record instanceof SoaRecord) {
+                final SoaRecord soaRecord = (SoaRecord) record;
+                return Math.min(getEol(soaRecord.getTtlSpec(), now), getEol(soaRecord.getMinimum(), now));
+            }
+        }
+        return -1L;
+    }
+
+    private static long getEol(final TTLSpec ttlSpec, final long now) {
+        return ttlSpec.isFixed() ? now + ttlSpec.getTtl() * 1000L : ttlSpec.getEol();
+    }
+
+    /**
+     * A queued background refresh of a cached answer.
+     */
+    private final class Prefetch implements Runnable {
+        private final Entry entry;
+        private final Set<ResolverFlag> flags;
+
+        Prefetch(final Entry entry, final Set<ResolverFlag> flags) {
+            this.entry = entry;
+            this.flags = flags;
+        }
+
+        public void run() {
+            final QueryKey key = entry.key;
+            if (positive.map.get(key) != entry) {
+                // evicted or replaced while queued
+                prefetchDone();
+                return;
+            }
+            final IoFuture<Answer> future;
+            try {
+                future = realResolver.resolve(key.getDomain(), key.getRRClass(), key.getRRType(), flags);
+            } catch (RuntimeException e) {
+                // the old answer is served until it expires
+                prefetchDone();
+                return;
+            }
+            // on failure, keep serving the old answer until it expires
+            future.addNotifier(new IoFuture.HandlingNotifier<Answer, Prefetch>() {
+                public void handleCancelled(final Prefetch attachment) {
+                    prefetchDone();
                 }
-            }, newAnswer);
-            return newAnswer.getIoFuture();
+
+                public void handleFailed(final IOException exception, final Prefetch attachment) {
+                    prefetchDone();
+                }
+
+                public void handleDone(final Answer result, final Prefetch attachment) {
+                    try {
+                        attachment.replace(result);
+                    } finally {
+                        prefetchDone();
+                    }
+                }
+            }, this);
+        }
+
+        void replace(final Answer answer) {
+            final ResultCode resultCode = answer.getResultCode();
+            if (resultCode != ResultCode.NOERROR && resultCode != ResultCode.NXDOMAIN) {
+                // a failure; keep serving the old answer until it expires
+                return;
+            }
+            if (rrsets != null) {
+                rrsets.harvest(answer);
+            }
+            final QueryKey key = entry.key;
+            final FutureResult<Answer> result = new FutureResult<Answer>(executor);
+            result.setResult(answer);
+            final Entry newEntry = new Entry(key, result, positive);
+            // the refreshed answer inherits the recency of the old one
+            newEntry.referenced = true;
+            if (positive.map.replace(key, entry, newEntry)) {
+                entry.cancelTimer();
+                positive.discharge(entry);
+                prefetches.increment();
+                store(newEntry, answer);
+            }
         }
     }
 
-    private static final class CacheMap<K, V> extends LinkedHashMap<K, V> {
+    /**
+     * The statistics of the cache.
+     */
+    private final class Statistics implements CachingResolverMXBean {
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getNegativeHits() {
+            return negativeHits.get();
+        }
+
+        public long getInFlightJoins() {
+            return inFlightJoins.get();
+        }
 
-        private static final long serialVersionUID = 733255475501069288L;
+        public long getMisses() {
+            return misses.get();
+        }
 
-        private final int max;
+        public long getExpiredHits() {
+            return expiredHits.get();
+        }
 
-        CacheMap(final int max) {
-            super(64, 0.6f, true);
-            this.max = max;
+        public long getStaleAnswers() {
+            return staleAnswers.get();
         }
 
-        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
-            return size() > max;
+        public long getPrefetches() {
+            return prefetches.get();
+        }
+
+        public long getEvictions() {
+            return positive.evictions.get() + negative.evictions.get();
+        }
+
+        public int getSize() {
+            return positive.map.size() + negative.map.size();
+        }
+
+        public long getCachedBytes() {
+            return CachingResolver.this.getCachedBytes();
+        }
+    }
+
+    /**
+     * A cache region with its own size limit and clock hand, and optionally an admission window.
+     */
+    private static final class Region {
+        final ConcurrentMap<QueryKey, Entry> map;
+        final int maxSize;
+        final long maxBytes;
+        // the estimated size of the answers in the region
+        final AtomicLong bytes = new AtomicLong();
+        final StripedCounter evictions = new StripedCounter();
+        // null if every new entry is admitted
+        final AdmissionPolicy admissionPolicy;
+        private final int windowSize;
+        private final ConcurrentLinkedQueue<Entry> window = new ConcurrentLinkedQueue<Entry>();
+        private final AtomicInteger windowLength = new AtomicInteger();
+        private final Lock evictionLock = new ReentrantLock();
+        // guarded by evictionLock
+        private Iterator<Map.Entry<QueryKey, Entry>> clockHand;
+
+        Region(final int maxSize, final long maxBytes, final AdmissionPolicy admissionPolicy) {
+            map = new ConcurrentHashMap<QueryKey, Entry>(Math.max(Math.min(maxSize, 1 << 16), 16), 0.75f, Runtime.getRuntime().availableProcessors() << 2);
+            this.maxSize = maxSize;
+            this.maxBytes = maxBytes;
+            this.admissionPolicy = admissionPolicy;
+            windowSize = Math.max(1, maxSize / 100);
+        }
+
+        /**
+         * Record that a new question has entered the region.
+         *
+         * @param entry the new entry
+         */
+        void added(final Entry entry) {
+            if (admissionPolicy != null) {
+                entry.inWindow = true;
+                window.add(entry);
+                windowLength.incrementAndGet();
+                // while the region has room, entries leave the window without a contest
+                while (windowLength.get() > windowSize && ! isFull()) {
+                    final Entry oldest = window.poll();
+                    if (oldest == null) {
+                        break;
+                    }
+                    windowLength.decrementAndGet();
+                    oldest.inWindow = false;
+                }
+            }
+        }
+
+        boolean isFull() {
+            return map.size() > maxSize || bytes.get() > maxBytes;
+        }
+
+        /**
+         * Charge the estimated size of an answer to the region, evicting other entries if the region is full.
+         *
+         * @param entry the entry holding the answer
+         * @param weight the estimated size of the answer
+         */
+        void charge(final Entry entry, final int weight) {
+            entry.weight = weight;
+            bytes.addAndGet(weight);
+            if (map.get(entry.key) != entry) {
+                // removed in the meantime
+                discharge(entry);
+            } else if (isFull()) {
+                evict();
+            }
+        }
+
+        /**
+         * Release the size charged for an entry which has left the region.  Each charge is released exactly once.
+         *
+         * @param entry the entry
+         */
+        void discharge(final Entry entry) {
+            final int weight = weightUpdater.getAndSet(entry, 0);
+            if (weight != 0) {
+                bytes.addAndGet(-weight);
+            }
+        }
+
+        void evict() {
+            if (! evictionLock.tryLock()) {
+                // somebody else is already sweeping
+                return;
+            }
+            try {
+                while (isFull()) {
+                    final Entry candidate = windowLength.get() > windowSize ? window.poll() : null;
+                    if (candidate != null) {
+                        // the oldest entry of the window must win against the clock's victim to stay
+                        windowLength.decrementAndGet();
+                        candidate.inWindow = false;
+                        if (map.get(candidate.key) != candidate) {
+                            continue;
+                        }
+                        final Entry victim = nextVictim();
+                        remove(victim != null && admissionPolicy.admit(candidate.key, victim.key) ? victim : candidate);
+                    } else {
+                        final Entry victim = nextVictim();
+                        if (victim == null) {
+                            return;
+                        }
+                        remove(victim);
+                    }
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        private Entry nextVictim() {
+            // every entry is visited at most twice: once to clear its flag and once to choose it
+            int budget = map.size() << 1;
+            while (budget-- > 0) {
+                if (clockHand == null || ! clockHand.hasNext()) {
+                    clockHand = map.entrySet().iterator();
+                    if (! clockHand.hasNext()) {
+                        return null;
+                    }
+                }
+                final Entry entry = clockHand.next().getValue();
+                if (entry.inWindow) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private void remove(final Entry entry) {
+            if (map.remove(entry.key, entry)) {
+                entry.cancelTimer();
+                discharge(entry);
+                evictions.increment();
+            }
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Entry> prefetchCountUpdater = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "prefetchCount");
+    private static final AtomicIntegerFieldUpdater<Entry> weightUpdater = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "weight");
+
+    /**
+     * A cache entry, which is also the task which removes it from the cache when it expires.
+     */
+    private final class Entry implements Runnable {
+        final QueryKey key;
+        final FutureResult<Answer> future;
+        // Long.MAX_VALUE while the query is in flight
+        volatile long expiresAt = Long.MAX_VALUE;
+        // the time until which the answer may be served stale, and after which the entry is removed
+        volatile long staleUntil = Long.MAX_VALUE;
+        // the positive answer, once it has arrived
+        volatile Answer answer;
+        // the time at which the answer arrived, from which its fixed TTLs count
+        volatile long storedAt;
+        // the time after which hits are counted towards a prefetch
+        volatile long prefetchAt = Long.MAX_VALUE;
+        volatile int prefetchCount;
+        // the estimated size charged to the region, or 0 if nothing is charged
+        volatile int weight;
+        volatile boolean referenced;
+        // whether the entry is in the admission window of its region
+        volatile boolean inWindow;
+        volatile TimingWheel.Key timerKey;
+        volatile Region region;
+
+        Entry(final QueryKey key, final FutureResult<Answer> future, final Region region) {
+            this.key = key;
+            this.future = future;
+            this.region = region;
+        }
+
+        void setAnswer(final Answer answer, final long now, final long expiresAt) {
+            this.answer = answer;
+            storedAt = now;
+            this.expiresAt = expiresAt;
+            staleUntil = expiresAt + staleWindow;
+            if (prefetchPercent > 0) {
+                prefetchAt = expiresAt - (expiresAt - now) * prefetchPercent / 100L;
+            }
+        }
+
+        /**
+         * Count a hit in the prefetch window.
+         *
+         * @param threshold the number of hits which trigger a prefetch
+         * @return {@code true} if this hit triggers the prefetch
+         */
+        boolean countPrefetchHit(final int threshold) {
+            int count;
+            do {
+                count = prefetchCount;
+                if (count >= threshold) {
+                    // already prefetched
+                    return false;
+                }
+            } while (! prefetchCountUpdater.compareAndSet(this, count, count + 1));
+            return count + 1 == threshold;
+        }
+
+        /**
+         * Mark this entry as referenced.
+         *
+         * @return {@code true} if it was not referenced since the clock last passed it
+         */
+        boolean touch() {
+            // read first so that hits on a hot entry never write
+            if (! referenced) {
+                referenced = true;
+                return true;
+            }
+            return false;
+        }
+
+        void cancelTimer() {
+            final TimingWheel.Key timerKey = this.timerKey;
+            if (timerKey != null) {
+                timerKey.cancel();
+            }
+        }
+
+        public void run() {
+            final Region region = this.region;
+            if (region.map.remove(key, this)) {
+                region.discharge(this);
+            }
         }
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xnio.dns;
+
+/**
+ * The management interface of a {@link CachingResolver}.  An instance for a resolver is given by
+ * {@link CachingResolver#getStatistics()}, and may be registered with an MBean server.
+ */
+public interface CachingResolverMXBean {
+
+    /**
+     * Get the number of questions answered from the cache, including answers built from cached RRsets or taken from a
+     * snapshot.
+     *
+     * @return the number of hits
+     */
+    long getHits();
+
+    /**
+     * Get the number of questions answered from cached negative answers.
+     *
+     * @return the number of negative hits
+     */
+    long getNegativeHits();
+
+    /**
+     * Get the number of questions which joined a query for the same question already in flight.
+     *
+     * @return the number of joined queries
+     */
+    long getInFlightJoins();
+
+    /**
+     * Get the number of questions which were sent to the upstream resolver.
+     *
+     * @return the number of misses
+     */
+    long getMisses();
+
+    /**
+     * Get the number of misses which found an expired answer in the cache.
+     *
+     * @return the number of expired hits
+     */
+    long getExpiredHits();
+
+    /**
+     * Get the number of times an expired answer was served because the upstream resolver failed or was slow.
+     *
+     * @return the number of stale answers served
+     */
+    long getStaleAnswers();
+
+    /**
+     * Get the number of cached answers which were refreshed by a prefetch before they expired.
+     *
+     * @return the number of prefetches
+     */
+    long getPrefetches();
+
+    /**
+     * Get the number of answers evicted from the cache to make room for others.
+     *
+     * @return the number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Get the number of cached answers held on the heap, positive and negative.
+     *
+     * @return the number of cached answers
+     */
+    int getSize();
+
+    /**
+     * Get the estimated number of bytes of heap retained by the cached answers.
+     *
+     * @return the estimated size in bytes
+     */
+    long getCachedBytes();
+}
@@ -0,0 +1,124 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+
+/**
+ * A resolver which follows CNAME and DNAME records.  When an answer from the underlying resolver does not hold the
+ * records asked for but leads to them through aliases, the aliases in the answer are followed as far as they go, and
+ * the name at the end of the chain is asked about next.  The final answer carries the whole chain in its answer
+ * section, followed by the records asked for, so the address methods of this resolver always see the target's
+ * addresses.
+ * <p>
+ * Each follow-up query is sent as soon as the previous answer arrives, so a chain whose segments are cached by the
+ * underlying resolver costs no more than one network round trip for its uncached tail.  A chain which loops, or which
+ * is longer than the limit, results in {@link ResultCode#SERVER_FAILURE}.  Questions for CNAME, DNAME or ANY records
+ * are passed through unchanged.
+ */
+public final class ChasingResolver extends AbstractResolver {
+
+    private static final int DEFAULT_MAX_LENGTH = 8;
+
+    private final Resolver resolver;
+    private final Executor executor;
+    private final int maxLength;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param resolver the resolver whose answers are followed
+     * @param executor the executor to use to execute asynchronous tasks
+     */
+    public ChasingResolver(final Resolver resolver, final Executor executor) {
+        this(resolver, executor, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param resolver the resolver whose answers are followed
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param maxLength the most aliases to follow for one question
+     */
+    public ChasingResolver(final Resolver resolver, final Executor executor, final int maxLength) {
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("Chain length limit must be positive");
+        }
+        this.resolver = resolver;
+        this.executor = executor;
+        this.maxLength = maxLength;
+    }
+
+    public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+        if (rrType == RRType.CNAME || rrType == RRType.DNAME || rrType == RRType.ANY) {
+            return resolver.resolve(name, rrClass, rrType, flags);
+        }
+        final FutureResult<Answer> futureResult = new FutureResult<Answer>(executor);
+        final Chase chase = new Chase(new AliasChain(name, rrClass, rrType, maxLength), rrClass, rrType, flags);
+        chase.query(futureResult);
+        return futureResult.getIoFuture();
+    }
+
+    private final class Chase extends IoFuture.HandlingNotifier<Answer, FutureResult<Answer>> {
+        private final AliasChain chain;
+        private final RRClass rrClass;
+        private final RRType rrType;
+        private final Set<ResolverFlag> flags;
+
+        Chase(final AliasChain chain, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+            this.chain = chain;
+            this.rrClass = rrClass;
+            this.rrType = rrType;
+            this.flags = flags;
+        }
+
+        void query(final FutureResult<Answer> result) {
+            final IoFuture<Answer> futureAnswer = resolver.resolve(chain.getTarget(), rrClass, rrType, flags);
+            futureAnswer.addNotifier(this, result);
+            result.addCancelHandler(futureAnswer);
+        }
+
+        public void handleCancelled(final FutureResult<Answer> result) {
+            result.setCancelled();
+        }
+
+        public void handleFailed(final IOException exception, final FutureResult<Answer> result) {
+            result.setException(exception);
+        }
+
+        public void handleDone(final Answer answer, final FutureResult<Answer> result) {
+            if (chain.follow(answer)) {
+                query(result);
+            } else if (chain.isBroken()) {
+                result.setResult(Answer.builder().setHeaderInfo(chain.getName(), rrClass, rrType, ResultCode.SERVER_FAILURE).create());
+            } else {
+                result.setResult(chain.merge(answer));
+            }
+        }
+    }
+}
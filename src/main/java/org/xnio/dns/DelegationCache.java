@@ -0,0 +1,354 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.xnio.dns.record.ARecord;
+import org.xnio.dns.record.AaaaRecord;
+import org.xnio.dns.record.NsRecord;
+
+/**
+ * A cache of zone cuts, used by an {@link IterativeResolver} to remember what it has learned about the authoritative
+ * servers of each zone.  Each delegation maps a zone apex to the names of its name servers and their addresses, and
+ * is kept for as long as the TTLs of its NS and address records allow.  A new question under a known zone starts at
+ * the servers of the closest enclosing zone in the cache rather than at the top of the tree.
+ * <p>
+ * The cache also tracks the health of the servers it knows about.  A server which fails several queries in a row is
+ * held down for a while, and a delegation whose servers are all held down is passed over in favour of an enclosing
+ * zone.
+ */
+final class DelegationCache {
+
+    private static final int MAX_FAILURES = 3;
+    private static final long HOLD_DOWN = TimeUnit.SECONDS.toMillis(30L);
+    private static final int MAX_SERVERS = 4096;
+
+    private final ConcurrentMap<Domain, Delegation> delegations;
+    private final ConcurrentMap<InetSocketAddress, ServerHealth> health = new ConcurrentHashMap<InetSocketAddress, ServerHealth>();
+    private final int maxSize;
+    private final TimingWheel timingWheel;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maxSize the maximum number of delegations to keep
+     * @param timingWheel the timing wheel used to expire delegations and as the clock
+     */
+    DelegationCache(final int maxSize, final TimingWheel timingWheel) {
+        delegations = new ConcurrentHashMap<Domain, Delegation>(Math.max(Math.min(maxSize, 1 << 16), 16), 0.75f, Runtime.getRuntime().availableProcessors() << 2);
+        this.maxSize = maxSize;
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * Find the delegation of the closest zone which encloses a name and has a server which is not held down.
+     *
+     * @param name the name
+     * @return the delegation, or {@code null} if none is known
+     */
+    Delegation findClosest(final Domain name) {
+        final long now = timingWheel.currentTimeMillis();
+        for (Domain zone = name; zone != null; zone = zone.getParent()) {
+            final Delegation delegation = delegations.get(zone);
+            if (delegation != null && delegation.expiresAt > now && ! getServers(delegation).isEmpty()) {
+                return delegation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the unexpired delegation of a zone.
+     *
+     * @param zone the zone apex
+     * @return the delegation, or {@code null} if none is known
+     */
+    Delegation get(final Domain zone) {
+        final Delegation delegation = delegations.get(zone);
+        return delegation != null && delegation.expiresAt > timingWheel.currentTimeMillis() ? delegation : null;
+    }
+
+    /**
+     * Create a delegation of the root zone from hints.  The delegation never expires and is not cached.
+     *
+     * @param nameServers the names of the root servers
+     * @param addresses the addresses of the root servers
+     * @return the delegation
+     */
+    Delegation hints(final List<Domain> nameServers, final List<InetSocketAddress> addresses) {
+        return new Delegation(Domain.ROOT, new ArrayList<Domain>(nameServers), new ArrayList<InetSocketAddress>(addresses), Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the servers of a delegation which are not held down, in no particular order.
+     *
+     * @param delegation the delegation
+     * @return the servers
+     */
+    List<InetSocketAddress> getServers(final Delegation delegation) {
+        final long now = timingWheel.currentTimeMillis();
+        final List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>(delegation.addresses.size());
+        for (InetSocketAddress address : delegation.addresses) {
+            final ServerHealth serverHealth = health.get(address);
+            if (serverHealth == null || serverHealth.holdDownUntil <= now) {
+                servers.add(address);
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Learn the delegation in a reply, if it has one.  The NS records of the deepest zone which encloses the name are
+     * taken from the answer or authority section, and the addresses of those servers from the additional section.
+     * Only records within the bailiwick of the servers which sent the reply are believed.
+     *
+     * @param answer the reply
+     * @param name the name which was asked about
+     * @param bailiwick the zone of the servers which sent the reply; {@link Domain#ROOT} for a trusted source
+     * @return the new delegation, or {@code null} if the reply has none
+     */
+    Delegation harvest(final Answer answer, final Domain name, final Domain bailiwick) {
+        Domain zone = null;
+        final List<NsRecord> nsRecords = new ArrayList<NsRecord>();
+        for (List<Record> section : sections(answer)) {
+            for (Record record : section) {
+                if (! (record instanceof NsRecord)) {
+                    continue;
+                }
+                final Domain owner = record.getName();
+                if (! name.isSubdomainOf(owner) || ! owner.isSubdomainOf(bailiwick)) {
+                    continue;
+                }
+                if (zone == null || owner.isSubdomainOf(zone) && ! owner.equals(zone)) {
+                    // a deeper cut
+                    zone = owner;
+                    nsRecords.clear();
+                }
+                if (owner.equals(zone)) {
+                    nsRecords.add((NsRecord) record);
+                }
+            }
+        }
+        if (zone == null) {
+            return null;
+        }
+        final long now = timingWheel.currentTimeMillis();
+        long expiresAt = Long.MAX_VALUE;
+        final Set<Domain> nameServers = new LinkedHashSet<Domain>();
+        for (NsRecord record : nsRecords) {
+            nameServers.add(record.getServer());
+            expiresAt = Math.min(expiresAt, getEol(record.getTtlSpec(), now));
+        }
+        final Set<InetSocketAddress> addresses = new LinkedHashSet<InetSocketAddress>();
+        long addressExpiresAt = Long.MAX_VALUE;
+        for (Record record : answer.getAdditionalRecords()) {
+            final InetAddress address;
+            if (record instanceof ARecord) {
+                address = ((ARecord) record).getAddress();
+            } else if (record instanceof AaaaRecord) {
+                address = ((AaaaRecord) record).getAddress();
+            } else {
+                continue;
+            }
+            final Domain owner = record.getName();
+            if (nameServers.contains(owner) && owner.isSubdomainOf(bailiwick)) {
+                addresses.add(new InetSocketAddress(address, 53));
+                addressExpiresAt = Math.min(addressExpiresAt, getEol(record.getTtlSpec(), now));
+            }
+        }
+        if (! addresses.isEmpty()) {
+            // the delegation is only useful while its addresses are
+            expiresAt = Math.min(expiresAt, addressExpiresAt);
+        }
+        if (expiresAt <= now) {
+            return null;
+        }
+        final Delegation delegation = new Delegation(zone, new ArrayList<Domain>(nameServers), new ArrayList<InetSocketAddress>(addresses), expiresAt);
+        store(delegation, now);
+        return delegation;
+    }
+
+    private static List<List<Record>> sections(final Answer answer) {
+        final List<List<Record>> sections = new ArrayList<List<Record>>(2);
+        sections.add(answer.getAnswerRecords());
+        sections.add(answer.getAuthorityRecords());
+        return sections;
+    }
+
+    private static long getEol(final TTLSpec ttlSpec, final long now) {
+        return ttlSpec.isFixed() ? now + ttlSpec.getTtl() * 1000L : ttlSpec.getEol();
+    }
+
+    private void store(final Delegation delegation, final long now) {
+        final Delegation old = delegations.put(delegation.zone, delegation);
+        if (old != null) {
+            old.cancelTimer();
+        }
+        delegation.timerKey = timingWheel.schedule(delegation, delegation.expiresAt - now, TimeUnit.MILLISECONDS);
+        if (delegations.size() > maxSize) {
+            // arbitrary victims; a lost delegation is learned again from the enclosing zone
+            final Iterator<Delegation> iterator = delegations.values().iterator();
+            while (delegations.size() > maxSize && iterator.hasNext()) {
+                final Delegation victim = iterator.next();
+                iterator.remove();
+                victim.cancelTimer();
+            }
+        }
+    }
+
+    /**
+     * Add the addresses of name servers which had no glue to a delegation.  The addresses are added to the cached
+     * delegation of the same zone if there is one.
+     *
+     * @param delegation the delegation
+     * @param answer an answer whose A and AAAA records hold the addresses of some of the delegation's servers
+     * @return the delegation with the addresses added
+     */
+    Delegation addAddresses(final Delegation delegation, final Answer answer) {
+        final long now = timingWheel.currentTimeMillis();
+        final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        long expiresAt = Long.MAX_VALUE;
+        for (Record record : answer.getAnswerRecords()) {
+            if (record instanceof ARecord) {
+                addresses.add(new InetSocketAddress(((ARecord) record).getAddress(), 53));
+            } else if (record instanceof AaaaRecord) {
+                addresses.add(new InetSocketAddress(((AaaaRecord) record).getAddress(), 53));
+            } else {
+                continue;
+            }
+            expiresAt = Math.min(expiresAt, getEol(record.getTtlSpec(), now));
+        }
+        if (addresses.isEmpty()) {
+            return delegation;
+        }
+        for (;;) {
+            final Delegation current = delegations.get(delegation.zone);
+            final Delegation base = current == null || current.expiresAt <= now ? delegation : current;
+            final Set<InetSocketAddress> merged = new LinkedHashSet<InetSocketAddress>(base.addresses);
+            merged.addAll(addresses);
+            final Delegation updated = new Delegation(base.zone, new ArrayList<Domain>(base.nameServers), new ArrayList<InetSocketAddress>(merged), Math.min(base.expiresAt, expiresAt));
+            if (updated.expiresAt <= now || base.expiresAt == Long.MAX_VALUE) {
+                // hints are never cached
+                return updated;
+            }
+            if (current == null ? delegations.putIfAbsent(base.zone, updated) == null : delegations.replace(base.zone, current, updated)) {
+                if (current != null) {
+                    current.cancelTimer();
+                }
+                updated.timerKey = timingWheel.schedule(updated, updated.expiresAt - now, TimeUnit.MILLISECONDS);
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Record that the servers of a delegation answered.
+     *
+     * @param servers the servers which were asked
+     */
+    void recordSuccess(final List<InetSocketAddress> servers) {
+        for (InetSocketAddress server : servers) {
+            final ServerHealth serverHealth = health.get(server);
+            if (serverHealth != null) {
+                serverHealth.failures.set(0);
+            }
+        }
+    }
+
+    /**
+     * Record that none of the servers of a delegation answered.
+     *
+     * @param servers the servers which were asked
+     */
+    void recordFailure(final List<InetSocketAddress> servers) {
+        final long now = timingWheel.currentTimeMillis();
+        for (InetSocketAddress server : servers) {
+            ServerHealth serverHealth = health.get(server);
+            if (serverHealth == null) {
+                if (health.size() >= MAX_SERVERS) {
+                    // forget an arbitrary server
+                    final Iterator<InetSocketAddress> iterator = health.keySet().iterator();
+                    if (iterator.hasNext()) {
+                        iterator.next();
+                        iterator.remove();
+                    }
+                }
+                final ServerHealth newHealth = new ServerHealth();
+                serverHealth = health.putIfAbsent(server, newHealth);
+                if (serverHealth == null) {
+                    serverHealth = newHealth;
+                }
+            }
+            if (serverHealth.failures.incrementAndGet() >= MAX_FAILURES) {
+                serverHealth.failures.set(0);
+                serverHealth.holdDownUntil = now + HOLD_DOWN;
+            }
+        }
+    }
+
+    /**
+     * A zone cut: the name servers of a zone and the addresses known for them.  A delegation is also the task which
+     * removes it from the cache when it expires.
+     */
+    final class Delegation implements Runnable {
+        final Domain zone;
+        final List<Domain> nameServers;
+        final List<InetSocketAddress> addresses;
+        final long expiresAt;
+        volatile TimingWheel.Key timerKey;
+
+        Delegation(final Domain zone, final List<Domain> nameServers, final List<InetSocketAddress> addresses, final long expiresAt) {
+            this.zone = zone;
+            this.nameServers = Collections.unmodifiableList(nameServers);
+            this.addresses = Collections.unmodifiableList(addresses);
+            this.expiresAt = expiresAt;
+        }
+
+        void cancelTimer() {
+            final TimingWheel.Key timerKey = this.timerKey;
+            if (timerKey != null) {
+                timerKey.cancel();
+            }
+        }
+
+        public void run() {
+            delegations.remove(zone, this);
+        }
+    }
+
+    private static final class ServerHealth {
+        final AtomicInteger failures = new AtomicInteger();
+        volatile long holdDownUntil;
+    }
+}
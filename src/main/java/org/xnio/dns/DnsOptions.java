@@ -23,6 +23,7 @@
 package org.xnio.dns;
 
 import org.xnio.Option;
+import org.xnio.Sequence;
 
 public final class DnsOptions {
 
@@ -30,4 +31,178 @@ public final class DnsOptions {
     }
 
     public static final Option<Integer> CACHE_SIZE = Option.simple(DnsOptions.class, "CACHE_SIZE", Integer.class);
+
+    /**
+     * The estimated number of bytes of heap the positive answers of a caching resolver may retain, in addition to the
+     * limit on their number.  A value of zero (the default) sets no byte limit.
+     */
+    public static final Option<Long> CACHE_MAX_BYTES = Option.simple(DnsOptions.class, "CACHE_MAX_BYTES", Long.class);
+
+    /**
+     * The number of negative answers a caching resolver keeps, separately from its positive answers.  A value of zero
+     * disables negative caching.
+     */
+    public static final Option<Integer> NEGATIVE_CACHE_SIZE = Option.simple(DnsOptions.class, "NEGATIVE_CACHE_SIZE", Integer.class);
+
+    /**
+     * The number of RRsets a caching resolver keeps, keyed by owner name, class and type, to answer other questions
+     * from the records of earlier answers.  A value of zero disables the RRset cache.
+     */
+    public static final Option<Integer> RRSET_CACHE_SIZE = Option.simple(DnsOptions.class, "RRSET_CACHE_SIZE", Integer.class);
+
+    /**
+     * The number of bytes of direct memory a caching resolver uses to keep positive answers off the heap, in wire
+     * format.  A value of zero (the default) keeps all answers on the heap.
+     */
+    public static final Option<Long> CACHE_OFF_HEAP_SIZE = Option.simple(DnsOptions.class, "CACHE_OFF_HEAP_SIZE", Long.class);
+
+    /**
+     * Whether a caching resolver admits new answers by the estimated frequency of their questions (W-TinyLFU), rather
+     * than always evicting an older answer to make room for a new one (the default).
+     */
+    public static final Option<Boolean> CACHE_FREQUENCY_ADMISSION = Option.simple(DnsOptions.class, "CACHE_FREQUENCY_ADMISSION", Boolean.class);
+
+    /**
+     * The least time, in seconds, for which a caching resolver keeps an answer, whatever its TTL (0 by default).
+     */
+    public static final Option<Integer> CACHE_MIN_TTL = Option.simple(DnsOptions.class, "CACHE_MIN_TTL", Integer.class);
+
+    /**
+     * The most time, in seconds, for which a caching resolver keeps an answer, whatever its TTL.  A value of zero (the
+     * default) sets no maximum.
+     */
+    public static final Option<Integer> CACHE_MAX_TTL = Option.simple(DnsOptions.class, "CACHE_MAX_TTL", Integer.class);
+
+    /**
+     * Overrides of {@link #CACHE_MIN_TTL} and {@link #CACHE_MAX_TTL} for particular questions, each of the form
+     * {@code target=min-max} in seconds.  The target is either the name of a record type, such as {@code PTR}, or a
+     * domain, such as {@code example.com}, which applies to that domain and every name under it.  The override for the
+     * longest matching domain is used, then the override for the type of the question.
+     */
+    public static final Option<Sequence<String>> CACHE_TTL_OVERRIDES = Option.sequence(DnsOptions.class, "CACHE_TTL_OVERRIDES", String.class);
+
+    /**
+     * The largest random amount, as a percentage of the TTL, by which a caching resolver shortens the time for which it
+     * keeps an answer, or lengthens it if it would otherwise fall below {@link #CACHE_MIN_TTL}.  A value of zero (the
+     * default) disables jitter.
+     */
+    public static final Option<Integer> CACHE_TTL_JITTER_PERCENT = Option.simple(DnsOptions.class, "CACHE_TTL_JITTER_PERCENT", Integer.class);
+
+    /**
+     * The last part of an answer's lifetime, as a percentage of its TTL, during which hits on a cached answer count
+     * towards refreshing it in the background.  A value of zero (the default) disables prefetching.
+     */
+    public static final Option<Integer> CACHE_PREFETCH_PERCENT = Option.simple(DnsOptions.class, "CACHE_PREFETCH_PERCENT", Integer.class);
+
+    /**
+     * The number of hits a cached answer must receive during its prefetch window before it is refreshed (8 by default).
+     */
+    public static final Option<Integer> CACHE_PREFETCH_HITS = Option.simple(DnsOptions.class, "CACHE_PREFETCH_HITS", Integer.class);
+
+    /**
+     * The number of refreshes which may wait to be sent upstream (128 by default).  Further refreshes are dropped.
+     */
+    public static final Option<Integer> CACHE_PREFETCH_QUEUE_SIZE = Option.simple(DnsOptions.class, "CACHE_PREFETCH_QUEUE_SIZE", Integer.class);
+
+    /**
+     * The time, in milliseconds, for which a caching resolver keeps expired answers to serve them stale when the
+     * upstream resolver fails.  A value of zero (the default) disables serving stale answers.
+     */
+    public static final Option<Integer> CACHE_STALE_WINDOW = Option.simple(DnsOptions.class, "CACHE_STALE_WINDOW", Integer.class);
+
+    /**
+     * The time, in milliseconds, to wait for the refresh of an expired answer before the stale answer is returned
+     * instead (1800 by default).
+     */
+    public static final Option<Integer> CACHE_STALE_CLIENT_TIMEOUT = Option.simple(DnsOptions.class, "CACHE_STALE_CLIENT_TIMEOUT", Integer.class);
+
+    /**
+     * The path of a file to which the cache is saved periodically and at shutdown, and from which it is warmed at
+     * startup.  By default the cache is not saved.
+     */
+    public static final Option<String> CACHE_SNAPSHOT_FILE = Option.simple(DnsOptions.class, "CACHE_SNAPSHOT_FILE", String.class);
+
+    /**
+     * The interval, in milliseconds, between saves of the cache to the {@link #CACHE_SNAPSHOT_FILE} (300000 by
+     * default).  A value of zero saves the cache only at shutdown.
+     */
+    public static final Option<Integer> CACHE_SNAPSHOT_INTERVAL = Option.simple(DnsOptions.class, "CACHE_SNAPSHOT_INTERVAL", Integer.class);
+
+    /**
+     * The number of zones whose name servers an iterative resolver remembers (1024 by default).
+     */
+    public static final Option<Integer> DELEGATION_CACHE_SIZE = Option.simple(DnsOptions.class, "DELEGATION_CACHE_SIZE", Integer.class);
+
+    /**
+     * The number of queries an iterative resolver may send to answer one question, including those needed to find the
+     * addresses of name servers and to follow aliases (64 by default).
+     */
+    public static final Option<Integer> ITERATIVE_QUERY_BUDGET = Option.simple(DnsOptions.class, "ITERATIVE_QUERY_BUDGET", Integer.class);
+
+    /**
+     * The time, in milliseconds, a named connector waits for a connection attempt before it starts the next one in
+     * parallel (250 by default).
+     */
+    public static final Option<Integer> CONNECT_ATTEMPT_DELAY = Option.simple(DnsOptions.class, "CONNECT_ATTEMPT_DELAY", Integer.class);
+
+    /**
+     * The time, in milliseconds, a named connector waits for the AAAA records of a host once its A records have
+     * arrived before it starts connecting (50 by default).
+     */
+    public static final Option<Integer> CONNECT_RESOLUTION_DELAY = Option.simple(DnsOptions.class, "CONNECT_RESOLUTION_DELAY", Integer.class);
+
+    /**
+     * The number of services whose targets an SRV connector remembers (256 by default).
+     */
+    public static final Option<Integer> SERVICE_CACHE_SIZE = Option.simple(DnsOptions.class, "SERVICE_CACHE_SIZE", Integer.class);
+
+    /**
+     * The number of long-lived UDP sockets to share between all queries to a single server.  A value of zero (the
+     * default) opens a new socket for every query.
+     */
+    public static final Option<Integer> UDP_SOCKETS_PER_SERVER = Option.simple(DnsOptions.class, "UDP_SOCKETS_PER_SERVER", Integer.class);
+
+    /**
+     * The number of queries a shared UDP socket carries before it is replaced by a new socket, so that the source port
+     * keeps changing.
+     */
+    public static final Option<Integer> UDP_SOCKET_ROTATE_QUERIES = Option.simple(DnsOptions.class, "UDP_SOCKET_ROTATE_QUERIES", Integer.class);
+
+    /**
+     * The number of persistent TCP connections to keep to each server.
+     */
+    public static final Option<Integer> TCP_CONNECTIONS_PER_SERVER = Option.simple(DnsOptions.class, "TCP_CONNECTIONS_PER_SERVER", Integer.class);
+
+    /**
+     * The time, in milliseconds, for which a persistent TCP connection may carry no queries before it is closed.  The
+     * default is 10000 (ten seconds); zero keeps idle connections open until the server closes them.
+     */
+    public static final Option<Integer> TCP_IDLE_TIMEOUT = Option.simple(DnsOptions.class, "TCP_IDLE_TIMEOUT", Integer.class);
+
+    /**
+     * The total time, in milliseconds, to wait for the reply to a query before the query fails.
+     */
+    public static final Option<Integer> QUERY_TIMEOUT = Option.simple(DnsOptions.class, "QUERY_TIMEOUT", Integer.class);
+
+    /**
+     * The time, in milliseconds, to wait for a reply before a UDP query is sent again.  The interval doubles after
+     * each retransmission until the query times out.
+     */
+    public static final Option<Integer> QUERY_RETRANSMIT_INTERVAL = Option.simple(DnsOptions.class, "QUERY_RETRANSMIT_INTERVAL", Integer.class);
+
+    /**
+     * The UDP payload size to advertise in the EDNS(0) OPT record of each query (1232 by default).  A value of zero
+     * sends queries without an OPT record.
+     */
+    public static final Option<Integer> EDNS_PAYLOAD_SIZE = Option.simple(DnsOptions.class, "EDNS_PAYLOAD_SIZE", Integer.class);
+
+    /**
+     * Set the DO (DNSSEC OK) bit in the EDNS(0) OPT record of each query.
+     */
+    public static final Option<Boolean> EDNS_DNSSEC_OK = Option.simple(DnsOptions.class, "EDNS_DNSSEC_OK", Boolean.class);
+
+    /**
+     * The number of pre-encoded query messages each network resolver keeps for reuse (1024 by default).
+     */
+    public static final Option<Integer> QUERY_TEMPLATE_CACHE_SIZE = Option.simple(DnsOptions.class, "QUERY_TEMPLATE_CACHE_SIZE", Integer.class);
 }
@@ -227,26 +227,31 @@ public class Domain implements Serializable {
         if (depth > 32) {
             throw new IllegalStateException("Nested level too deep");
         }
-        final byte leadByte = buffer.get();
-        for (;;) switch (leadByte & 0xc0) {
-            case 0x00: {
-                if (leadByte == 0) {
-                    if (labels.size() == 0) {
-                        return ROOT;
-                    } else {
-                        return new Domain(labels.toArray(new Label[labels.size()]));
+        for (;;) {
+            final int leadByte = buffer.get() & 0xff;
+            switch (leadByte & 0xc0) {
+                case 0x00: {
+                    if (leadByte == 0) {
+                        if (labels.size() == 0) {
+                            return ROOT;
+                        } else {
+                            return new Domain(labels.toArray(new Label[labels.size()]));
+                        }
                     }
+                    labels.add(Label.fromBytes(leadByte, buffer));
+                    break;
+                }
+                case 0xc0: {
+                    // compression pointer; offsets are relative to the start of the buffer
+                    final int offs = ((leadByte & 0x3F) << 8) | (buffer.get() & 0xff);
+                    final ByteBuffer newBuf = buffer.duplicate();
+                    newBuf.limit(newBuf.capacity());
+                    newBuf.position(offs);
+                    return fromBytes(newBuf, labels, depth + 1);
+                }
+                default: {
+                    throw new IllegalStateException("Invalid label byte");
                 }
-                labels.add(Label.fromBytes(leadByte & 0x1f, buffer));
-            }
-            case 0xc0: {
-                final int offs = ((leadByte & 0x3F) << 8) | (buffer.get() & 0xff);
-                final ByteBuffer newBuf = buffer.duplicate();
-                newBuf.position(offs);
-                return fromBytes(newBuf, labels, depth + 1);
-            }
-            default: {
-                throw new IllegalStateException("Invalid label byte");
             }
         }
     }
@@ -289,6 +294,41 @@ public class Domain implements Serializable {
         return builder.toString();
     }
 
+    /**
+     * Write this domain in wire format, without name compression.
+     *
+     * @param buffer the target buffer
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (Label label : parts) {
+            buffer.put((byte) label.length());
+            label.writeTo(buffer);
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * Get the length of this name as written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @return the length in bytes
+     */
+    int getWireLength() {
+        int length = 1;
+        for (Label label : parts) {
+            length += 1 + label.length();
+        }
+        return length;
+    }
+
+    int estimateSize() {
+        // the domain and its label array, then each label and its bytes
+        int size = 32 + (parts.length << 3);
+        for (Label label : parts) {
+            size += 40 + label.length();
+        }
+        return size;
+    }
+
     public Domain getParent() {
         final Label[] parts = this.parts;
         final int len = parts.length;
@@ -312,12 +352,40 @@ public class Domain implements Serializable {
         return new Domain(newParts);
     }
 
+    /**
+     * Replace a suffix of this domain with another, as a DNAME record does.
+     *
+     * @param suffix the suffix to replace, of which this domain must be a subdomain
+     * @param replacement the domain to put in its place
+     * @return the new domain
+     * @throws IllegalArgumentException if this domain is not a subdomain of {@code suffix}, or if the new domain would
+     *      be longer than 255 bytes
+     */
+    public Domain replaceSuffix(Domain suffix, Domain replacement) throws IllegalArgumentException {
+        if (! isSubdomainOf(suffix)) {
+            throw new IllegalArgumentException("Domain " + this + " is not a subdomain of " + suffix);
+        }
+        final int keep = parts.length - suffix.parts.length;
+        final Label[] replacementParts = replacement.parts;
+        final Label[] newParts = new Label[keep + replacementParts.length];
+        System.arraycopy(parts, 0, newParts, 0, keep);
+        System.arraycopy(replacementParts, 0, newParts, keep, replacementParts.length);
+        int length = 1;
+        for (Label label : newParts) {
+            length += 1 + label.length();
+        }
+        if (length > 255) {
+            throw new IllegalArgumentException("Domain would be too long");
+        }
+        return newParts.length == 0 ? ROOT : new Domain(newParts);
+    }
+
     public boolean isSubdomainOf(Domain parent) {
         final Label[] parts = this.parts;
         final int len = parts.length;
         final Label[] parentParts = parent.parts;
         final int parentLen = parentParts.length;
-        if (len > parentLen) {
+        if (len < parentLen) {
             return false;
         } else if (len == parentLen) {
             return Arrays.equals(parts, parentParts);
@@ -346,7 +414,7 @@ public class Domain implements Serializable {
             case 'K': case 'L': case 'M': case 'N': case 'O': case 'P': case 'Q': case 'R': case 'S': case 'T':
             case 'U': case 'V': case 'W': case 'X': case 'Y': case 'Z':
             
-            case '-': {
+            case '-': case '_': {
                 return true;
             }
         }
@@ -363,7 +431,10 @@ public class Domain implements Serializable {
 
             case 'A': case 'B': case 'C': case 'D': case 'E': case 'F': case 'G': case 'H': case 'I': case 'J':
             case 'K': case 'L': case 'M': case 'N': case 'O': case 'P': case 'Q': case 'R': case 'S': case 'T':
-            case 'U': case 'V': case 'W': case 'X': case 'Y': case 'Z': {
+            case 'U': case 'V': case 'W': case 'X': case 'Y': case 'Z':
+
+            // the service and protocol labels of SRV owner names
+            case '_': {
                 return true;
             }
         }
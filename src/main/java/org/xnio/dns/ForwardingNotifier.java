@@ -0,0 +1,57 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+
+/**
+ * A notifier which passes the outcome of a future on to a future result.
+ *
+ * @param <T> the result type
+ */
+final class ForwardingNotifier<T> extends IoFuture.HandlingNotifier<T, FutureResult<T>> {
+
+    private static final ForwardingNotifier<Object> INSTANCE = new ForwardingNotifier<Object>();
+
+    private ForwardingNotifier() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> ForwardingNotifier<T> get() {
+        return (ForwardingNotifier<T>) INSTANCE;
+    }
+
+    public void handleCancelled(final FutureResult<T> result) {
+        result.setCancelled();
+    }
+
+    public void handleFailed(final IOException exception, final FutureResult<T> result) {
+        result.setException(exception);
+    }
+
+    public void handleDone(final T value, final FutureResult<T> result) {
+        result.setResult(value);
+    }
+}
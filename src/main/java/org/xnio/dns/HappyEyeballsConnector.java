@@ -0,0 +1,497 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.xnio.Cancellable;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelSource;
+import org.xnio.Connector;
+import org.xnio.FailedIoFuture;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+import org.xnio.channels.BoundChannel;
+
+/**
+ * A named connector which connects by the Happy Eyeballs algorithm of RFC 8305.  The AAAA and A records of the host
+ * are looked up at the same time.  Connection attempts start as soon as the records of the preferred family arrive,
+ * or shortly after the other records arrive if those of the preferred family are still outstanding; addresses which
+ * arrive later join the race.  The addresses are tried alternating between the two families, each attempt starting
+ * when the previous one fails or after a short delay, whichever comes first.  The first connection to be established
+ * wins; the other attempts are cancelled and any other connection which completes is closed.
+ * <p>
+ * The family of the winning address is remembered for each host for ten minutes, and the next connection to that host
+ * prefers that family.  Otherwise IPv6 is preferred.
+ * <p>
+ * The open and bind listeners are only called for the winning connection.
+ *
+ * @param <T> the channel type
+ */
+public final class HappyEyeballsConnector<T extends Channel> implements NamedConnector<T> {
+
+    private static final int DEFAULT_ATTEMPT_DELAY = 250;
+    private static final int DEFAULT_RESOLUTION_DELAY = 50;
+    private static final long PREFERENCE_LIFETIME = TimeUnit.MINUTES.toMillis(10L);
+    private static final int MAX_PREFERENCES = 1024;
+
+    private final Connector<InetSocketAddress, T> connector;
+    private final Resolver resolver;
+    private final Executor executor;
+    private final TimingWheel timingWheel;
+    private final int attemptDelay;
+    private final int resolutionDelay;
+    private final ConcurrentMap<String, Preference> preferences = new ConcurrentHashMap<String, Preference>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param connector the connector used to connect to each address
+     * @param resolver the resolver used to look up host names
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param timingWheel the timing wheel used to stagger connection attempts
+     */
+    public HappyEyeballsConnector(final Connector<InetSocketAddress, T> connector, final Resolver resolver, final Executor executor, final TimingWheel timingWheel) {
+        this(connector, resolver, executor, DEFAULT_ATTEMPT_DELAY, DEFAULT_RESOLUTION_DELAY, timingWheel);
+    }
+
+    /**
+     * Construct a new instance.  The {@link DnsOptions#CONNECT_ATTEMPT_DELAY} and
+     * {@link DnsOptions#CONNECT_RESOLUTION_DELAY} options are recognized.
+     *
+     * @param connector the connector used to connect to each address
+     * @param resolver the resolver used to look up host names
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param optionMap the connector options
+     * @param timingWheel the timing wheel used to stagger connection attempts
+     */
+    public HappyEyeballsConnector(final Connector<InetSocketAddress, T> connector, final Resolver resolver, final Executor executor, final OptionMap optionMap, final TimingWheel timingWheel) {
+        this(connector, resolver, executor, optionMap.get(DnsOptions.CONNECT_ATTEMPT_DELAY, DEFAULT_ATTEMPT_DELAY), optionMap.get(DnsOptions.CONNECT_RESOLUTION_DELAY, DEFAULT_RESOLUTION_DELAY), timingWheel);
+    }
+
+    private HappyEyeballsConnector(final Connector<InetSocketAddress, T> connector, final Resolver resolver, final Executor executor, final int attemptDelay, final int resolutionDelay, final TimingWheel timingWheel) {
+        if (attemptDelay < 1 || resolutionDelay < 0) {
+            throw new IllegalArgumentException("Invalid connection delays");
+        }
+        this.connector = connector;
+        this.resolver = resolver;
+        this.executor = executor;
+        this.timingWheel = timingWheel;
+        this.attemptDelay = attemptDelay;
+        this.resolutionDelay = resolutionDelay;
+    }
+
+    /** {@inheritDoc} */
+    public IoFuture<T> connectTo(final InetSocketAddress dest, final ChannelListener<? super T> openListener, final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener) {
+        return connector.connectTo(dest, openListener, bindListener);
+    }
+
+    /** {@inheritDoc} */
+    public IoFuture<T> connectTo(final String hostName, final int port, final ChannelListener<? super T> openListener, final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener) {
+        if (isLiteral(hostName)) {
+            final InetAddress address;
+            try {
+                address = InetAddress.getByName(hostName);
+            } catch (UnknownHostException e) {
+                return new FailedIoFuture<T>(e);
+            }
+            return connector.connectTo(new InetSocketAddress(address, port), openListener, bindListener);
+        }
+        final Domain domain;
+        try {
+            domain = Domain.fromString(hostName);
+        } catch (IllegalArgumentException e) {
+            final UnknownHostException exception = new UnknownHostException(hostName);
+            exception.initCause(e);
+            return new FailedIoFuture<T>(exception);
+        }
+        final FutureResult<T> futureResult = new FutureResult<T>(executor);
+        final Race race = new Race(hostName, port, bindListener, futureResult);
+        futureResult.addCancelHandler(race);
+        final IoFuture<List<Inet6Address>> futureInet6 = resolver.resolveAllInet6(domain);
+        final IoFuture<List<Inet4Address>> futureInet4 = resolver.resolveAllInet4(domain);
+        race.addResolution(futureInet6);
+        race.addResolution(futureInet4);
+        futureInet6.addNotifier(race.new ResolutionNotifier<Inet6Address>(), Boolean.TRUE);
+        futureInet4.addNotifier(race.new ResolutionNotifier<Inet4Address>(), Boolean.FALSE);
+        final IoFuture<T> ioFuture = futureResult.getIoFuture();
+        if (openListener != null) {
+            ioFuture.addNotifier(IoUtils.<T>channelListenerNotifier(), openListener);
+        }
+        return ioFuture;
+    }
+
+    /** {@inheritDoc} */
+    public ChannelSource<T> createChannelSource(final InetSocketAddress dest) {
+        return connector.createChannelSource(dest);
+    }
+
+    /** {@inheritDoc} */
+    public ChannelSource<T> createChannelSource(final String hostName, final int port) {
+        return new ChannelSource<T>() {
+            public IoFuture<? extends T> open(final ChannelListener<? super T> openListener) {
+                return connectTo(hostName, port, openListener, null);
+            }
+        };
+    }
+
+    static boolean isLiteral(final String hostName) {
+        if (hostName.indexOf(':') != -1) {
+            return true;
+        }
+        for (int i = 0; i < hostName.length(); i ++) {
+            final char ch = hostName.charAt(i);
+            if ((ch < '0' || ch > '9') && ch != '.') {
+                return false;
+            }
+        }
+        return hostName.length() > 0;
+    }
+
+    private boolean prefersInet6(final String hostName) {
+        final Preference preference = preferences.get(hostName);
+        if (preference == null) {
+            return true;
+        }
+        if (preference.expiresAt <= timingWheel.currentTimeMillis()) {
+            preferences.remove(hostName, preference);
+            return true;
+        }
+        return preference.inet6;
+    }
+
+    private void remember(final String hostName, final boolean inet6) {
+        if (preferences.size() >= MAX_PREFERENCES && ! preferences.containsKey(hostName)) {
+            // forget an arbitrary host
+            final Iterator<String> iterator = preferences.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        preferences.put(hostName, new Preference(inet6, timingWheel.currentTimeMillis() + PREFERENCE_LIFETIME));
+    }
+
+    private static final class Preference {
+        final boolean inet6;
+        final long expiresAt;
+
+        Preference(final boolean inet6, final long expiresAt) {
+            this.inet6 = inet6;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One connection race to a host.
+     */
+    private final class Race implements Cancellable {
+        private final String hostName;
+        private final int port;
+        private final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener;
+        private final FutureResult<T> result;
+        private final boolean preferInet6;
+        // guarded by this
+        private final Deque<InetAddress> inet6 = new ArrayDeque<InetAddress>();
+        private final Deque<InetAddress> inet4 = new ArrayDeque<InetAddress>();
+        private final List<IoFuture<?>> resolutions = new ArrayList<IoFuture<?>>(2);
+        private final List<Attempt> attempts = new ArrayList<Attempt>();
+        private boolean inet6Resolved;
+        private boolean inet4Resolved;
+        private boolean started;
+        private boolean lastInet6;
+        private boolean finished;
+        private int running;
+        private IOException lastException;
+        private TimingWheel.Key timerKey;
+
+        Race(final String hostName, final int port, final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener, final FutureResult<T> result) {
+            this.hostName = hostName;
+            this.port = port;
+            this.bindListener = bindListener;
+            this.result = result;
+            preferInet6 = prefersInet6(hostName);
+            // so that the first address is of the preferred family
+            lastInet6 = ! preferInet6;
+        }
+
+        synchronized void addResolution(final IoFuture<?> resolution) {
+            resolutions.add(resolution);
+        }
+
+        void resolved(final boolean isInet6, final List<? extends InetAddress> addresses, final IOException exception) {
+            final boolean startNow;
+            boolean delay = false;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                if (isInet6) {
+                    inet6Resolved = true;
+                    inet6.addAll(addresses);
+                } else {
+                    inet4Resolved = true;
+                    inet4.addAll(addresses);
+                }
+                if (exception != null && lastException == null) {
+                    lastException = exception;
+                }
+                if (! started) {
+                    if (isInet6 == preferInet6 && ! addresses.isEmpty() || inet6Resolved && inet4Resolved) {
+                        startNow = true;
+                    } else if (! addresses.isEmpty()) {
+                        // give the preferred family a moment to arrive
+                        startNow = false;
+                        delay = true;
+                    } else {
+                        startNow = false;
+                    }
+                } else {
+                    // without a pending delay, a new address may be tried at once, or the race may be lost
+                    startNow = timerKey == null;
+                }
+            }
+            if (delay) {
+                schedule(resolutionDelay);
+            } else if (startNow) {
+                next();
+            }
+        }
+
+        private void schedule(final int delay) {
+            final Delay task = new Delay();
+            synchronized (this) {
+                if (timerKey != null) {
+                    timerKey.cancel();
+                }
+                timerKey = task.key = timingWheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Start the next connection attempt, if there is an address left to try; fail the race if there is nothing
+         * left to wait for.
+         */
+        void next() {
+            final InetAddress address;
+            final Attempt attempt;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                started = true;
+                if (timerKey != null) {
+                    timerKey.cancel();
+                    timerKey = null;
+                }
+                final boolean useInet6 = inet4.isEmpty() || ! inet6.isEmpty() && ! lastInet6;
+                address = useInet6 ? inet6.poll() : inet4.poll();
+                if (address == null) {
+                    if (running == 0 && inet6Resolved && inet4Resolved) {
+                        finished = true;
+                        attempt = null;
+                    } else {
+                        // wait for an attempt to finish or for more addresses
+                        return;
+                    }
+                } else {
+                    lastInet6 = useInet6;
+                    running ++;
+                    attempt = new Attempt(useInet6);
+                    attempts.add(attempt);
+                }
+            }
+            if (attempt == null) {
+                final IOException exception = lastException;
+                result.setException(exception == null ? new UnknownHostException(hostName) : exception);
+                return;
+            }
+            schedule(attemptDelay);
+            final IoFuture<T> futureChannel = connector.connectTo(new InetSocketAddress(address, port), null, attempt);
+            attempt.future = futureChannel;
+            futureChannel.addNotifier(attempt, null);
+        }
+
+        void won(final Attempt winner, final T channel) {
+            final List<Attempt> losers;
+            final List<IoFuture<?>> resolutions;
+            synchronized (this) {
+                if (finished) {
+                    // a loser which connected anyway
+                    IoUtils.safeClose(channel);
+                    return;
+                }
+                finished = true;
+                if (timerKey != null) {
+                    timerKey.cancel();
+                    timerKey = null;
+                }
+                losers = new ArrayList<Attempt>(attempts);
+                losers.remove(winner);
+                resolutions = new ArrayList<IoFuture<?>>(this.resolutions);
+            }
+            for (Attempt loser : losers) {
+                loser.cancel();
+            }
+            for (IoFuture<?> resolution : resolutions) {
+                resolution.cancel();
+            }
+            remember(hostName, winner.inet6);
+            final BoundChannel<InetSocketAddress> boundChannel = winner.boundChannel;
+            if (bindListener != null && boundChannel != null) {
+                bindListener.handleEvent(boundChannel);
+            }
+            if (! result.setResult(channel)) {
+                // cancelled meanwhile
+                IoUtils.safeClose(channel);
+            }
+        }
+
+        void lost(final IOException exception) {
+            synchronized (this) {
+                running --;
+                if (exception != null) {
+                    lastException = exception;
+                }
+                if (finished) {
+                    return;
+                }
+            }
+            // don't wait for the timer
+            next();
+        }
+
+        public Race cancel() {
+            final List<Attempt> attempts;
+            final List<IoFuture<?>> resolutions;
+            synchronized (this) {
+                if (finished) {
+                    return this;
+                }
+                finished = true;
+                if (timerKey != null) {
+                    timerKey.cancel();
+                    timerKey = null;
+                }
+                attempts = new ArrayList<Attempt>(this.attempts);
+                resolutions = new ArrayList<IoFuture<?>>(this.resolutions);
+            }
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+            for (IoFuture<?> resolution : resolutions) {
+                resolution.cancel();
+            }
+            result.setCancelled();
+            return this;
+        }
+
+        /**
+         * The delay before the next attempt; it is ignored if it was replaced by another.
+         */
+        final class Delay implements Runnable {
+            TimingWheel.Key key;
+
+            public void run() {
+                synchronized (Race.this) {
+                    if (timerKey != key) {
+                        return;
+                    }
+                    timerKey = null;
+                }
+                // connecting must not hold up the timer thread
+                executor.execute(new Runnable() {
+                    public void run() {
+                        next();
+                    }
+                });
+            }
+        }
+
+        final class ResolutionNotifier<A extends InetAddress> extends IoFuture.HandlingNotifier<List<A>, Boolean> {
+            public void handleCancelled(final Boolean isInet6) {
+                resolved(isInet6.booleanValue(), new ArrayList<A>(), null);
+            }
+
+            public void handleFailed(final IOException exception, final Boolean isInet6) {
+                resolved(isInet6.booleanValue(), new ArrayList<A>(), exception);
+            }
+
+            public void handleDone(final List<A> addresses, final Boolean isInet6) {
+                resolved(isInet6.booleanValue(), addresses, null);
+            }
+        }
+
+        /**
+         * One connection attempt, which is also the bind listener of its channel.
+         */
+        final class Attempt extends IoFuture.HandlingNotifier<T, Void> implements ChannelListener<BoundChannel<InetSocketAddress>> {
+            final boolean inet6;
+            volatile IoFuture<T> future;
+            volatile BoundChannel<InetSocketAddress> boundChannel;
+
+            Attempt(final boolean inet6) {
+                this.inet6 = inet6;
+            }
+
+            public void handleEvent(final BoundChannel<InetSocketAddress> channel) {
+                boundChannel = channel;
+            }
+
+            void cancel() {
+                final IoFuture<T> future = this.future;
+                if (future != null) {
+                    future.cancel();
+                }
+            }
+
+            public void handleCancelled(final Void attachment) {
+                lost(null);
+            }
+
+            public void handleFailed(final IOException exception, final Void attachment) {
+                lost(exception);
+            }
+
+            public void handleDone(final T channel, final Void attachment) {
+                won(this, channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.xnio.Cancellable;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+
+/**
+ * A resolver which races a query across several upstream servers.  The query is first sent to the best server
+ * according to a {@link ServerSelector}; if no usable reply has arrived once the hedge delay has passed, the query is
+ * also sent to the next best server, and so on up to the configured number of hedges.  The first usable reply wins and
+ * the queries which are still outstanding are cancelled.
+ * <p>
+ * The hedge delay tracks a high percentile of the recently observed reply latencies across all servers, so only the
+ * slowest few percent of queries are ever hedged.  A reply with a result code of {@link ResultCode#SERVER_FAILURE},
+ * {@link ResultCode#REFUSED} or {@link ResultCode#FORMAT_ERROR} is not usable; it causes the next server to be tried
+ * right away, and it is only returned if no server does better.
+ */
+public final class HedgingResolver extends AbstractResolver {
+
+    private static final int SAMPLE_COUNT = 256;
+    private static final int RECALCULATE_INTERVAL = 64;
+
+    private final NetworkResolver networkResolver;
+    private final List<InetSocketAddress> servers;
+    private final ServerSelector serverSelector;
+    private final TimingWheel timingWheel;
+    private final Executor executor;
+    private final int percentile;
+    private final int maxHedges;
+    private final long minDelay;
+    private final long maxDelay;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLE_COUNT);
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private volatile long hedgeDelay;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param networkResolver the network resolver to use to reach the servers
+     * @param servers the servers to race
+     * @param serverSelector the selector which decides the order in which servers are tried
+     * @param timingWheel the timing wheel to use for the hedge timers
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param percentile the latency percentile after which a hedge is sent (1-99)
+     * @param maxHedges the maximum number of extra servers to send a query to
+     * @param minDelay the smallest hedge delay
+     * @param maxDelay the largest hedge delay, which is also used until enough latencies have been observed
+     * @param unit the time unit of the delays
+     */
+    public HedgingResolver(final NetworkResolver networkResolver, final List<InetSocketAddress> servers, final ServerSelector serverSelector, final TimingWheel timingWheel, final Executor executor, final int percentile, final int maxHedges, final long minDelay, final long maxDelay, final TimeUnit unit) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers given");
+        }
+        if (percentile < 1 || percentile > 99) {
+            throw new IllegalArgumentException("Percentile must be between 1 and 99");
+        }
+        if (maxHedges < 0 || minDelay < 0L || maxDelay < minDelay) {
+            throw new IllegalArgumentException("Invalid hedge limits");
+        }
+        this.networkResolver = networkResolver;
+        this.servers = new ArrayList<InetSocketAddress>(servers);
+        this.serverSelector = serverSelector;
+        this.timingWheel = timingWheel;
+        this.executor = executor;
+        this.percentile = percentile;
+        this.maxHedges = maxHedges;
+        this.minDelay = unit.toNanos(minDelay);
+        this.maxDelay = unit.toNanos(maxDelay);
+        hedgeDelay = this.maxDelay;
+    }
+
+    /**
+     * Construct a new instance which sends at most one hedge, after the 95th percentile of the observed latency
+     * (between 10 and 1000 milliseconds).
+     *
+     * @param networkResolver the network resolver to use to reach the servers
+     * @param servers the servers to race
+     * @param executor the executor to use to execute asynchronous tasks
+     */
+    public HedgingResolver(final NetworkResolver networkResolver, final List<InetSocketAddress> servers, final Executor executor) {
+        this(networkResolver, servers, new ServerSelector(networkResolver, executor), TimingWheel.getDefault(), executor, 95, 1, 10L, 1000L, TimeUnit.MILLISECONDS);
+    }
+
+    /** {@inheritDoc} */
+    public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+        final FutureResult<Answer> result = new FutureResult<Answer>(executor);
+        final Race race = new Race(name, rrClass, rrType, flags, result);
+        result.addCancelHandler(race);
+        race.start();
+        return result.getIoFuture();
+    }
+
+    private void recordLatency(final long nanos) {
+        final int count = sampleCount.getAndIncrement();
+        samples.set(count & (SAMPLE_COUNT - 1), nanos);
+        if ((count + 1) % RECALCULATE_INTERVAL == 0) {
+            final int n = Math.min(count + 1, SAMPLE_COUNT);
+            final long[] sorted = new long[n];
+            for (int i = 0; i < n; i ++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            final long delay = sorted[Math.min(n - 1, n * percentile / 100)];
+            hedgeDelay = Math.max(minDelay, Math.min(maxDelay, delay));
+        }
+    }
+
+    private static boolean isUsable(final Answer answer) {
+        final ResultCode resultCode = answer.getResultCode();
+        return resultCode != ResultCode.SERVER_FAILURE && resultCode != ResultCode.REFUSED && resultCode != ResultCode.FORMAT_ERROR;
+    }
+
+    /**
+     * The state of one raced query.  All state changes happen while holding the monitor of this object.
+     */
+    private final class Race implements Cancellable, Runnable {
+        private final Domain name;
+        private final RRClass rrClass;
+        private final RRType rrType;
+        private final Set<ResolverFlag> flags;
+        private final FutureResult<Answer> result;
+        private final List<InetSocketAddress> remaining = new ArrayList<InetSocketAddress>(servers);
+        private final List<IoFuture<Answer>> outstanding = new ArrayList<IoFuture<Answer>>();
+        private int hedges;
+        private boolean done;
+        private Answer fallbackAnswer;
+        private IOException fallbackException;
+        private TimingWheel.Key timerKey;
+
+        Race(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags, final FutureResult<Answer> result) {
+            this.name = name;
+            this.rrClass = rrClass;
+            this.rrType = rrType;
+            this.flags = flags;
+            this.result = result;
+        }
+
+        void start() {
+            synchronized (this) {
+                launch();
+            }
+        }
+
+        // hedge timer
+        public void run() {
+            synchronized (this) {
+                timerKey = null;
+                if (done) {
+                    return;
+                }
+            }
+            // timer tasks must not block, so the hedge is sent by the executor
+            executor.execute(new Runnable() {
+                public void run() {
+                    hedge();
+                }
+            });
+        }
+
+        void hedge() {
+            synchronized (this) {
+                if (! done && hedges < maxHedges) {
+                    hedges ++;
+                    launch();
+                }
+            }
+        }
+
+        private void launch() {
+            assert Thread.holdsLock(this);
+            if (remaining.isEmpty()) {
+                return;
+            }
+            final InetSocketAddress server = serverSelector.select(remaining);
+            remaining.remove(server);
+            final long start = System.nanoTime();
+            final IoFuture<Answer> future = networkResolver.resolverFor(server).resolve(name, rrClass, rrType, flags);
+            outstanding.add(future);
+            if (! remaining.isEmpty() && hedges < maxHedges) {
+                timerKey = timingWheel.schedule(this, hedgeDelay, TimeUnit.NANOSECONDS);
+            }
+            future.addNotifier(new IoFuture.HandlingNotifier<Answer, Race>() {
+                public void handleCancelled(final Race race) {
+                    race.finished(future, server, null, null, start);
+                }
+
+                public void handleFailed(final IOException exception, final Race race) {
+                    race.finished(future, server, null, exception, start);
+                }
+
+                public void handleDone(final Answer answer, final Race race) {
+                    race.finished(future, server, answer, null, start);
+                }
+            }, this);
+        }
+
+        void finished(final IoFuture<Answer> future, final InetSocketAddress server, final Answer answer, final IOException exception, final long start) {
+            final long elapsed = System.nanoTime() - start;
+            final List<IoFuture<Answer>> losers;
+            synchronized (this) {
+                outstanding.remove(future);
+                if (done) {
+                    return;
+                }
+                if (answer != null && isUsable(answer)) {
+                    serverSelector.recordRtt(server, elapsed, TimeUnit.NANOSECONDS);
+                    recordLatency(elapsed);
+                    done = true;
+                    losers = new ArrayList<IoFuture<Answer>>(outstanding);
+                    outstanding.clear();
+                    cancelTimer();
+                } else {
+                    if (answer != null) {
+                        // a quick error is not a timeout; it must not slow down retransmissions to the server
+                        serverSelector.recordError(server);
+                        fallbackAnswer = answer;
+                    } else if (exception != null) {
+                        serverSelector.recordTimeout(server);
+                        fallbackException = exception;
+                    }
+                    if (! remaining.isEmpty()) {
+                        // fail over right away; this does not count as a hedge
+                        cancelTimer();
+                        launch();
+                        return;
+                    }
+                    if (! outstanding.isEmpty()) {
+                        // someone else may still answer
+                        return;
+                    }
+                    done = true;
+                    cancelTimer();
+                    losers = null;
+                }
+            }
+            if (losers != null) {
+                for (IoFuture<Answer> loser : losers) {
+                    loser.cancel();
+                }
+                result.setResult(answer);
+            } else if (fallbackAnswer != null) {
+                result.setResult(fallbackAnswer);
+            } else if (fallbackException != null) {
+                result.setException(fallbackException);
+            } else {
+                result.setCancelled();
+            }
+        }
+
+        private void cancelTimer() {
+            assert Thread.holdsLock(this);
+            if (timerKey != null) {
+                timerKey.cancel();
+                timerKey = null;
+            }
+        }
+
+        public Race cancel() {
+            final List<IoFuture<Answer>> futures;
+            synchronized (this) {
+                futures = new ArrayList<IoFuture<Answer>>(outstanding);
+                remaining.clear();
+                cancelTimer();
+            }
+            for (IoFuture<Answer> future : futures) {
+                future.cancel();
+            }
+            return this;
+        }
+    }
+}
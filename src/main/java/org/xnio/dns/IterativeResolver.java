@@ -25,32 +25,118 @@ package org.xnio.dns;
 import org.xnio.IoFuture;
 import org.xnio.FinishedIoFuture;
 import org.xnio.FutureResult;
-import org.xnio.dns.record.NsRecord;
-import org.xnio.dns.record.ARecord;
-import org.xnio.dns.record.AaaaRecord;
+import org.xnio.OptionMap;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Set;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 /**
  * A resolver which queries servers iteratively until the complete answer is acquired.
+ * <p>
+ * Every referral is remembered in a delegation cache, which maps each zone to its name servers and their addresses
+ * for as long as their TTLs allow.  A question about a name under a known zone goes straight to the servers of the
+ * closest enclosing zone.  When no zone is known, the name servers of the parent domain are asked of the local
+ * resolver if there is one; otherwise resolution starts at the root servers.  The built-in root hints are used until
+ * the root zone has been primed, that is, until the current root servers have been learned from the root zone itself.
+ * Servers which repeatedly fail to answer are held down for a while.
+ * <p>
+ * A referral to name servers without glue is followed by resolving the addresses of several of those servers in
+ * parallel, and continuing with the first addresses found.  An alias is followed by restarting the resolution at its
+ * target, and the aliases are prepended to the final answer.  Every query sent on behalf of one resolution, including
+ * those to find name server addresses, counts against a per-resolution budget, so that no question can cause an
+ * unbounded amount of work.
  */
 public final class IterativeResolver extends AbstractResolver {
 
-    private final NetworkResolver networkResolver;
+    private static final int DEFAULT_DELEGATION_CACHE_SIZE = 1024;
+    private static final int DEFAULT_QUERY_BUDGET = 64;
+    private static final int MAX_ALIASES = 8;
+    private static final int MAX_DEPTH = 4;
+    // name servers whose addresses are resolved at once for a referral without glue
+    private static final int MAX_GLUELESS = 3;
+    // authoritative servers are asked for what they hold, not to recurse on our behalf
+    private static final Set<ResolverFlag> ITERATIVE_FLAGS = Collections.unmodifiableSet(EnumSet.of(ResolverFlag.NO_RECURSION));
+
     private final Resolver localResolver;
     private final Executor executor;
+    private final ServerSelector serverSelector;
+    private final DelegationCache delegationCache;
+    private final DelegationCache.Delegation rootHints;
+    private final int queryBudget;
+    private final AtomicBoolean priming = new AtomicBoolean();
 
     public IterativeResolver(final NetworkResolver networkResolver, final Resolver localResolver, final Executor executor) {
-        this.networkResolver = networkResolver;
+        this(new ServerSelector(networkResolver, executor), localResolver, executor);
+    }
+
+    /**
+     * Construct a new instance which starts from the root servers.
+     *
+     * @param serverSelector the selector used to choose among the name servers of a domain
+     * @param executor the executor to use to execute asynchronous tasks
+     */
+    public IterativeResolver(final ServerSelector serverSelector, final Executor executor) {
+        this(serverSelector, null, executor);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param serverSelector the selector used to choose among the name servers of a domain
+     * @param localResolver the resolver to use to find the name servers of parent domains, or {@code null} to start
+     *      from the root servers
+     * @param executor the executor to use to execute asynchronous tasks
+     */
+    public IterativeResolver(final ServerSelector serverSelector, final Resolver localResolver, final Executor executor) {
+        this(serverSelector, localResolver, executor, DEFAULT_DELEGATION_CACHE_SIZE, TimingWheel.getDefault());
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param serverSelector the selector used to choose among the name servers of a domain
+     * @param localResolver the resolver to use to find the name servers of parent domains, or {@code null} to start
+     *      from the root servers
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param delegationCacheSize the maximum number of zones whose name servers are remembered
+     * @param timingWheel the timing wheel used to expire remembered zones
+     */
+    public IterativeResolver(final ServerSelector serverSelector, final Resolver localResolver, final Executor executor, final int delegationCacheSize, final TimingWheel timingWheel) {
+        this(serverSelector, localResolver, executor, delegationCacheSize, DEFAULT_QUERY_BUDGET, timingWheel);
+    }
+
+    /**
+     * Construct a new instance.  The {@link DnsOptions#DELEGATION_CACHE_SIZE} and
+     * {@link DnsOptions#ITERATIVE_QUERY_BUDGET} options are recognized.
+     *
+     * @param serverSelector the selector used to choose among the name servers of a domain
+     * @param localResolver the resolver to use to find the name servers of parent domains, or {@code null} to start
+     *      from the root servers
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param optionMap the resolver options
+     * @param timingWheel the timing wheel used to expire remembered zones
+     */
+    public IterativeResolver(final ServerSelector serverSelector, final Resolver localResolver, final Executor executor, final OptionMap optionMap, final TimingWheel timingWheel) {
+        this(serverSelector, localResolver, executor, optionMap.get(DnsOptions.DELEGATION_CACHE_SIZE, DEFAULT_DELEGATION_CACHE_SIZE), optionMap.get(DnsOptions.ITERATIVE_QUERY_BUDGET, DEFAULT_QUERY_BUDGET), timingWheel);
+    }
+
+    private IterativeResolver(final ServerSelector serverSelector, final Resolver localResolver, final Executor executor, final int delegationCacheSize, final int queryBudget, final TimingWheel timingWheel) {
+        if (queryBudget < 1) {
+            throw new IllegalArgumentException("Query budget must be positive");
+        }
         this.localResolver = localResolver;
         this.executor = executor;
+        this.serverSelector = serverSelector;
+        this.queryBudget = queryBudget;
+        delegationCache = new DelegationCache(delegationCacheSize, timingWheel);
+        rootHints = delegationCache.hints(RootHints.NAME_SERVERS, RootHints.ADDRESSES);
     }
 
     public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
@@ -60,70 +146,295 @@ public final class IterativeResolver extends AbstractResolver {
             );
         }
         final FutureResult<Answer> futureResult = new FutureResult<Answer>(executor);
-        final IoFuture<Answer> futureParentNs = localResolver.resolve(name.getParent(), RRClass.IN, RRType.NS);
-        futureParentNs.addNotifier(new IoFuture.HandlingNotifier<Answer, FutureResult<Answer>>() {
-            // todo configurable?
-            private final AtomicInteger ttl = new AtomicInteger(16);
+        new Resolution(name, rrClass, rrType, new AtomicInteger(queryBudget), 0).start(futureResult);
+        return futureResult.getIoFuture();
+    }
+
+    private DelegationCache.Delegation getRoot() {
+        final DelegationCache.Delegation root = delegationCache.get(Domain.ROOT);
+        if (root == null) {
+            prime();
+        } else if (! delegationCache.getServers(root).isEmpty()) {
+            return root;
+        }
+        return rootHints;
+    }
 
-            public void handleCancelled(final FutureResult<Answer> result) {
+    /**
+     * Learn the current root servers from the root zone, unless that is already in progress.
+     */
+    private void prime() {
+        if (! priming.compareAndSet(false, true)) {
+            return;
+        }
+        final IoFuture<Answer> futureAnswer = serverSelector.resolverFor(rootHints.addresses).resolve(Domain.ROOT, RRClass.IN, RRType.NS, ITERATIVE_FLAGS);
+        futureAnswer.addNotifier(new IoFuture.HandlingNotifier<Answer, Void>() {
+            public void handleCancelled(final Void attachment) {
+                priming.set(false);
+            }
+
+            public void handleFailed(final IOException exception, final Void attachment) {
+                priming.set(false);
+            }
+
+            public void handleDone(final Answer answer, final Void attachment) {
+                if (answer.getResultCode() == ResultCode.NOERROR) {
+                    delegationCache.harvest(answer, Domain.ROOT, Domain.ROOT);
+                }
+                priming.set(false);
+            }
+        }, null);
+    }
+
+    /**
+     * The state of one resolution, which is notified of each reply in turn.
+     */
+    private final class Resolution extends IoFuture.HandlingNotifier<Answer, FutureResult<Answer>> {
+        private final Domain name;
+        private final RRClass rrClass;
+        private final RRType rrType;
+        private final AtomicInteger budget;
+        private final int depth;
+        // replies arrive one at a time
+        private final AliasChain chain;
+        // the server asked last (null for the local resolver), the zone it serves, and its peers not yet asked
+        private volatile InetSocketAddress server;
+        private volatile Domain bailiwick = Domain.ROOT;
+        private volatile List<InetSocketAddress> untried;
+        private volatile boolean abandoned;
+
+        Resolution(final Domain name, final RRClass rrClass, final RRType rrType, final AtomicInteger budget, final int depth) {
+            this.name = name;
+            this.rrClass = rrClass;
+            this.rrType = rrType;
+            this.budget = budget;
+            this.depth = depth;
+            chain = new AliasChain(name, rrClass, rrType, MAX_ALIASES);
+        }
+
+        void start(final FutureResult<Answer> result) {
+            if (abandoned) {
                 result.setCancelled();
+                return;
+            }
+            final Domain target = chain.getTarget();
+            DelegationCache.Delegation closest = delegationCache.findClosest(target);
+            if (closest == null) {
+                if (localResolver != null) {
+                    server = null;
+                    bailiwick = Domain.ROOT;
+                    final IoFuture<Answer> futureParentNs = localResolver.resolve(target.getParent(), RRClass.IN, RRType.NS);
+                    futureParentNs.addNotifier(this, result);
+                    result.addCancelHandler(futureParentNs);
+                    return;
+                }
+                closest = getRoot();
             }
+            // skip straight to the servers of the closest known zone
+            query(closest, result);
+        }
 
-            public void handleFailed(final IOException exception, final FutureResult<Answer> result) {
+        public void handleCancelled(final FutureResult<Answer> result) {
+            result.setCancelled();
+        }
+
+        public void handleFailed(final IOException exception, final FutureResult<Answer> result) {
+            final InetSocketAddress server = this.server;
+            if (server == null) {
+                result.setException(exception);
+                return;
+            }
+            delegationCache.recordFailure(Collections.singletonList(server));
+            if (untried.isEmpty()) {
                 result.setException(exception);
+            } else {
+                ask(result);
             }
+        }
 
-            public void handleDone(final Answer answer, final FutureResult<Answer> result) {
-                if (answer.getResultCode() != ResultCode.NOERROR) {
-                    // pass on the love
-                    result.setResult(answer);
+        public void handleDone(final Answer answer, final FutureResult<Answer> result) {
+            final InetSocketAddress server = this.server;
+            final ResultCode resultCode = answer.getResultCode();
+            if (server != null) {
+                if (resultCode == ResultCode.SERVER_FAILURE || resultCode == ResultCode.REFUSED) {
+                    lame(result);
                     return;
                 }
-                if (ttl.decrementAndGet() == 0) {
-                    result.setResult(Answer.builder().setHeaderInfo(name, rrClass, rrType, ResultCode.SERVER_FAILURE).create());
+                delegationCache.recordSuccess(Collections.singletonList(server));
+            }
+            if (resultCode != ResultCode.NOERROR) {
+                // pass on the love
+                finish(answer, result);
+                return;
+            }
+            if (server != null && ! answer.getAnswerRecords().isEmpty()) {
+                // got an answer!
+                answered(answer, result);
+                return;
+            }
+            // iteration needed...
+            final Domain bailiwick = this.bailiwick;
+            final DelegationCache.Delegation referral = delegationCache.harvest(answer, chain.getTarget(), bailiwick);
+            if (referral == null || server != null && (referral.zone.equals(bailiwick) || ! referral.zone.isSubdomainOf(bailiwick))) {
+                if (server == null) {
+                    // the local resolver knows no servers for the parent
+                    result.setResult(failure());
+                } else if (answer.getFlags().contains(Answer.Flag.AUTHORATIVE)) {
+                    // no deeper zone cut; the name exists but has no such records
+                    finish(answer, result);
+                } else {
+                    // a lame server, which is not authoritative for the zone it was named for
+                    lame(result);
+                }
+                return;
+            }
+            query(referral, result);
+        }
+
+        /**
+         * Give up on the server asked last, and ask the next one for the same zone.
+         */
+        private void lame(final FutureResult<Answer> result) {
+            delegationCache.recordFailure(Collections.singletonList(server));
+            if (untried.isEmpty()) {
+                result.setResult(failure());
+            } else {
+                ask(result);
+            }
+        }
+
+        void query(final DelegationCache.Delegation delegation, final FutureResult<Answer> result) {
+            final List<InetSocketAddress> serversToTry = delegationCache.getServers(delegation);
+            if (serversToTry.isEmpty()) {
+                if (delegation.addresses.isEmpty()) {
+                    resolveNameServers(delegation, result);
+                } else {
+                    result.setResult(failure());
                 }
-                final List<Record> answerRecords = answer.getAnswerRecords();
-                if (answerRecords.isEmpty()) {
-                    // iteration needed...
-                    final List<Record> additionalRecords = answer.getAdditionalRecords();
-                    final Map<Domain, InetAddress> possibleServers = new HashMap<Domain, InetAddress>();
-                    for (Record record : additionalRecords) {
-                        if (record instanceof ARecord) {
-                            possibleServers.put(record.getName(), ((ARecord)record).getAddress());
-                        } else if (record instanceof AaaaRecord) {
-                            possibleServers.put(record.getName(), ((AaaaRecord)record).getAddress());
+                return;
+            }
+            bailiwick = delegation.zone;
+            untried = new ArrayList<InetSocketAddress>(serversToTry);
+            ask(result);
+        }
+
+        /**
+         * Ask the preferred one of the untried servers, without recursion.
+         */
+        private void ask(final FutureResult<Answer> result) {
+            if (abandoned) {
+                result.setCancelled();
+                return;
+            }
+            if (budget.decrementAndGet() < 0) {
+                result.setResult(failure());
+                return;
+            }
+            final List<InetSocketAddress> untried = this.untried;
+            final InetSocketAddress server = serverSelector.select(untried);
+            untried.remove(server);
+            this.server = server;
+            final Resolver resolver = serverSelector.resolverFor(Collections.singletonList(server));
+            final IoFuture<Answer> recursion = resolver.resolve(chain.getTarget(), rrClass, rrType, ITERATIVE_FLAGS);
+            recursion.addNotifier(this, result);
+            result.addCancelHandler(recursion);
+        }
+
+        /**
+         * Stop this resolution at its next step, once another has made it unnecessary.
+         */
+        void abandon() {
+            abandoned = true;
+        }
+
+        /**
+         * Follow a referral without glue by resolving the addresses of several of its name servers at once.  The
+         * first addresses found are used; the rest are only added to the delegation cache.
+         */
+        private void resolveNameServers(final DelegationCache.Delegation delegation, final FutureResult<Answer> result) {
+            final List<Domain> nameServers = new ArrayList<Domain>(MAX_GLUELESS);
+            for (Domain nameServer : delegation.nameServers) {
+                // a server inside the zone cannot be found without glue
+                if (! nameServer.isSubdomainOf(delegation.zone) && nameServers.size() < MAX_GLUELESS) {
+                    nameServers.add(nameServer);
+                }
+            }
+            if (nameServers.isEmpty() || depth == MAX_DEPTH) {
+                result.setResult(failure());
+                return;
+            }
+            final AtomicInteger pending = new AtomicInteger(nameServers.size() << 1);
+            final AtomicBoolean proceeded = new AtomicBoolean();
+            final List<Resolution> lookups = new ArrayList<Resolution>(nameServers.size() << 1);
+            final List<IoFuture<Answer>> futureAddresses = new ArrayList<IoFuture<Answer>>(nameServers.size() << 1);
+            final IoFuture.HandlingNotifier<Answer, FutureResult<Answer>> notifier = new IoFuture.HandlingNotifier<Answer, FutureResult<Answer>>() {
+                public void handleCancelled(final FutureResult<Answer> result) {
+                    completed(result);
+                }
+
+                public void handleFailed(final IOException exception, final FutureResult<Answer> result) {
+                    completed(result);
+                }
+
+                public void handleDone(final Answer answer, final FutureResult<Answer> result) {
+                    final DelegationCache.Delegation updated = delegationCache.addAddresses(delegation, answer);
+                    if (updated != delegation && proceeded.compareAndSet(false, true)) {
+                        // the other lookups are no longer needed
+                        for (Resolution lookup : lookups) {
+                            lookup.abandon();
                         }
-                    }
-                    final List<InetAddress> serversToTry = new ArrayList<InetAddress>();
-                    for (Record record : answer.getAuthorityRecords()) {
-                        if (record instanceof NsRecord) {
-                            final NsRecord nsRecord = (NsRecord) record;
-                            if (name.isSubdomainOf(record.getName())) {
-                                // try that server next!
-                                final Domain server = nsRecord.getServer();
-                                // but first, get the IP...
-                                final InetAddress address = possibleServers.get(server);
-                                if (address != null) {
-                                    serversToTry.add(address);
-                                }
-                            }
+                        for (IoFuture<Answer> futureAddress : futureAddresses) {
+                            futureAddress.cancel();
                         }
+                        query(updated, result);
                     }
-                    if (serversToTry.isEmpty()) {
-                        result.setResult(Answer.builder().setHeaderInfo(name, rrClass, rrType, ResultCode.SERVER_FAILURE).create());
+                    completed(result);
+                }
+
+                private void completed(final FutureResult<Answer> result) {
+                    if (pending.decrementAndGet() == 0 && proceeded.compareAndSet(false, true)) {
+                        result.setResult(failure());
                     }
-                    // todo - use first server, but we should have a better algo
-                    final Resolver resolver = networkResolver.resolverFor(serversToTry.get(0));
-                    final IoFuture<Answer> recursion = resolver.resolve(name, rrClass, rrType);
-                    recursion.addNotifier(this, result);
-                    result.addCancelHandler(recursion);
-                } else {
-                    // got an answer!
-                    result.setResult(answer);
+                }
+            };
+            final List<FutureResult<Answer>> addressResults = new ArrayList<FutureResult<Answer>>(nameServers.size() << 1);
+            for (Domain nameServer : nameServers) {
+                for (RRType addressType : new RRType[] { RRType.A, RRType.AAAA }) {
+                    final FutureResult<Answer> addressResult = new FutureResult<Answer>(executor);
+                    lookups.add(new Resolution(nameServer, RRClass.IN, addressType, budget, depth + 1));
+                    addressResults.add(addressResult);
+                    futureAddresses.add(addressResult.getIoFuture());
                 }
             }
-        }, futureResult);
-        futureResult.addCancelHandler(futureParentNs);
-        return futureResult.getIoFuture();
+            // every lookup is known before any can finish and cancel the rest
+            for (int i = 0; i < lookups.size(); i ++) {
+                final IoFuture<Answer> futureAddress = futureAddresses.get(i);
+                futureAddress.addNotifier(notifier, result);
+                result.addCancelHandler(futureAddress);
+                lookups.get(i).start(addressResults.get(i));
+            }
+        }
+
+        /**
+         * Handle an answer with records, restarting at the target of any alias which does not lead to the records
+         * asked for.
+         */
+        private void answered(final Answer answer, final FutureResult<Answer> result) {
+            if (chain.follow(answer)) {
+                start(result);
+            } else if (chain.isBroken()) {
+                result.setResult(failure());
+            } else {
+                result.setResult(chain.merge(answer));
+            }
+        }
+
+        private void finish(final Answer answer, final FutureResult<Answer> result) {
+            result.setResult(chain.merge(answer));
+        }
+
+        private Answer failure() {
+            return Answer.builder().setHeaderInfo(name, rrClass, rrType, ResultCode.SERVER_FAILURE).create();
+        }
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xnio.dns;
+
+import java.util.Map;
+
+/**
+ * The management interface of a network resolver.  An instance for a resolver is given by
+ * {@link UdpNetworkResolver#getStatistics()} or {@link TcpNetworkResolver#getStatistics()}, and may be registered with
+ * an MBean server.
+ */
+public interface NetworkResolverMXBean {
+
+    /**
+     * Get the number of query messages sent, including retransmissions.
+     *
+     * @return the number of queries sent
+     */
+    long getQueriesSent();
+
+    /**
+     * Get the number of replies received which matched a query in flight.
+     *
+     * @return the number of replies received
+     */
+    long getRepliesReceived();
+
+    /**
+     * Get the number of queries which were sent again because no reply had arrived.
+     *
+     * @return the number of retransmissions
+     */
+    long getRetransmissions();
+
+    /**
+     * Get the number of queries which timed out.
+     *
+     * @return the number of timeouts
+     */
+    long getTimeouts();
+
+    /**
+     * Get the number of truncated replies received.
+     *
+     * @return the number of truncated replies
+     */
+    long getTruncations();
+
+    /**
+     * Get the number of query messages sent to each server, keyed by server address.
+     *
+     * @return the number of queries sent per server
+     */
+    Map<String, Long> getQueriesSentByServer();
+
+    /**
+     * Get the number of replies received from each server, keyed by server address.
+     *
+     * @return the number of replies received per server
+     */
+    Map<String, Long> getRepliesReceivedByServer();
+
+    /**
+     * Get the number of replies received with each result code, keyed by result code name.  Codes which were never
+     * received are omitted.
+     *
+     * @return the number of replies per result code
+     */
+    Map<String, Long> getResultCodes();
+}
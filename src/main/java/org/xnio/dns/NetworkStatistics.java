@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xnio.dns;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters of a network resolver.
+ */
+final class NetworkStatistics implements NetworkResolverMXBean {
+
+    // servers beyond this many are only counted in the totals
+    private static final int MAX_SERVERS = 1024;
+
+    private final StripedCounter queriesSent = new StripedCounter();
+    private final StripedCounter repliesReceived = new StripedCounter();
+    private final StripedCounter retransmissions = new StripedCounter();
+    private final StripedCounter timeouts = new StripedCounter();
+    private final StripedCounter truncations = new StripedCounter();
+    private final StripedCounter[] resultCodes;
+    private final ConcurrentMap<SocketAddress, ServerCounters> servers = new ConcurrentHashMap<SocketAddress, ServerCounters>();
+
+    NetworkStatistics() {
+        final ResultCode[] codes = ResultCode.values();
+        resultCodes = new StripedCounter[codes.length];
+        for (int i = 0; i < codes.length; i ++) {
+            resultCodes[i] = new StripedCounter();
+        }
+    }
+
+    void querySent(final SocketAddress server) {
+        queriesSent.increment();
+        final ServerCounters counters = getServerCounters(server);
+        if (counters != null) {
+            counters.queriesSent.increment();
+        }
+    }
+
+    void replyReceived(final SocketAddress server) {
+        repliesReceived.increment();
+        final ServerCounters counters = getServerCounters(server);
+        if (counters != null) {
+            counters.repliesReceived.increment();
+        }
+    }
+
+    void resultCode(final ResultCode resultCode) {
+        resultCodes[resultCode.ordinal()].increment();
+    }
+
+    void retransmission() {
+        retransmissions.increment();
+    }
+
+    void timeout() {
+        timeouts.increment();
+    }
+
+    void truncation() {
+        truncations.increment();
+    }
+
+    private ServerCounters getServerCounters(final SocketAddress server) {
+        final ServerCounters counters = servers.get(server);
+        if (counters != null || servers.size() >= MAX_SERVERS) {
+            return counters;
+        }
+        final ServerCounters newCounters = new ServerCounters();
+        final ServerCounters appearing = servers.putIfAbsent(server, newCounters);
+        return appearing == null ? newCounters : appearing;
+    }
+
+    public long getQueriesSent() {
+        return queriesSent.get();
+    }
+
+    public long getRepliesReceived() {
+        return repliesReceived.get();
+    }
+
+    public long getRetransmissions() {
+        return retransmissions.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getTruncations() {
+        return truncations.get();
+    }
+
+    public Map<String, Long> getQueriesSentByServer() {
+        final Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<SocketAddress, ServerCounters> entry : servers.entrySet()) {
+            map.put(entry.getKey().toString(), Long.valueOf(entry.getValue().queriesSent.get()));
+        }
+        return map;
+    }
+
+    public Map<String, Long> getRepliesReceivedByServer() {
+        final Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<SocketAddress, ServerCounters> entry : servers.entrySet()) {
+            map.put(entry.getKey().toString(), Long.valueOf(entry.getValue().repliesReceived.get()));
+        }
+        return map;
+    }
+
+    public Map<String, Long> getResultCodes() {
+        final Map<String, Long> map = new HashMap<String, Long>();
+        final ResultCode[] codes = ResultCode.values();
+        for (int i = 0; i < codes.length; i ++) {
+            final long count = resultCodes[i].get();
+            if (count != 0L) {
+                map.put(codes[i].name(), Long.valueOf(count));
+            }
+        }
+        return map;
+    }
+
+    private static final class ServerCounters {
+        final StripedCounter queriesSent = new StripedCounter();
+        final StripedCounter repliesReceived = new StripedCounter();
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of answers held in wire format in direct memory, so that the number of cached answers does not affect the
+ * size of the heap.  An answer is encoded once when it is stored and decoded on every hit.
+ * <p>
+ * The cache is split into segments, each with its own lock.  A segment appends encoded answers to a ring of direct
+ * memory slabs; when the ring is full, the oldest answers are overwritten, so the cache evicts in FIFO order without
+ * any bookkeeping.  Each segment finds its answers through an open-addressing hash table held in two primitive arrays,
+ * which map the hash of a question to the position of its newest answer in the ring.  A table slot whose position
+ * has been overwritten is simply ignored and eventually reused.
+ */
+final class OffHeapAnswerCache {
+
+    private static final int SLAB_SIZE = 1 << 20;
+    // length (4) + expiry time (8) + storage time (8)
+    private static final int ENTRY_HEADER = 20;
+    // name (255) + type (2) + class (2)
+    private static final int MAX_QUESTION_LENGTH = 259;
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    private final Segment[] segments;
+    // the segment is chosen by the high bits of the hash, since the low bits choose the table slot
+    private final int segmentShift;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param capacity the number of bytes of direct memory to use, which is rounded up to a whole number of 1 MiB slabs
+     *      per segment
+     */
+    OffHeapAnswerCache(final long capacity) {
+        final long slabCount = Math.max(1L, (capacity + SLAB_SIZE - 1) / SLAB_SIZE);
+        int segmentCount = 1;
+        int segmentBits = 0;
+        while (segmentCount < Runtime.getRuntime().availableProcessors() << 2 && segmentCount << 1 <= slabCount) {
+            segmentCount <<= 1;
+            segmentBits ++;
+        }
+        final int slabsPerSegment = (int) Math.min(Integer.MAX_VALUE, (slabCount + segmentCount - 1) / segmentCount);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i ++) {
+            segments[i] = new Segment(slabsPerSegment);
+        }
+        segmentShift = 32 - segmentBits;
+    }
+
+    /**
+     * Get the answer to a question, if it is cached and has not expired.
+     *
+     * @param question the question
+     * @param now the current time in milliseconds
+     * @return the decoded answer, or {@code null} if there is none
+     */
+    Answer get(final QueryKey question, final long now) {
+        final int hash = hash(question);
+        final byte[] message = segmentFor(hash).get(hash, encodeQuestion(question), now);
+        return message == null ? null : WireFormat.readAnswer(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Store an answer.
+     *
+     * @param question the question
+     * @param answer the answer
+     * @param now the current time in milliseconds, from which the TTLs of the encoded answer count
+     * @param expiresAt the time in milliseconds at which the answer expires
+     * @return {@code true} if the answer was stored, or {@code false} if it cannot be encoded
+     */
+    boolean put(final QueryKey question, final Answer answer, final long now, final long expiresAt) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        try {
+            try {
+                WireFormat.writeAnswer(buffer, answer);
+            } catch (BufferOverflowException e) {
+                // most answers are small; try again with room for the largest possible message
+                buffer = ByteBuffer.allocate(65535);
+                WireFormat.writeAnswer(buffer, answer);
+            }
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+        buffer.flip();
+        final int hash = hash(question);
+        segmentFor(hash).put(hash, encodeQuestion(question), buffer, now, expiresAt);
+        return true;
+    }
+
+    /**
+     * Visit every answer which has not expired.  Each segment is locked while its answers are visited.
+     *
+     * @param visitor the visitor
+     * @param now the current time in milliseconds
+     * @throws IOException if the visitor fails
+     */
+    void visit(final Visitor visitor, final long now) throws IOException {
+        for (Segment segment : segments) {
+            segment.visit(visitor, now);
+        }
+    }
+
+    /**
+     * A visitor of encoded answers.
+     */
+    interface Visitor {
+
+        /**
+         * Visit an answer.
+         *
+         * @param message the reply message, whose TTLs count from {@code storedAt}
+         * @param storedAt the time in milliseconds at which the answer was stored
+         * @param expiresAt the time in milliseconds at which the answer expires
+         * @throws IOException if the visit fails
+         */
+        void visit(ByteBuffer message, long storedAt, long expiresAt) throws IOException;
+    }
+
+    /**
+     * Remove the answer to a question.
+     *
+     * @param question the question
+     */
+    void remove(final QueryKey question) {
+        final int hash = hash(question);
+        segmentFor(hash).remove(hash, encodeQuestion(question));
+    }
+
+    private Segment segmentFor(final int hash) {
+        // a shift by 32 is no shift at all
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(final QueryKey question) {
+        final int h = question.hashCode() * 0x9e3779b9;
+        // zero marks an empty table slot
+        return h == 0 ? 1 : h;
+    }
+
+    private static byte[] encodeQuestion(final QueryKey question) {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_QUESTION_LENGTH);
+        WireFormat.writeDomain(buffer, question.getDomain());
+        buffer.putShort((short) question.getRRType().getId());
+        buffer.putShort((short) question.getRRClass().getId());
+        final byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer[] slabs;
+        private final long ringSize;
+        // guarded by lock
+        private long head;
+        private int[] hashes;
+        private long[] positions;
+        private int used;
+
+        Segment(final int slabCount) {
+            slabs = new ByteBuffer[slabCount];
+            ringSize = (long) slabCount * SLAB_SIZE;
+            hashes = new int[64];
+            positions = new long[64];
+        }
+
+        byte[] get(final int hash, final byte[] question, final long now) {
+            lock.lock();
+            try {
+                final int slot = find(hash, question);
+                if (slot == -1) {
+                    return null;
+                }
+                final long position = positions[slot];
+                final ByteBuffer slab = slabs[slabIndex(position)];
+                final int offset = (int) (position % SLAB_SIZE);
+                if (slab.getLong(offset + 4) <= now) {
+                    return null;
+                }
+                final byte[] message = new byte[slab.getInt(offset) - ENTRY_HEADER];
+                final ByteBuffer source = slab.duplicate();
+                source.position(offset + ENTRY_HEADER);
+                source.get(message);
+                return message;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(final int hash, final byte[] question, final ByteBuffer message, final long storedAt, final long expiresAt) {
+            final int length = ENTRY_HEADER + message.remaining();
+            lock.lock();
+            try {
+                int offset = (int) (head % SLAB_SIZE);
+                if (offset + length > SLAB_SIZE) {
+                    // entries never span slabs
+                    head += SLAB_SIZE - offset;
+                    offset = 0;
+                }
+                final long position = head;
+                final int slabIndex = slabIndex(position);
+                ByteBuffer slab = slabs[slabIndex];
+                if (slab == null) {
+                    slab = slabs[slabIndex] = ByteBuffer.allocateDirect(SLAB_SIZE);
+                }
+                slab.putInt(offset, length);
+                slab.putLong(offset + 4, expiresAt);
+                slab.putLong(offset + 12, storedAt);
+                final ByteBuffer target = slab.duplicate();
+                target.position(offset + ENTRY_HEADER);
+                target.put(message);
+                head += length;
+                insert(hash, question, position);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(final int hash, final byte[] question) {
+            lock.lock();
+            try {
+                final int slot = find(hash, question);
+                if (slot != -1) {
+                    positions[slot] = REMOVED;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void visit(final Visitor visitor, final long now) throws IOException {
+            lock.lock();
+            try {
+                final int[] hashes = this.hashes;
+                for (int i = 0; i < hashes.length; i ++) {
+                    final long position = positions[i];
+                    if (hashes[i] == 0 || ! isLive(position)) {
+                        continue;
+                    }
+                    final ByteBuffer slab = slabs[slabIndex(position)];
+                    final int offset = (int) (position % SLAB_SIZE);
+                    final long expiresAt = slab.getLong(offset + 4);
+                    if (expiresAt > now) {
+                        final ByteBuffer message = slab.duplicate();
+                        message.limit(offset + slab.getInt(offset));
+                        message.position(offset + ENTRY_HEADER);
+                        visitor.visit(message, slab.getLong(offset + 12), expiresAt);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int slabIndex(final long position) {
+            return (int) (position % ringSize / SLAB_SIZE);
+        }
+
+        private boolean isLive(final long position) {
+            // anything which starts before the last lap of the ring has been overwritten
+            return position != REMOVED && position >= head - ringSize;
+        }
+
+        private int find(final int hash, final byte[] question) {
+            final int[] hashes = this.hashes;
+            final int mask = hashes.length - 1;
+            for (int i = hash & mask; hashes[i] != 0; i = i + 1 & mask) {
+                if (hashes[i] == hash && isLive(positions[i]) && matches(positions[i], question)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(final int hash, final byte[] question, final long position) {
+            final int[] hashes = this.hashes;
+            final int mask = hashes.length - 1;
+            int free = -1;
+            int i;
+            for (i = hash & mask; hashes[i] != 0; i = i + 1 & mask) {
+                if (! isLive(positions[i])) {
+                    if (free == -1) {
+                        free = i;
+                    }
+                } else if (hashes[i] == hash && matches(positions[i], question)) {
+                    positions[i] = position;
+                    return;
+                }
+            }
+            if (free == -1) {
+                free = i;
+                used ++;
+            }
+            hashes[free] = hash;
+            positions[free] = position;
+            if (used > hashes.length >> 1) {
+                rehash();
+            }
+        }
+
+        private void rehash() {
+            final int[] oldHashes = hashes;
+            final long[] oldPositions = positions;
+            int live = 0;
+            for (int i = 0; i < oldHashes.length; i ++) {
+                if (oldHashes[i] != 0 && isLive(oldPositions[i])) {
+                    live ++;
+                }
+            }
+            int size = oldHashes.length;
+            while (live > size >> 2) {
+                size <<= 1;
+            }
+            final int[] newHashes = new int[size];
+            final long[] newPositions = new long[size];
+            final int mask = size - 1;
+            for (int i = 0; i < oldHashes.length; i ++) {
+                if (oldHashes[i] != 0 && isLive(oldPositions[i])) {
+                    int j = oldHashes[i] & mask;
+                    while (newHashes[j] != 0) {
+                        j = j + 1 & mask;
+                    }
+                    newHashes[j] = oldHashes[i];
+                    newPositions[j] = oldPositions[i];
+                }
+            }
+            hashes = newHashes;
+            positions = newPositions;
+            used = live;
+        }
+
+        private boolean matches(final long position, final byte[] question) {
+            final ByteBuffer slab = slabs[slabIndex(position)];
+            final int offset = (int) (position % SLAB_SIZE);
+            final int start = offset + ENTRY_HEADER + WireFormat.HEADER_LENGTH;
+            if (start + question.length > offset + slab.getInt(offset)) {
+                return false;
+            }
+            for (int i = 0; i < question.length; i ++) {
+                if (slab.get(start + i) != question[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -22,7 +22,10 @@
 
 package org.xnio.dns;
 
-final class QueryKey {
+/**
+ * A question: a domain name, a record class and a record type.
+ */
+public final class QueryKey {
     private final RRClass rrClass;
     private final RRType rrType;
     private final Domain domain;
@@ -38,6 +41,33 @@ final class QueryKey {
         hashCode = result;
     }
 
+    /**
+     * Get the domain name.
+     *
+     * @return the domain name
+     */
+    public Domain getDomain() {
+        return domain;
+    }
+
+    /**
+     * Get the record class.
+     *
+     * @return the record class
+     */
+    public RRClass getRRClass() {
+        return rrClass;
+    }
+
+    /**
+     * Get the record type.
+     *
+     * @return the record type
+     */
+    public RRType getRRType() {
+        return rrType;
+    }
+
     public boolean equals(final Object o) {
         if (this == o) return true;
         if (! (o instanceof QueryKey)) return false;
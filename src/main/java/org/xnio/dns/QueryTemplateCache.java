@@ -0,0 +1,181 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of pre-encoded query messages.  Each template holds a complete query for one question with a zero
+ * message ID; sending a query copies the template into the target buffer and patches the ID, the header flags and
+ * the advertised EDNS(0) payload size in place, so hot names are never re-encoded.  A question without a template is
+ * encoded in place, and the result becomes its template.
+ */
+final class QueryTemplateCache {
+
+    // root name (1) + type (2) + class (2) + TTL (4) + RDLENGTH (2)
+    private static final int OPT_LENGTH = 11;
+    // once full, one miss in this many (a power of two) replaces a template
+    private static final int KEEP_SAMPLE = 8;
+
+    private final ConcurrentMap<QueryKey, Template> templates = new ConcurrentHashMap<QueryKey, Template>();
+    private final int maxSize;
+    private final int ednsPayloadSize;
+    private final boolean dnssecOk;
+    private final AtomicInteger misses = new AtomicInteger();
+    private final Lock evictionLock = new ReentrantLock();
+    // guarded by evictionLock
+    private Iterator<Template> hand;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maxSize the maximum number of templates to keep
+     * @param ednsPayloadSize the EDNS(0) payload size to advertise, or 0 to send no OPT record
+     * @param dnssecOk {@code true} to set the DO bit in the OPT record
+     */
+    QueryTemplateCache(final int maxSize, final int ednsPayloadSize, final boolean dnssecOk) {
+        this.maxSize = maxSize;
+        this.ednsPayloadSize = ednsPayloadSize;
+        this.dnssecOk = dnssecOk;
+    }
+
+    /**
+     * Write a query for the given question to a buffer.
+     *
+     * @param buffer the target buffer
+     * @param question the question
+     * @param id the message ID
+     * @param recursionDesired {@code true} to set the RD flag
+     * @param payloadSize the EDNS(0) payload size to advertise, if the templates carry an OPT record
+     */
+    void writeQuery(final ByteBuffer buffer, final QueryKey question, final int id, final boolean recursionDesired, final int payloadSize) {
+        final int start = buffer.position();
+        final Template entry = templates.get(question);
+        if (entry == null) {
+            // encode in place, which costs no more than not having a cache
+            WireFormat.writeQuery(buffer, id, recursionDesired, question.getDomain(), question.getRRClass(), question.getRRType(), ednsPayloadSize == 0 ? 0 : payloadSize, dnssecOk);
+            if (shouldKeep()) {
+                keep(question, buffer, start);
+            }
+            return;
+        }
+        if (! entry.referenced) {
+            entry.referenced = true;
+        }
+        final byte[] template = entry.bytes;
+        buffer.put(template);
+        buffer.putShort(start, (short) id);
+        buffer.putShort(start + 2, (short) (recursionDesired ? WireFormat.FLAG_RD : 0));
+        if (ednsPayloadSize != 0 && payloadSize != ednsPayloadSize) {
+            buffer.putShort(start + template.length - OPT_LENGTH + 3, (short) payloadSize);
+        }
+    }
+
+    /**
+     * Get the encoded length of the query for the given question.
+     *
+     * @param question the question
+     * @return the length in bytes
+     */
+    int getLength(final QueryKey question) {
+        return WireFormat.HEADER_LENGTH + question.getDomain().getWireLength() + 4 + (ednsPayloadSize == 0 ? 0 : OPT_LENGTH);
+    }
+
+    /**
+     * Decide whether a question which missed should get a template.  While there is room every one does; once the
+     * cache is full only one miss in {@link #KEEP_SAMPLE} replaces another template, so that a working set larger
+     * than the cache does not pay for allocation and eviction on every query, while names asked often still get in.
+     *
+     * @return {@code true} to keep a template
+     */
+    private boolean shouldKeep() {
+        return maxSize > 0 && (templates.size() < maxSize || (misses.incrementAndGet() & KEEP_SAMPLE - 1) == 0);
+    }
+
+    private void keep(final QueryKey question, final ByteBuffer buffer, final int start) {
+        final ByteBuffer query = buffer.duplicate();
+        query.limit(buffer.position());
+        query.position(start);
+        final byte[] template = new byte[query.remaining()];
+        query.get(template);
+        // clear the ID and flags, and restore the payload size the templates advertise
+        template[0] = template[1] = template[2] = template[3] = 0;
+        if (ednsPayloadSize != 0) {
+            template[template.length - OPT_LENGTH + 3] = (byte) (ednsPayloadSize >> 8);
+            template[template.length - OPT_LENGTH + 4] = (byte) ednsPayloadSize;
+        }
+        if (templates.size() >= maxSize) {
+            evict();
+        }
+        templates.put(question, new Template(question, template));
+    }
+
+    private void evict() {
+        if (! evictionLock.tryLock()) {
+            // somebody else is already making room
+            return;
+        }
+        try {
+            // a clock: the hand carries on where it stopped, and passes over templates used since it last came by
+            int budget = templates.size() << 1;
+            while (budget-- > 0) {
+                if (hand == null || ! hand.hasNext()) {
+                    hand = templates.values().iterator();
+                    if (! hand.hasNext()) {
+                        return;
+                    }
+                }
+                final Template template = hand.next();
+                if (template.referenced) {
+                    template.referenced = false;
+                } else {
+                    templates.remove(template.question, template);
+                    return;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A template, with the flag of the clock.
+     */
+    private static final class Template {
+        final QueryKey question;
+        final byte[] bytes;
+        // only written when it changes, so that hot templates are not written on every query
+        volatile boolean referenced;
+
+        Template(final QueryKey question, final byte[] bytes) {
+            this.question = question;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.xnio.dns.record.CNameRecord;
+import org.xnio.dns.record.MxRecord;
+import org.xnio.dns.record.NsRecord;
+import org.xnio.dns.record.SrvRecord;
+
+/**
+ * A cache of resource record sets, keyed by owner name, class and type.  The records of every answer which passes
+ * through a {@link CachingResolver} are harvested into this cache, so that data learned while answering one question
+ * (the CNAME and other records of the query name, the NS records of the authority section and the glue addresses of
+ * the additional section) can answer other questions without another upstream query.
+ * <p>
+ * Only in-bailiwick data is harvested.  Answer records are kept only if their owner is the query name, including the
+ * first CNAME record of a chain; the rest of the chain may come from any zone the first server cares to vouch for, so
+ * it is left to the answer cache, where it only answers the question it came with.  Authority records are kept if
+ * they are NS or SOA records of the zone which the answer came from, taken to be the closest zone containing the query
+ * name which the authority section names; no authority data is kept for the root or a top level zone.  Additional records are kept if they are the
+ * address records of a name which a kept record refers to, and if that name lies within a zone of the authority
+ * section.  As described in RFC 2181 section 5.4.1, a fresh RRset taken from the answer section is never replaced by
+ * one taken from another section.
+ * <p>
+ * Each record is stored with a TTL which counts down to its expiry, so answers built from this cache carry the
+ * remaining TTLs.  RRsets are removed by the timing wheel when they expire.
+ */
+final class RRsetCache {
+
+    private static final int RANK_ADDITIONAL = 0;
+    private static final int RANK_AUTHORITY = 1;
+    private static final int RANK_ANSWER = 2;
+
+    // the longest CNAME chain which is followed when building an answer
+    private static final int MAX_CHAIN = 8;
+    // authority data is not accepted for the root or a top level zone
+    private static final int MIN_ZONE_LABELS = 2;
+
+    private final ConcurrentMap<QueryKey, RRset> rrsets;
+    private final int maxSize;
+    private final TimingWheel timingWheel;
+    private final Lock evictionLock = new ReentrantLock();
+    // guarded by evictionLock
+    private Iterator<RRset> hand;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maxSize the maximum number of RRsets to keep
+     * @param timingWheel the timing wheel used to expire RRsets and as the clock
+     */
+    RRsetCache(final int maxSize, final TimingWheel timingWheel) {
+        rrsets = new ConcurrentHashMap<QueryKey, RRset>(Math.max(Math.min(maxSize, 1 << 16), 16), 0.75f, Runtime.getRuntime().availableProcessors() << 2);
+        this.maxSize = maxSize;
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * Build an answer to a question from the cached RRsets, following CNAME records.
+     *
+     * @param question the question
+     * @return the answer, or {@code null} if the cached RRsets cannot answer the question
+     */
+    Answer lookup(final QueryKey question) {
+        final RRType rrType = question.getRRType();
+        final RRClass rrClass = question.getRRClass();
+        if (rrType == RRType.ANY || rrClass == RRClass.ANY) {
+            return null;
+        }
+        final long now = timingWheel.currentTimeMillis();
+        final Answer.Builder builder = Answer.builder();
+        builder.setHeaderInfo(question.getDomain(), rrClass, rrType, ResultCode.NOERROR);
+        Domain name = question.getDomain();
+        for (int i = 0; i < MAX_CHAIN; i ++) {
+            final RRset rrset = get(new QueryKey(name, rrClass, rrType), now);
+            if (rrset != null) {
+                for (Record record : rrset.records) {
+                    builder.addAnswerRecord(record);
+                }
+                return builder.create();
+            }
+            if (rrType == RRType.CNAME) {
+                return null;
+            }
+            final RRset cname = get(new QueryKey(name, rrClass, RRType.CNAME), now);
+            if (cname == null) {
+                return null;
+            }
+            final Record record = cname.records.get(0);
+            builder.addAnswerRecord(record);
+            name = ((CNameRecord) record).getCname();
+        }
+        return null;
+    }
+
+    private RRset get(final QueryKey key, final long now) {
+        final RRset rrset = rrsets.get(key);
+        return rrset != null && rrset.expiresAt > now ? rrset : null;
+    }
+
+    /**
+     * Harvest the in-bailiwick records of an answer.
+     *
+     * @param answer the answer
+     */
+    void harvest(final Answer answer) {
+        final ResultCode resultCode = answer.getResultCode();
+        if (resultCode != ResultCode.NOERROR && resultCode != ResultCode.NXDOMAIN || answer.getQueryDomain() == null) {
+            return;
+        }
+        final Domain queryDomain = answer.getQueryDomain();
+        final Map<QueryKey, List<Record>> answerSets = new LinkedHashMap<QueryKey, List<Record>>();
+        final Set<Domain> targets = new HashSet<Domain>();
+        for (Record record : answer.getAnswerRecords()) {
+            if (record.getName().equals(queryDomain)) {
+                add(answerSets, record);
+                addTarget(targets, record);
+            }
+        }
+        final Map<QueryKey, List<Record>> authoritySets = new LinkedHashMap<QueryKey, List<Record>>();
+        final Set<Domain> zones = new HashSet<Domain>();
+        final Domain zone = findZone(answer, queryDomain);
+        if (zone != null) {
+            for (Record record : answer.getAuthorityRecords()) {
+                final RRType rrType = record.getRrType();
+                if ((rrType == RRType.NS || rrType == RRType.SOA) && record.getName().equals(zone)) {
+                    add(authoritySets, record);
+                    addTarget(targets, record);
+                    zones.add(zone);
+                }
+            }
+        }
+        final Map<QueryKey, List<Record>> additionalSets = new LinkedHashMap<QueryKey, List<Record>>();
+        for (Record record : answer.getAdditionalRecords()) {
+            final RRType rrType = record.getRrType();
+            if ((rrType == RRType.A || rrType == RRType.AAAA) && targets.contains(record.getName()) && isWithinAny(record.getName(), zones)) {
+                add(additionalSets, record);
+            }
+        }
+        final long now = timingWheel.currentTimeMillis();
+        store(answerSets, RANK_ANSWER, now);
+        store(authoritySets, RANK_AUTHORITY, now);
+        store(additionalSets, RANK_ADDITIONAL, now);
+    }
+
+    /**
+     * Find the zone which an answer came from: the closest zone enclosing the query name whose NS or SOA records
+     * appear in the authority section.  A top level zone or the root is never accepted, since any server could claim
+     * to speak for it.
+     *
+     * @param answer the answer
+     * @param queryDomain the query name
+     * @return the zone, or {@code null} if there is none to accept
+     */
+    private static Domain findZone(final Answer answer, final Domain queryDomain) {
+        Domain zone = null;
+        for (Record record : answer.getAuthorityRecords()) {
+            final RRType rrType = record.getRrType();
+            final Domain name = record.getName();
+            if ((rrType == RRType.NS || rrType == RRType.SOA) && queryDomain.isSubdomainOf(name) && (zone == null || name.isSubdomainOf(zone))) {
+                zone = name;
+            }
+        }
+        return zone == null || zone.getParts().length < MIN_ZONE_LABELS ? null : zone;
+    }
+
+    private static void add(final Map<QueryKey, List<Record>> sets, final Record record) {
+        final QueryKey key = new QueryKey(record.getName(), record.getRrClass(), record.getRrType());
+        List<Record> list = sets.get(key);
+        if (list == null) {
+            sets.put(key, list = new ArrayList<Record>());
+        }
+        list.add(record);
+    }
+
+    private static void addTarget(final Set<Domain> targets, final Record record) {
+        if (record instanceof NsRecord) {
+            targets.add(((NsRecord) record).getServer());
+        } else if (record instanceof MxRecord) {
+            targets.add(((MxRecord) record).getExchanger());
+        } else if (record instanceof SrvRecord) {
+            targets.add(((SrvRecord) record).getTarget());
+        }
+    }
+
+    private static boolean isWithinAny(final Domain name, final Set<Domain> zones) {
+        for (Domain zone : zones) {
+            if (name.isSubdomainOf(zone)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void store(final Map<QueryKey, List<Record>> sets, final int rank, final long now) {
+        for (Map.Entry<QueryKey, List<Record>> mapEntry : sets.entrySet()) {
+            final List<Record> records = mapEntry.getValue();
+            long expiresAt = Long.MAX_VALUE;
+            for (Record record : records) {
+                final TTLSpec ttlSpec = record.getTtlSpec();
+                expiresAt = Math.min(expiresAt, ttlSpec.isFixed() ? now + ttlSpec.getTtl() * 1000L : ttlSpec.getEol());
+            }
+            if (expiresAt <= now) {
+                continue;
+            }
+            // the whole set expires together, with a TTL which counts down
+            final TTLSpec ttlSpec = TTLSpec.createVariable(expiresAt);
+            final List<Record> copies = new ArrayList<Record>(records.size());
+            for (Record record : records) {
+                copies.add(record.withTtlSpec(ttlSpec));
+            }
+            final QueryKey key = mapEntry.getKey();
+            final RRset rrset = new RRset(key, copies, expiresAt, rank);
+            for (;;) {
+                final RRset old = rrsets.get(key);
+                if (old == null) {
+                    if (rrsets.putIfAbsent(key, rrset) == null) {
+                        break;
+                    }
+                } else if (old.rank > rank && old.expiresAt > now) {
+                    // keep the more trustworthy data
+                    break;
+                } else if (rrsets.replace(key, old, rrset)) {
+                    old.cancelTimer();
+                    break;
+                }
+            }
+            if (rrsets.get(key) == rrset) {
+                rrset.timerKey = timingWheel.schedule(rrset, expiresAt - now, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (rrsets.size() > maxSize) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        if (! evictionLock.tryLock()) {
+            // somebody else is already sweeping
+            return;
+        }
+        try {
+            // arbitrary victims are good enough, since the answers which keep the sets warm live in the answer cache;
+            // the hand carries on where the last sweep stopped, so that the same sets are not always the ones to go
+            int budget = rrsets.size();
+            while (rrsets.size() > maxSize && budget-- > 0) {
+                if (hand == null || ! hand.hasNext()) {
+                    hand = rrsets.values().iterator();
+                    if (! hand.hasNext()) {
+                        return;
+                    }
+                }
+                final RRset rrset = hand.next();
+                if (rrsets.remove(rrset.key, rrset)) {
+                    rrset.cancelTimer();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A cached RRset, which is also the task which removes it from the cache when it expires.
+     */
+    private final class RRset implements Runnable {
+        final QueryKey key;
+        final List<Record> records;
+        final long expiresAt;
+        final int rank;
+        volatile TimingWheel.Key timerKey;
+
+        RRset(final QueryKey key, final List<Record> records, final long expiresAt, final int rank) {
+            this.key = key;
+            this.records = records;
+            this.expiresAt = expiresAt;
+            this.rank = rank;
+        }
+
+        void cancelTimer() {
+            final TimingWheel.Key timerKey = this.timerKey;
+            if (timerKey != null) {
+                timerKey.cancel();
+            }
+        }
+
+        public void run() {
+            rrsets.remove(key, this);
+        }
+    }
+}
@@ -23,19 +23,22 @@
 package org.xnio.dns;
 
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import org.xnio.dns.record.AaaaRecord;
 import org.xnio.dns.record.ARecord;
 import org.xnio.dns.record.CNameRecord;
+import org.xnio.dns.record.DNameRecord;
 import org.xnio.dns.record.HInfoRecord;
 import org.xnio.dns.record.MxRecord;
 import org.xnio.dns.record.NsRecord;
+import org.xnio.dns.record.OptRecord;
 import org.xnio.dns.record.PtrRecord;
 import org.xnio.dns.record.SoaRecord;
+import org.xnio.dns.record.SrvRecord;
 import org.xnio.dns.record.TxtRecord;
 import org.xnio.dns.record.UnknownRecord;
 import org.xnio.dns.record.WksRecord;
-import org.xnio.Buffers;
 
 /**
  * A resource record.
@@ -100,6 +103,48 @@ public abstract class Record implements Serializable {
         return ttlSpec;
     }
 
+    /**
+     * Get a copy of this record with a different TTL.  Record types which do not support this return the record
+     * unchanged.
+     *
+     * @param ttlSpec the TTL of the copy
+     * @return the copy
+     */
+    public Record withTtlSpec(TTLSpec ttlSpec) {
+        return this;
+    }
+
+    /**
+     * Write the RR data of this record in wire format, without name compression.
+     *
+     * @param buffer the target buffer
+     * @throws UnsupportedOperationException if this record type cannot be written
+     */
+    protected void writeRData(ByteBuffer buffer) {
+        throw new UnsupportedOperationException("Cannot write records of type " + rrType);
+    }
+
+    /**
+     * Estimate the number of bytes of heap this record retains, for caches which are bounded by memory.  Record types
+     * which hold RR data add an estimate of its size.
+     *
+     * @return the estimated size in bytes
+     */
+    protected int estimateSize() {
+        // the record, its TTL, and its name
+        return 48 + name.estimateSize();
+    }
+
+    /**
+     * Estimate the number of bytes of heap a domain name retains.
+     *
+     * @param domain the domain name
+     * @return the estimated size in bytes
+     */
+    protected static int estimateSize(Domain domain) {
+        return domain.estimateSize();
+    }
+
     /**
      * Append any record-specific RR data to the string builder.
      *
@@ -128,18 +173,32 @@ public abstract class Record implements Serializable {
     public static Record fromBytes(final ByteBuffer buffer) {
         final Domain name = Domain.fromBytes(buffer);
         final RRType rrType = RRType.fromInt(buffer.getShort() & 0xffff);
-        final RRClass rrClass = RRClass.fromInt(buffer.getShort() & 0xffff);
-        final TTLSpec ttlSpec = TTLSpec.createFixed(buffer.getInt());
-        final ByteBuffer recordBuffer = Buffers.slice(buffer, buffer.getShort() & 0xffff);
+        final int rawClass = buffer.getShort() & 0xffff;
+        final int rawTtl = buffer.getInt();
+        final int length = buffer.getShort() & 0xffff;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        // keep the message offsets intact so that compressed names in the record data can be read
+        final ByteBuffer recordBuffer = buffer.duplicate();
+        recordBuffer.limit(buffer.position() + length);
+        buffer.position(buffer.position() + length);
+        if (rrType == RRType.OPT) {
+            return new OptRecord(rawClass, rawTtl, recordBuffer);
+        }
+        final RRClass rrClass = RRClass.fromInt(rawClass);
+        final TTLSpec ttlSpec = TTLSpec.createFixed(rawTtl);
         switch (rrType) {
             case AAAA:  return new AaaaRecord (name, rrClass, ttlSpec, recordBuffer);
             case A:     return new ARecord    (name, rrClass, ttlSpec, recordBuffer);
             case CNAME: return new CNameRecord(name, rrClass, ttlSpec, recordBuffer);
+            case DNAME: return new DNameRecord(name, rrClass, ttlSpec, recordBuffer);
             case HINFO: return new HInfoRecord(name, rrClass, ttlSpec, recordBuffer);
             case MX:    return new MxRecord   (name, rrClass, ttlSpec, recordBuffer);
             case NS:    return new NsRecord   (name, rrClass, ttlSpec, recordBuffer);
             case PTR:   return new PtrRecord  (name, rrClass, ttlSpec, recordBuffer);
             case SOA:   return new SoaRecord  (name, rrClass, ttlSpec, recordBuffer);
+            case SRV:   return new SrvRecord  (name, rrClass, ttlSpec, recordBuffer);
             case TXT:   return new TxtRecord  (name, rrClass, ttlSpec, recordBuffer);
             case WKS:   return new WksRecord  (name, rrClass, ttlSpec, recordBuffer);
 
@@ -26,17 +26,32 @@ package org.xnio.dns;
  * The possible result code values.
  */
 public enum ResultCode {
-    NOERROR,
-    FORMAT_ERROR,
-    SERVER_FAILURE,
-    NXDOMAIN,
-    NOT_IMPLEMENTED,
-    REFUSED,
-    UNKNOWN;
+    NOERROR(0),
+    FORMAT_ERROR(1),
+    SERVER_FAILURE(2),
+    NXDOMAIN(3),
+    NOT_IMPLEMENTED(4),
+    REFUSED(5),
+    YXDOMAIN(6),
+    YXRRSET(7),
+    NXRRSET(8),
+    NOTAUTH(9),
+    NOTZONE(10),
+    BADVERS(16),
+    UNKNOWN(-1);
+    private final int id;
+
+    ResultCode(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
 
     /**
-     * Get the result code from its integer representation.  If the integer does not represent a known
-     * result code, then {@link #UNKNOWN} is returned.
+     * Get the result code from its integer representation, which may be an EDNS extended result code.  If the integer
+     * does not represent a known result code, then {@link #UNKNOWN} is returned.
      *
      * @param rcode the integer code
      * @return the code
@@ -49,6 +64,12 @@ public enum ResultCode {
             case 3: return NXDOMAIN;
             case 4: return NOT_IMPLEMENTED;
             case 5: return REFUSED;
+            case 6: return YXDOMAIN;
+            case 7: return YXRRSET;
+            case 8: return NXRRSET;
+            case 9: return NOTAUTH;
+            case 10: return NOTZONE;
+            case 16: return BADVERS;
             default: return UNKNOWN;
         }
     }
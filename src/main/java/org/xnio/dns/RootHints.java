@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The built-in root hints: the names and addresses of the root name servers, from which an iterative resolver starts
+ * when it knows nothing else.  The hints only need to be good enough to reach one root server; the full, current set
+ * is learned from the root zone itself by priming.
+ */
+final class RootHints {
+
+    private RootHints() {
+    }
+
+    private static final String[][] SERVERS = {
+        { "a.root-servers.net", "198.41.0.4", "2001:503:ba3e::2:30" },
+        { "b.root-servers.net", "170.247.170.2", "2801:1b8:10::b" },
+        { "c.root-servers.net", "192.33.4.12", "2001:500:2::c" },
+        { "d.root-servers.net", "199.7.91.13", "2001:500:2d::d" },
+        { "e.root-servers.net", "192.203.230.10", "2001:500:a8::e" },
+        { "f.root-servers.net", "192.5.5.241", "2001:500:2f::f" },
+        { "g.root-servers.net", "192.112.36.4", "2001:500:12::d0d" },
+        { "h.root-servers.net", "198.97.190.53", "2001:500:1::53" },
+        { "i.root-servers.net", "192.36.148.17", "2001:7fe::53" },
+        { "j.root-servers.net", "192.58.128.30", "2001:503:c27::2:30" },
+        { "k.root-servers.net", "193.0.14.129", "2001:7fd::1" },
+        { "l.root-servers.net", "199.7.83.42", "2001:500:9f::42" },
+        { "m.root-servers.net", "202.12.27.33", "2001:dc3::35" },
+    };
+
+    /**
+     * The names of the root name servers.
+     */
+    static final List<Domain> NAME_SERVERS;
+
+    /**
+     * The addresses of the root name servers, IPv4 first.
+     */
+    static final List<InetSocketAddress> ADDRESSES;
+
+    static {
+        final List<Domain> nameServers = new ArrayList<Domain>(SERVERS.length);
+        final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(SERVERS.length << 1);
+        for (String[] server : SERVERS) {
+            nameServers.add(Domain.fromString(server[0]));
+            addresses.add(new InetSocketAddress(literal(server[0], server[1]), 53));
+        }
+        for (String[] server : SERVERS) {
+            addresses.add(new InetSocketAddress(literal(server[0], server[2]), 53));
+        }
+        NAME_SERVERS = Collections.unmodifiableList(nameServers);
+        ADDRESSES = Collections.unmodifiableList(addresses);
+    }
+
+    private static InetAddress literal(final String hostName, final String address) {
+        try {
+            // a literal address is never looked up
+            return InetAddress.getByAddress(hostName, InetAddress.getByName(address).getAddress());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.xnio.Cancellable;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+
+/**
+ * A latency-aware selector of upstream servers.  A smoothed round-trip time (SRTT) and its mean deviation are kept for
+ * every server in the manner of TCP's retransmission timer, and each query goes to the candidate with the lowest SRTT.
+ * <p>
+ * Servers which have never been used start with a small random SRTT so that they are tried early.  A server which times
+ * out has its SRTT doubled.  A server which replies quickly but with an error, such as {@link ResultCode#SERVER_FAILURE},
+ * keeps its SRTT, which still governs its retransmission timeout, but is ranked behind its peers by a separate error
+ * penalty, which doubles with each error and halves with each useful reply.  Every time a candidate is passed over its
+ * SRTT and error penalty decay a little, so that a penalized or slow server is eventually given another chance; in addition a small fraction of queries is sent to a random
+ * candidate to keep the estimates of the other servers fresh.
+ */
+public final class ServerSelector {
+
+    private static final long INITIAL_SRTT_MAX = TimeUnit.MILLISECONDS.toNanos(32L);
+    private static final long TIMEOUT_PENALTY_MIN = TimeUnit.MILLISECONDS.toNanos(200L);
+    private static final long ERROR_PENALTY_MIN = TimeUnit.MILLISECONDS.toNanos(50L);
+    private static final long SRTT_MAX = TimeUnit.SECONDS.toNanos(10L);
+    // a passed-over server keeps 63/64 of its SRTT
+    private static final int DECAY_SHIFT = 6;
+    private static final int EXPLORE_PERCENT = 5;
+    private static final int MAX_SERVERS = 4096;
+
+    private final NetworkResolver networkResolver;
+    private final Executor executor;
+    private final Random random;
+    private final ConcurrentMap<InetSocketAddress, ServerStats> statsMap = new ConcurrentHashMap<InetSocketAddress, ServerStats>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param networkResolver the network resolver used to query the selected servers
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param random the RNG to use for initial estimates and exploration
+     */
+    public ServerSelector(final NetworkResolver networkResolver, final Executor executor, final Random random) {
+        this.networkResolver = networkResolver;
+        this.executor = executor;
+        this.random = random;
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param networkResolver the network resolver used to query the selected servers
+     * @param executor the executor to use to execute asynchronous tasks
+     */
+    public ServerSelector(final NetworkResolver networkResolver, final Executor executor) {
+        this(networkResolver, executor, new Random());
+    }
+
+    /**
+     * Get a resolver which sends each query to the best of the given servers.  If the chosen server fails, times out,
+     * or answers with {@link ResultCode#SERVER_FAILURE} or {@link ResultCode#REFUSED}, the query is repeated against the
+     * next best server until every server has been tried.
+     *
+     * @param servers the candidate servers
+     * @return the resolver
+     */
+    public Resolver resolverFor(final List<InetSocketAddress> servers) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers given");
+        }
+        return new SelectingResolver(new ArrayList<InetSocketAddress>(servers));
+    }
+
+    /**
+     * Choose the best of the given servers.  Every other candidate's estimate is decayed.
+     *
+     * @param servers the candidate servers
+     * @return the chosen server
+     */
+    public InetSocketAddress select(final List<InetSocketAddress> servers) {
+        final int size = servers.size();
+        if (size == 1) {
+            return servers.get(0);
+        }
+        final InetSocketAddress chosen;
+        if (random.nextInt(100) < EXPLORE_PERCENT) {
+            chosen = servers.get(random.nextInt(size));
+        } else {
+            InetSocketAddress best = null;
+            long bestRank = Long.MAX_VALUE;
+            for (InetSocketAddress server : servers) {
+                final long rank = getStats(server).getRank();
+                if (rank < bestRank) {
+                    bestRank = rank;
+                    best = server;
+                }
+            }
+            chosen = best;
+        }
+        for (InetSocketAddress server : servers) {
+            if (! server.equals(chosen)) {
+                getStats(server).decay();
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Record a measured round-trip time for a server.
+     *
+     * @param server the server
+     * @param rtt the round-trip time
+     * @param unit the time unit of {@code rtt}
+     */
+    public void recordRtt(final InetSocketAddress server, final long rtt, final TimeUnit unit) {
+        getStats(server).update(unit.toNanos(rtt));
+    }
+
+    /**
+     * Record that a query to a server timed out or failed.
+     *
+     * @param server the server
+     */
+    public void recordTimeout(final InetSocketAddress server) {
+        getStats(server).penalize();
+    }
+
+    /**
+     * Record that a server replied, but with an error which makes the reply useless, such as
+     * {@link ResultCode#SERVER_FAILURE} or {@link ResultCode#REFUSED}.  The server is ranked behind servers which give
+     * useful replies, without the timeout penalty which would slow down its retransmissions.
+     *
+     * @param server the server
+     */
+    public void recordError(final InetSocketAddress server) {
+        getStats(server).penalizeError();
+    }
+
+    /**
+     * Get the smoothed round-trip time of a server.
+     *
+     * @param server the server
+     * @param unit the time unit of the result
+     * @return the smoothed round-trip time
+     */
+    public long getSmoothedRtt(final InetSocketAddress server, final TimeUnit unit) {
+        return unit.convert(getStats(server).getSmoothedRtt(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the retransmission timeout of a server, which is the smoothed round-trip time plus four times its mean
+     * deviation.  A reply which has not arrived after this time is most likely lost or very late.
+     *
+     * @param server the server
+     * @param unit the time unit of the result
+     * @return the retransmission timeout
+     */
+    public long getRetransmitTimeout(final InetSocketAddress server, final TimeUnit unit) {
+        return unit.convert(getStats(server).getRetransmitTimeout(), TimeUnit.NANOSECONDS);
+    }
+
+    private ServerStats getStats(final InetSocketAddress server) {
+        ServerStats stats = statsMap.get(server);
+        if (stats == null) {
+            if (statsMap.size() >= MAX_SERVERS) {
+                // forget an arbitrary server; it starts over as an untried server if it is seen again
+                final Iterator<InetSocketAddress> iterator = statsMap.keySet().iterator();
+                if (iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            final ServerStats newStats = new ServerStats(1L + (long) (random.nextDouble() * INITIAL_SRTT_MAX));
+            stats = statsMap.putIfAbsent(server, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private static final class ServerStats {
+        private long srtt;
+        private long rttvar;
+        private boolean measured;
+        // added to the SRTT when ranking servers, never when timing retransmissions
+        private long errorPenalty;
+
+        ServerStats(final long initialSrtt) {
+            srtt = initialSrtt;
+            rttvar = initialSrtt >> 1;
+        }
+
+        synchronized long getSmoothedRtt() {
+            return srtt;
+        }
+
+        synchronized long getRank() {
+            return srtt + errorPenalty;
+        }
+
+        synchronized long getRetransmitTimeout() {
+            return srtt + (rttvar << 2);
+        }
+
+        synchronized void update(final long rtt) {
+            if (measured) {
+                final long delta = rtt - srtt;
+                // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R'|, SRTT = 7/8 SRTT + 1/8 R'
+                rttvar += ((delta < 0 ? -delta : delta) - rttvar) >> 2;
+                srtt += delta >> 3;
+            } else {
+                measured = true;
+                srtt = rtt;
+                rttvar = rtt >> 1;
+            }
+            if (srtt < 1L) {
+                srtt = 1L;
+            }
+            errorPenalty >>= 1;
+        }
+
+        synchronized void penalize() {
+            srtt = Math.min(Math.max(srtt << 1, TIMEOUT_PENALTY_MIN), SRTT_MAX);
+        }
+
+        synchronized void penalizeError() {
+            errorPenalty = Math.min(Math.max(errorPenalty << 1, ERROR_PENALTY_MIN), SRTT_MAX);
+        }
+
+        synchronized void decay() {
+            srtt -= srtt >> DECAY_SHIFT;
+            errorPenalty -= errorPenalty >> DECAY_SHIFT;
+            if (srtt < 1L) {
+                srtt = 1L;
+            }
+        }
+    }
+
+    private final class SelectingResolver extends AbstractResolver {
+        private final List<InetSocketAddress> servers;
+
+        SelectingResolver(final List<InetSocketAddress> servers) {
+            this.servers = servers;
+        }
+
+        public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+            final FutureResult<Answer> result = new FutureResult<Answer>(executor);
+            final Attempt attempt = new Attempt(name, rrClass, rrType, flags, new ArrayList<InetSocketAddress>(servers), result);
+            result.addCancelHandler(attempt);
+            attempt.next();
+            return result.getIoFuture();
+        }
+    }
+
+    /**
+     * One query, tried against the remaining servers in order of preference.
+     */
+    private final class Attempt extends IoFuture.HandlingNotifier<Answer, FutureResult<Answer>> implements Cancellable {
+        private final Domain name;
+        private final RRClass rrClass;
+        private final RRType rrType;
+        private final Set<ResolverFlag> flags;
+        private final List<InetSocketAddress> remaining;
+        private final FutureResult<Answer> result;
+        private volatile InetSocketAddress server;
+        private volatile long start;
+        private volatile IoFuture<Answer> current;
+        private volatile boolean cancelled;
+
+        Attempt(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags, final List<InetSocketAddress> remaining, final FutureResult<Answer> result) {
+            this.name = name;
+            this.rrClass = rrClass;
+            this.rrType = rrType;
+            this.flags = flags;
+            this.remaining = remaining;
+            this.result = result;
+        }
+
+        void next() {
+            final InetSocketAddress server = select(remaining);
+            remaining.remove(server);
+            this.server = server;
+            start = System.nanoTime();
+            final IoFuture<Answer> future = networkResolver.resolverFor(server).resolve(name, rrClass, rrType, flags);
+            current = future;
+            if (cancelled) {
+                future.cancel();
+            }
+            future.addNotifier(this, result);
+        }
+
+        public Attempt cancel() {
+            cancelled = true;
+            final IoFuture<Answer> current = this.current;
+            if (current != null) {
+                current.cancel();
+            }
+            return this;
+        }
+
+        public void handleCancelled(final FutureResult<Answer> result) {
+            result.setCancelled();
+        }
+
+        public void handleFailed(final IOException exception, final FutureResult<Answer> result) {
+            recordTimeout(server);
+            if (remaining.isEmpty() || cancelled) {
+                result.setException(exception);
+            } else {
+                next();
+            }
+        }
+
+        public void handleDone(final Answer answer, final FutureResult<Answer> result) {
+            final ResultCode resultCode = answer.getResultCode();
+            if (resultCode == ResultCode.SERVER_FAILURE || resultCode == ResultCode.REFUSED) {
+                // the server is up but useless for this query
+                recordError(server);
+                if (! remaining.isEmpty() && ! cancelled) {
+                    next();
+                    return;
+                }
+            } else {
+                recordRtt(server, System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            result.setResult(answer);
+        }
+    }
+}
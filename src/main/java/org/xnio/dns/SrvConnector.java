@@ -0,0 +1,614 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.xnio.Cancellable;
+import org.xnio.ChannelListener;
+import org.xnio.ChannelSource;
+import org.xnio.Connector;
+import org.xnio.FailedIoFuture;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+import org.xnio.channels.BoundChannel;
+import org.xnio.dns.record.ARecord;
+import org.xnio.dns.record.AaaaRecord;
+import org.xnio.dns.record.SrvRecord;
+
+/**
+ * A named connector which finds the servers of a service by its SRV records, as described in RFC 2782.  Connecting to
+ * a domain looks up the SRV records of {@code _service._protocol.domain}; the targets are tried in order of priority,
+ * and among targets of the same priority in a random order in which each target is the more likely to come first the
+ * greater its weight.  Each address of a target is tried in turn before the next target, and the first connection to
+ * be established is returned.  A domain with no SRV records is connected to directly, on the given port; a domain
+ * whose only SRV record has the target {@code .} does not offer the service, and connecting to it fails.
+ * <p>
+ * The targets of each service are remembered for the TTL of its SRV records, along with the addresses of each target,
+ * which are taken from the additional records of the answer where present and looked up otherwise.  The addresses of
+ * a target are looked up again once they have all failed.  Since the order of the targets is chosen afresh for every
+ * connection, the channel sources created by this connector spread their connections over the targets by weight.
+ * <p>
+ * The open and bind listeners are only called for the connection which is established.
+ *
+ * @param <T> the channel type
+ */
+public final class SrvConnector<T extends Channel> implements NamedConnector<T> {
+
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    private static final long NEGATIVE_LIFETIME = TimeUnit.SECONDS.toMillis(30L);
+
+    private static final Comparator<Target> BY_PRIORITY = new Comparator<Target>() {
+        public int compare(final Target o1, final Target o2) {
+            return o1.priority - o2.priority;
+        }
+    };
+
+    private static final Comparator<Target> ZERO_WEIGHT_FIRST = new Comparator<Target>() {
+        public int compare(final Target o1, final Target o2) {
+            return (o1.weight == 0 ? 0 : 1) - (o2.weight == 0 ? 0 : 1);
+        }
+    };
+
+    private final Connector<InetSocketAddress, T> connector;
+    private final Resolver resolver;
+    private final String prefix;
+    private final Executor executor;
+    private final int cacheSize;
+    private final Random random = new Random();
+    private final ConcurrentMap<Domain, Service> services = new ConcurrentHashMap<Domain, Service>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param connector the connector used to connect to each address
+     * @param resolver the resolver used to look up SRV records and the addresses of their targets
+     * @param service the symbolic name of the service, without the leading underscore, such as {@code ldap}
+     * @param protocol the protocol of the service, without the leading underscore, such as {@code tcp}
+     * @param executor the executor to use to execute asynchronous tasks
+     */
+    public SrvConnector(final Connector<InetSocketAddress, T> connector, final Resolver resolver, final String service, final String protocol, final Executor executor) {
+        this(connector, resolver, service, protocol, executor, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Construct a new instance.  The {@link DnsOptions#SERVICE_CACHE_SIZE} option is recognized.
+     *
+     * @param connector the connector used to connect to each address
+     * @param resolver the resolver used to look up SRV records and the addresses of their targets
+     * @param service the symbolic name of the service, without the leading underscore, such as {@code ldap}
+     * @param protocol the protocol of the service, without the leading underscore, such as {@code tcp}
+     * @param executor the executor to use to execute asynchronous tasks
+     * @param optionMap the connector options
+     */
+    public SrvConnector(final Connector<InetSocketAddress, T> connector, final Resolver resolver, final String service, final String protocol, final Executor executor, final OptionMap optionMap) {
+        this(connector, resolver, service, protocol, executor, optionMap.get(DnsOptions.SERVICE_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+    }
+
+    private SrvConnector(final Connector<InetSocketAddress, T> connector, final Resolver resolver, final String service, final String protocol, final Executor executor, final int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Negative cache size");
+        }
+        this.connector = connector;
+        this.resolver = resolver;
+        // validate the labels up front
+        prefix = Domain.fromString("_" + service + "._" + protocol).getHostName();
+        this.executor = executor;
+        this.cacheSize = cacheSize;
+    }
+
+    /** {@inheritDoc} */
+    public IoFuture<T> connectTo(final InetSocketAddress dest, final ChannelListener<? super T> openListener, final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener) {
+        return connector.connectTo(dest, openListener, bindListener);
+    }
+
+    /**
+     * Establish a connection to a service, by the name of the domain which offers it.
+     *
+     * @param hostName the domain which offers the service, or an IP address
+     * @param port the port to connect to if the domain has no SRV records, or if an IP address is given
+     * @param openListener the handler which will be notified when the channel is open, or {@code null} for none
+     * @param bindListener the handler which will be notified when the channel is bound, or {@code null} for none
+     * @return the future result of this operation
+     */
+    public IoFuture<T> connectTo(final String hostName, final int port, final ChannelListener<? super T> openListener, final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener) {
+        if (HappyEyeballsConnector.isLiteral(hostName)) {
+            final InetAddress address;
+            try {
+                address = InetAddress.getByName(hostName);
+            } catch (UnknownHostException e) {
+                return new FailedIoFuture<T>(e);
+            }
+            return connector.connectTo(new InetSocketAddress(address, port), openListener, bindListener);
+        }
+        final Domain domain;
+        final Domain serviceName;
+        try {
+            domain = Domain.fromString(hostName);
+            serviceName = Domain.fromString(prefix + "." + domain.getHostName());
+        } catch (IllegalArgumentException e) {
+            final UnknownHostException exception = new UnknownHostException(hostName);
+            exception.initCause(e);
+            return new FailedIoFuture<T>(exception);
+        }
+        final FutureResult<T> futureResult = new FutureResult<T>(executor);
+        final Connection connection = new Connection(domain, port, bindListener, futureResult);
+        futureResult.addCancelHandler(connection);
+        final Service service = getService(serviceName);
+        if (service != null) {
+            connection.start(service);
+        } else {
+            final IoFuture<Answer> futureAnswer = resolver.resolve(serviceName, RRClass.IN, RRType.SRV);
+            connection.setPending(futureAnswer);
+            futureAnswer.addNotifier(connection.new ServiceNotifier(), serviceName);
+        }
+        final IoFuture<T> ioFuture = futureResult.getIoFuture();
+        if (openListener != null) {
+            ioFuture.addNotifier(IoUtils.<T>channelListenerNotifier(), openListener);
+        }
+        return ioFuture;
+    }
+
+    /** {@inheritDoc} */
+    public ChannelSource<T> createChannelSource(final InetSocketAddress dest) {
+        return connector.createChannelSource(dest);
+    }
+
+    /**
+     * Create a client that always connects to the given service.  The target of each connection is selected afresh,
+     * so the connections are spread over the targets of the service by their priority and weight.
+     *
+     * @param hostName the domain which offers the service, or an IP address
+     * @param port the port to connect to if the domain has no SRV records, or if an IP address is given
+     * @return the client
+     */
+    public ChannelSource<T> createChannelSource(final String hostName, final int port) {
+        return new ChannelSource<T>() {
+            public IoFuture<? extends T> open(final ChannelListener<? super T> openListener) {
+                return connectTo(hostName, port, openListener, null);
+            }
+        };
+    }
+
+    private Service getService(final Domain serviceName) {
+        final Service service = services.get(serviceName);
+        if (service == null) {
+            return null;
+        }
+        if (service.expiresAt <= System.currentTimeMillis()) {
+            services.remove(serviceName, service);
+            return null;
+        }
+        return service;
+    }
+
+    private void putService(final Domain serviceName, final Service service) {
+        if (cacheSize == 0 || service.expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        if (services.size() >= cacheSize && ! services.containsKey(serviceName)) {
+            // forget an arbitrary service
+            final Iterator<Domain> iterator = services.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        services.put(serviceName, service);
+    }
+
+    /**
+     * Create a service from the answer to its SRV query.
+     *
+     * @param answer the answer
+     * @param domain the domain which offers the service
+     * @return the service
+     * @throws DNSException if the query failed
+     */
+    static Service createService(final Answer answer, final Domain domain) throws DNSException {
+        final ResultCode resultCode = answer.getResultCode();
+        final long now = System.currentTimeMillis();
+        if (resultCode == ResultCode.NXDOMAIN) {
+            return new Service(new Target[] { new Target(domain, 0, 0, -1) }, now + NEGATIVE_LIFETIME);
+        }
+        if (resultCode != ResultCode.NOERROR) {
+            throw new DNSException(resultCode);
+        }
+        final List<Target> targets = new ArrayList<Target>();
+        final Map<Domain, Target> byHost = new HashMap<Domain, Target>();
+        long ttl = Long.MAX_VALUE;
+        boolean unavailable = false;
+        for (Record record : answer.getAnswerRecords()) {
+            if (record instanceof SrvRecord) {
+                final SrvRecord srvRecord = (SrvRecord) record;
+                ttl = Math.min(ttl, srvRecord.getTtlSpec().getTtl() & 0xffffffffL);
+                final Domain host = srvRecord.getTarget();
+                if (host.equals(Domain.ROOT)) {
+                    unavailable = true;
+                    continue;
+                }
+                final Target target = new Target(host, srvRecord.getPriority(), srvRecord.getWeight(), srvRecord.getPort());
+                targets.add(target);
+                byHost.put(host, target);
+            }
+        }
+        if (targets.isEmpty()) {
+            if (unavailable) {
+                return new Service(new Target[0], now + ttl * 1000L);
+            }
+            // the domain does not use SRV records for this service
+            return new Service(new Target[] { new Target(domain, 0, 0, -1) }, now + NEGATIVE_LIFETIME);
+        }
+        // addresses supplied with the answer save a lookup per target
+        final Map<Domain, List<InetAddress>> glue = new HashMap<Domain, List<InetAddress>>();
+        for (Record record : answer.getAdditionalRecords()) {
+            final InetAddress address;
+            if (record instanceof ARecord) {
+                address = ((ARecord) record).getAddress();
+            } else if (record instanceof AaaaRecord) {
+                address = ((AaaaRecord) record).getAddress();
+            } else {
+                continue;
+            }
+            if (byHost.containsKey(record.getName())) {
+                List<InetAddress> addresses = glue.get(record.getName());
+                if (addresses == null) {
+                    glue.put(record.getName(), addresses = new ArrayList<InetAddress>());
+                }
+                addresses.add(address);
+            }
+        }
+        for (Map.Entry<Domain, List<InetAddress>> entry : glue.entrySet()) {
+            final List<InetAddress> addresses = AbstractResolver.addressSorter.sort(entry.getValue());
+            for (Target target : targets) {
+                if (target.host.equals(entry.getKey())) {
+                    target.addresses = addresses;
+                }
+            }
+        }
+        Collections.sort(targets, BY_PRIORITY);
+        return new Service(targets.toArray(new Target[targets.size()]), now + ttl * 1000L);
+    }
+
+    /**
+     * The targets of a service, in order of priority.
+     */
+    static final class Service {
+        final Target[] targets;
+        final long expiresAt;
+
+        Service(final Target[] targets, final long expiresAt) {
+            this.targets = targets;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Order the targets for one connection by the selection algorithm of RFC 2782.
+         *
+         * @param random the source of randomness
+         * @return the targets in the order in which they should be tried
+         */
+        List<Target> order(final Random random) {
+            final Target[] targets = this.targets;
+            final List<Target> ordered = new ArrayList<Target>(targets.length);
+            final List<Target> group = new ArrayList<Target>();
+            int start = 0;
+            while (start < targets.length) {
+                final int priority = targets[start].priority;
+                int end = start;
+                while (end < targets.length && targets[end].priority == priority) {
+                    end ++;
+                }
+                // any order will do, except that the targets of zero weight come first
+                group.clear();
+                for (int i = start; i < end; i ++) {
+                    group.add(targets[i]);
+                }
+                Collections.shuffle(group, random);
+                Collections.sort(group, ZERO_WEIGHT_FIRST);
+                while (! group.isEmpty()) {
+                    int sum = 0;
+                    for (Target target : group) {
+                        sum += target.weight;
+                    }
+                    final int selected = random.nextInt(sum + 1);
+                    int running = 0;
+                    final Iterator<Target> iterator = group.iterator();
+                    while (iterator.hasNext()) {
+                        final Target target = iterator.next();
+                        running += target.weight;
+                        if (running >= selected) {
+                            ordered.add(target);
+                            iterator.remove();
+                            break;
+                        }
+                    }
+                }
+                start = end;
+            }
+            return ordered;
+        }
+    }
+
+    /**
+     * One target of a service.
+     */
+    static final class Target {
+        final Domain host;
+        final int priority;
+        final int weight;
+        // -1 for the port given by the caller
+        final int port;
+        volatile List<InetAddress> addresses;
+
+        Target(final Domain host, final int priority, final int weight, final int port) {
+            this.host = host;
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+        }
+    }
+
+    /**
+     * One connection to a service, which tries its targets one at a time.
+     */
+    private final class Connection implements Cancellable {
+        private final Domain domain;
+        private final int port;
+        private final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener;
+        private final FutureResult<T> result;
+        // guarded by this
+        private List<Target> order;
+        private int nextTarget;
+        private Target target;
+        private List<InetAddress> addresses;
+        private Iterator<InetAddress> nextAddress;
+        private IoFuture<?> pending;
+        private IOException lastException;
+        private boolean finished;
+
+        Connection(final Domain domain, final int port, final ChannelListener<? super BoundChannel<InetSocketAddress>> bindListener, final FutureResult<T> result) {
+            this.domain = domain;
+            this.port = port;
+            this.bindListener = bindListener;
+            this.result = result;
+        }
+
+        synchronized void setPending(final IoFuture<?> pending) {
+            this.pending = pending;
+        }
+
+        void start(final Service service) {
+            if (service.targets.length == 0) {
+                fail(new ConnectException("Service " + prefix + " is not available at " + domain));
+                return;
+            }
+            final List<Target> order = service.order(random);
+            synchronized (this) {
+                this.order = order;
+            }
+            tryNextTarget();
+        }
+
+        void fail(final IOException exception) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            result.setException(exception);
+        }
+
+        void tryNextTarget() {
+            final Target target;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                if (nextTarget == order.size()) {
+                    finished = true;
+                    target = null;
+                } else {
+                    target = order.get(nextTarget ++);
+                }
+            }
+            if (target == null) {
+                final IOException exception = lastException;
+                result.setException(exception == null ? new UnknownHostException(domain.getHostName()) : exception);
+                return;
+            }
+            final List<InetAddress> addresses = target.addresses;
+            if (addresses != null) {
+                tryTarget(target, addresses);
+                return;
+            }
+            final IoFuture<List<InetAddress>> futureAddresses = resolver.resolveAllInet(target.host);
+            setPending(futureAddresses);
+            futureAddresses.addNotifier(new AddressNotifier(), target);
+        }
+
+        void tryTarget(final Target target, final List<InetAddress> addresses) {
+            synchronized (this) {
+                this.target = target;
+                this.addresses = addresses;
+                nextAddress = addresses.iterator();
+            }
+            tryNextAddress();
+        }
+
+        void tryNextAddress() {
+            final InetSocketAddress dest;
+            final Attempt attempt;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                if (! nextAddress.hasNext()) {
+                    // every address failed; look them up again next time
+                    if (target.addresses == addresses) {
+                        target.addresses = null;
+                    }
+                    dest = null;
+                    attempt = null;
+                } else {
+                    dest = new InetSocketAddress(nextAddress.next(), target.port == -1 ? port : target.port);
+                    attempt = new Attempt();
+                }
+            }
+            if (attempt == null) {
+                tryNextTarget();
+                return;
+            }
+            final IoFuture<T> futureChannel = connector.connectTo(dest, null, attempt);
+            setPending(futureChannel);
+            futureChannel.addNotifier(attempt, null);
+        }
+
+        void failed(final IOException exception) {
+            synchronized (this) {
+                if (exception != null) {
+                    lastException = exception;
+                }
+            }
+        }
+
+        void connected(final Attempt attempt, final T channel) {
+            synchronized (this) {
+                if (finished) {
+                    IoUtils.safeClose(channel);
+                    return;
+                }
+                finished = true;
+            }
+            final BoundChannel<InetSocketAddress> boundChannel = attempt.boundChannel;
+            if (bindListener != null && boundChannel != null) {
+                bindListener.handleEvent(boundChannel);
+            }
+            if (! result.setResult(channel)) {
+                // cancelled meanwhile
+                IoUtils.safeClose(channel);
+            }
+        }
+
+        public Connection cancel() {
+            final IoFuture<?> pending;
+            synchronized (this) {
+                if (finished) {
+                    return this;
+                }
+                finished = true;
+                pending = this.pending;
+            }
+            if (pending != null) {
+                pending.cancel();
+            }
+            result.setCancelled();
+            return this;
+        }
+
+        final class ServiceNotifier extends IoFuture.HandlingNotifier<Answer, Domain> {
+            public void handleCancelled(final Domain serviceName) {
+                fail(new ConnectException("Lookup of " + serviceName + " was cancelled"));
+            }
+
+            public void handleFailed(final IOException exception, final Domain serviceName) {
+                fail(exception);
+            }
+
+            public void handleDone(final Answer answer, final Domain serviceName) {
+                final Service service;
+                try {
+                    service = createService(answer, domain);
+                } catch (DNSException e) {
+                    fail(e);
+                    return;
+                }
+                putService(serviceName, service);
+                start(service);
+            }
+        }
+
+        final class AddressNotifier extends IoFuture.HandlingNotifier<List<InetAddress>, Target> {
+            public void handleCancelled(final Target target) {
+                tryNextTarget();
+            }
+
+            public void handleFailed(final IOException exception, final Target target) {
+                failed(exception);
+                tryNextTarget();
+            }
+
+            public void handleDone(final List<InetAddress> addresses, final Target target) {
+                if (addresses.isEmpty()) {
+                    tryNextTarget();
+                    return;
+                }
+                target.addresses = addresses;
+                tryTarget(target, addresses);
+            }
+        }
+
+        /**
+         * One connection attempt, which is also the bind listener of its channel.
+         */
+        final class Attempt extends IoFuture.HandlingNotifier<T, Void> implements ChannelListener<BoundChannel<InetSocketAddress>> {
+            volatile BoundChannel<InetSocketAddress> boundChannel;
+
+            public void handleEvent(final BoundChannel<InetSocketAddress> channel) {
+                boundChannel = channel;
+            }
+
+            public void handleCancelled(final Void attachment) {
+                tryNextAddress();
+            }
+
+            public void handleFailed(final IOException exception, final Void attachment) {
+                failed(exception);
+                tryNextAddress();
+            }
+
+            public void handleDone(final T channel, final Void attachment) {
+                connected(this, channel);
+            }
+        }
+    }
+}
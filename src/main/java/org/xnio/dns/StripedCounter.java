@@ -0,0 +1,68 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xnio.dns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can increment without contending for one memory location.  Each thread increments one
+ * of several cells, chosen by its thread ID, and each cell has a cache line to itself; reading the counter sums the
+ * cells.
+ */
+final class StripedCounter {
+
+    // longs per cell, so that cells do not share cache lines
+    private static final int PAD = 8;
+    private static final int CELL_COUNT;
+
+    static {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors() && cells < 64) {
+            cells <<= 1;
+        }
+        CELL_COUNT = cells;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELL_COUNT * PAD);
+
+    /**
+     * Add one to the counter.
+     */
+    void increment() {
+        final int hash = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        cells.getAndIncrement((hash >>> 16 & CELL_COUNT - 1) * PAD);
+    }
+
+    /**
+     * Get the current value of the counter.  The value is not a snapshot if the counter is being incremented
+     * concurrently.
+     *
+     * @return the value
+     */
+    long get() {
+        long sum = 0L;
+        for (int i = 0; i < CELL_COUNT; i ++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jboss.logging.Logger;
+import org.xnio.Cancellable;
+import org.xnio.ChannelListener;
+import org.xnio.Connector;
+import org.xnio.FutureResult;
+import org.xnio.IoFuture;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+import org.xnio.channels.StreamChannel;
+
+/**
+ * A network resolver which uses TCP to contact a remote server.  Connections are kept open and shared, and many
+ * queries may be outstanding on one connection at a time; replies are matched to their queries by message ID, so
+ * they may arrive in any order (RFC 7766).
+ * <p>
+ * The number of connections kept to each server is given by {@link DnsOptions#TCP_CONNECTIONS_PER_SERVER}.  A query
+ * which is outstanding when its connection is closed by the server is sent again once on a new connection.  A query
+ * which has no reply after {@link DnsOptions#QUERY_TIMEOUT} milliseconds fails with a {@link SocketTimeoutException}.
+ * <p>
+ * Queries, replies, timeouts and result codes are counted, per server where it matters, and are available as an
+ * MXBean from {@link #getStatistics()}.
+ */
+public final class TcpNetworkResolver extends AbstractNetworkResolver {
+
+    private static final Logger log = Logger.getLogger("org.xnio.dns.resolver.tcp");
+
+    // the number of connections one query may open before it gives up
+    private static final int MAX_CONNECT_ATTEMPTS = 3;
+
+    private final Connector<InetSocketAddress, ? extends StreamChannel> connector;
+    private final Executor executor;
+    private final Random random;
+    private final int connectionsPerServer;
+    private final TimingWheel timingWheel;
+    private final long queryTimeout;
+    private final long idleTimeout;
+    private final int ednsPayloadSize;
+    private final QueryTemplateCache queryTemplates;
+    private final ConcurrentMap<InetSocketAddress, ConnectionSet> connectionSets = new ConcurrentHashMap<InetSocketAddress, ConnectionSet>();
+    private final NetworkStatistics statistics = new NetworkStatistics();
+
+    /**
+     * Construct a new TCP network resolver.
+     *
+     * @param connector the connector to use to open connections to servers
+     * @param executor the executor to use for asynchronous notifications
+     * @param random the RNG to use to generate request IDs
+     */
+    public TcpNetworkResolver(final Connector<InetSocketAddress, ? extends StreamChannel> connector, final Executor executor, final Random random) {
+        this(connector, executor, random, OptionMap.EMPTY);
+    }
+
+    /**
+     * Construct a new TCP network resolver.
+     *
+     * @param connector the connector to use to open connections to servers
+     * @param executor the executor to use for asynchronous notifications
+     * @param random the RNG to use to generate request IDs
+     * @param optionMap the resolver options
+     */
+    public TcpNetworkResolver(final Connector<InetSocketAddress, ? extends StreamChannel> connector, final Executor executor, final Random random, final OptionMap optionMap) {
+        this(connector, executor, random, optionMap, TimingWheel.getDefault());
+    }
+
+    /**
+     * Construct a new TCP network resolver.
+     *
+     * @param connector the connector to use to open connections to servers
+     * @param executor the executor to use for asynchronous notifications
+     * @param random the RNG to use to generate request IDs
+     * @param optionMap the resolver options
+     * @param timingWheel the timing wheel to use for query timeouts
+     */
+    public TcpNetworkResolver(final Connector<InetSocketAddress, ? extends StreamChannel> connector, final Executor executor, final Random random, final OptionMap optionMap, final TimingWheel timingWheel) {
+        if (timingWheel == null) {
+            throw new NullPointerException("timingWheel is null");
+        }
+        this.timingWheel = timingWheel;
+        this.connector = connector;
+        this.executor = executor;
+        this.random = random;
+        connectionsPerServer = optionMap.get(DnsOptions.TCP_CONNECTIONS_PER_SERVER, 1);
+        if (connectionsPerServer < 1) {
+            throw new IllegalArgumentException("Connection count must be at least 1");
+        }
+        queryTimeout = optionMap.get(DnsOptions.QUERY_TIMEOUT, 5000);
+        if (queryTimeout <= 0L) {
+            throw new IllegalArgumentException("Query timeout must be positive");
+        }
+        idleTimeout = optionMap.get(DnsOptions.TCP_IDLE_TIMEOUT, 10000);
+        if (idleTimeout < 0L) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        ednsPayloadSize = optionMap.get(DnsOptions.EDNS_PAYLOAD_SIZE, WireFormat.DEFAULT_EDNS_PAYLOAD_SIZE);
+        if (ednsPayloadSize != 0 && (ednsPayloadSize < 512 || ednsPayloadSize > 65535)) {
+            throw new IllegalArgumentException("EDNS payload size must be zero or between 512 and 65535");
+        }
+        queryTemplates = new QueryTemplateCache(optionMap.get(DnsOptions.QUERY_TEMPLATE_CACHE_SIZE, 1024), ednsPayloadSize, optionMap.get(DnsOptions.EDNS_DNSSEC_OK, false));
+    }
+
+    /**
+     * Get the statistics of this resolver, which may be registered with an MBean server.
+     *
+     * @return the statistics
+     */
+    public NetworkResolverMXBean getStatistics() {
+        return statistics;
+    }
+
+    /** {@inheritDoc} */
+    public Resolver resolverFor(final SocketAddress server) {
+        return new ResolverImpl((InetSocketAddress) server);
+    }
+
+    private ConnectionSet getConnectionSet(final InetSocketAddress server) {
+        ConnectionSet connectionSet = connectionSets.get(server);
+        if (connectionSet == null) {
+            final ConnectionSet newConnectionSet = new ConnectionSet(server);
+            connectionSet = connectionSets.putIfAbsent(server, newConnectionSet);
+            if (connectionSet == null) {
+                connectionSet = newConnectionSet;
+            }
+        }
+        return connectionSet;
+    }
+
+    private class ResolverImpl extends AbstractResolver implements Resolver {
+        private final InetSocketAddress serverAddress;
+
+        ResolverImpl(final InetSocketAddress serverAddress) {
+            this.serverAddress = serverAddress;
+        }
+
+        public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+            final FutureResult<Answer> manager = new FutureResult<Answer>(executor);
+            final PendingQuery query = new PendingQuery(new QueryKey(name, rrClass, rrType), ! flags.contains(ResolverFlag.NO_RECURSION), manager);
+            manager.addCancelHandler(query);
+            query.timerKey = timingWheel.schedule(query, queryTimeout, TimeUnit.MILLISECONDS);
+            getConnectionSet(serverAddress).send(query);
+            return manager.getIoFuture();
+        }
+    }
+
+    /**
+     * The set of connections to one server.
+     */
+    private final class ConnectionSet {
+        private final InetSocketAddress server;
+        private final AtomicReferenceArray<Connection> connections;
+
+        ConnectionSet(final InetSocketAddress server) {
+            this.server = server;
+            connections = new AtomicReferenceArray<Connection>(connectionsPerServer);
+        }
+
+        void send(final PendingQuery query) {
+            final AtomicReferenceArray<Connection> connections = this.connections;
+            final int idx = random.nextInt(connections.length());
+            int attempts = 0;
+            for (;;) {
+                final Connection connection = connections.get(idx);
+                if (connection != null) {
+                    final int id = connection.register(query);
+                    if (id != -1) {
+                        if (query.abandoned()) {
+                            // timed out or cancelled while it was between connections
+                            return;
+                        }
+                        connection.write(query.encode(id));
+                        statistics.querySent(server);
+                        return;
+                    }
+                    if (! connection.closed) {
+                        query.fail(new IOException("Too many outstanding queries on connection to " + server));
+                        return;
+                    }
+                    if (attempts == MAX_CONNECT_ATTEMPTS) {
+                        final IOException exception = new IOException("Failed to connect to " + server);
+                        exception.initCause(connection.closeReason);
+                        query.fail(exception);
+                        return;
+                    }
+                }
+                attempts ++;
+                final Connection newConnection = new Connection(this);
+                if (! connections.compareAndSet(idx, connection, newConnection)) {
+                    newConnection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A persistent connection carrying any number of pipelined queries.  The connection is its own idle timer task,
+     * which closes it once it has carried no queries for the idle timeout.
+     */
+    private final class Connection implements Runnable {
+        private final ConnectionSet connectionSet;
+        private final ConcurrentMap<Integer, PendingQuery> pending = new ConcurrentHashMap<Integer, PendingQuery>();
+        // protected by writeQueue
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+        // only accessed by the read listener
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(2 + 65535);
+        private final IoFuture<? extends StreamChannel> futureChannel;
+        private volatile StreamChannel channel;
+        private volatile boolean closed;
+        private volatile IOException closeReason;
+        private volatile long lastUsed = System.nanoTime();
+
+        Connection(final ConnectionSet connectionSet) {
+            this.connectionSet = connectionSet;
+            if (idleTimeout > 0L) {
+                timingWheel.schedule(this, idleTimeout, TimeUnit.MILLISECONDS);
+            }
+            futureChannel = connector.connectTo(connectionSet.server, new ChannelListener<StreamChannel>() {
+                public void handleEvent(final StreamChannel channel) {
+                    channel.getCloseSetter().set(new ChannelListener<Channel>() {
+                        public void handleEvent(final Channel channel) {
+                            connectionClosed(new IOException("Connection closed before a reply was received"));
+                        }
+                    });
+                    channel.getReadSetter().set(new ChannelListener<StreamChannel>() {
+                        public void handleEvent(final StreamChannel channel) {
+                            handleReadable(channel);
+                        }
+                    });
+                    channel.getWriteSetter().set(new ChannelListener<StreamChannel>() {
+                        public void handleEvent(final StreamChannel channel) {
+                            synchronized (writeQueue) {
+                                flushWrites(channel);
+                            }
+                        }
+                    });
+                    synchronized (writeQueue) {
+                        Connection.this.channel = channel;
+                        if (closed) {
+                            IoUtils.safeClose(channel);
+                            return;
+                        }
+                        flushWrites(channel);
+                    }
+                    channel.resumeReads();
+                }
+            }, null);
+            futureChannel.addNotifier(new IoFuture.HandlingNotifier<StreamChannel, Connection>() {
+                public void handleCancelled(final Connection connection) {
+                    connection.connectionClosed(new IOException("Connection was cancelled"));
+                }
+
+                public void handleFailed(final IOException exception, final Connection connection) {
+                    connection.connectionClosed(exception);
+                }
+            }, this);
+        }
+
+        /**
+         * Register a query on this connection.
+         *
+         * @param query the query
+         * @return the message ID assigned to the query, or -1 if the connection is closed or has no free IDs
+         */
+        int register(final PendingQuery query) {
+            if (closed || pending.size() >= 0x10000) {
+                return -1;
+            }
+            lastUsed = System.nanoTime();
+            int id;
+            do {
+                id = random.nextInt() & 0xffff;
+                // the query must know its connection before anyone else can find it
+                query.registered(this, id);
+            } while (pending.putIfAbsent(Integer.valueOf(id), query) != null);
+            if (closed) {
+                // raced with close
+                return pending.remove(Integer.valueOf(id), query) ? -1 : id;
+            }
+            return id;
+        }
+
+        boolean remove(final int id, final PendingQuery query) {
+            lastUsed = System.nanoTime();
+            return pending.remove(Integer.valueOf(id), query);
+        }
+
+        // idle timer
+        public void run() {
+            if (closed) {
+                return;
+            }
+            // timer tasks must not block, so the check is made by the executor
+            executor.execute(new Runnable() {
+                public void run() {
+                    checkIdle();
+                }
+            });
+        }
+
+        void checkIdle() {
+            if (closed) {
+                return;
+            }
+            final long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsed);
+            if (pending.isEmpty() && idle >= idleTimeout) {
+                // a query which registers meanwhile is retried on a new connection when this one closes
+                close();
+            } else {
+                timingWheel.schedule(this, pending.isEmpty() ? idleTimeout - idle : idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void write(final ByteBuffer message) {
+            synchronized (writeQueue) {
+                writeQueue.add(message);
+                final StreamChannel channel = this.channel;
+                if (channel != null) {
+                    flushWrites(channel);
+                }
+            }
+        }
+
+        // call with writeQueue held
+        private void flushWrites(final StreamChannel channel) {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = writeQueue.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        channel.resumeWrites();
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                // everything is written; don't wake up again until there is more
+                channel.suspendWrites();
+            } catch (IOException e) {
+                log.error("Closing channel '%s' due to I/O error on write: %s", channel, e);
+                IoUtils.safeClose(channel);
+            }
+        }
+
+        private void handleReadable(final StreamChannel channel) {
+            final ByteBuffer readBuffer = this.readBuffer;
+            for (;;) {
+                final int res;
+                try {
+                    res = channel.read(readBuffer);
+                } catch (IOException e) {
+                    log.error("Closing channel '%s' due to I/O error on read: %s", channel, e);
+                    IoUtils.safeClose(channel);
+                    return;
+                }
+                if (res == -1) {
+                    IoUtils.safeClose(channel);
+                    return;
+                } else if (res == 0) {
+                    channel.resumeReads();
+                    return;
+                }
+                readBuffer.flip();
+                while (readBuffer.remaining() >= 2) {
+                    final int pos = readBuffer.position();
+                    final int length = readBuffer.getShort(pos) & 0xffff;
+                    if (readBuffer.remaining() < 2 + length) {
+                        break;
+                    }
+                    final ByteBuffer message = readBuffer.duplicate();
+                    message.position(pos + 2);
+                    message.limit(pos + 2 + length);
+                    readBuffer.position(pos + 2 + length);
+                    // compression pointers are relative to the start of the message
+                    handleReply(message.slice());
+                }
+                readBuffer.compact();
+            }
+        }
+
+        private void handleReply(final ByteBuffer message) {
+            if (! WireFormat.isReply(message)) {
+                return;
+            }
+            final PendingQuery query = pending.get(Integer.valueOf(WireFormat.getId(message)));
+            if (query == null) {
+                // late reply to a cancelled query
+                return;
+            }
+            final QueryKey question = query.question;
+            try {
+                if (! question.equals(WireFormat.readQuestion(message))) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                return;
+            }
+            Answer answer;
+            try {
+                answer = WireFormat.readAnswer(message);
+                if (answer.getFlags().contains(Answer.Flag.TRUNCATED)) {
+                    statistics.truncation();
+                }
+            } catch (RuntimeException e) {
+                answer = Answer.builder().setHeaderInfo(question.getDomain(), question.getRRClass(), question.getRRType(), ResultCode.FORMAT_ERROR).create();
+            }
+            statistics.replyReceived(connectionSet.server);
+            statistics.resultCode(answer.getResultCode());
+            query.complete(answer);
+        }
+
+        void close() {
+            closed = true;
+            synchronized (writeQueue) {
+                final StreamChannel channel = this.channel;
+                if (channel != null) {
+                    IoUtils.safeClose(channel);
+                } else {
+                    futureChannel.cancel();
+                }
+            }
+        }
+
+        private void connectionClosed(final IOException reason) {
+            closeReason = reason;
+            closed = true;
+            for (Map.Entry<Integer, PendingQuery> entry : pending.entrySet()) {
+                final PendingQuery query = entry.getValue();
+                if (pending.remove(entry.getKey(), query)) {
+                    query.retry(reason);
+                }
+            }
+        }
+    }
+
+    /**
+     * A query which is registered on a connection.  Whoever removes the query from its connection completes it.  The
+     * query is its own timeout task.
+     */
+    private final class PendingQuery implements Cancellable, Runnable {
+        private final QueryKey question;
+        private final boolean recursionDesired;
+        private final FutureResult<Answer> result;
+        private volatile Connection connection;
+        private volatile int id;
+        private volatile TimingWheel.Key timerKey;
+        private volatile boolean timedOut;
+        private volatile boolean cancelled;
+        private boolean retried;
+
+        PendingQuery(final QueryKey question, final boolean recursionDesired, final FutureResult<Answer> result) {
+            this.question = question;
+            this.recursionDesired = recursionDesired;
+            this.result = result;
+        }
+
+        void registered(final Connection connection, final int id) {
+            this.id = id;
+            this.connection = connection;
+        }
+
+        ByteBuffer encode(final int id) {
+            final int length = queryTemplates.getLength(question);
+            final ByteBuffer buffer = ByteBuffer.allocate(2 + length);
+            buffer.putShort((short) length);
+            queryTemplates.writeQuery(buffer, question, id, recursionDesired, ednsPayloadSize);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void cancelTimer() {
+            final TimingWheel.Key timerKey = this.timerKey;
+            if (timerKey != null) {
+                timerKey.cancel();
+            }
+        }
+
+        public void run() {
+            // if the query is between connections, whoever registers it next finishes the job
+            timedOut = true;
+            final Connection connection = this.connection;
+            if (connection != null && connection.remove(id, this)) {
+                timeout(connection);
+            }
+        }
+
+        private void timeout(final Connection connection) {
+            statistics.timeout();
+            result.setException(new SocketTimeoutException("DNS query to " + connection.connectionSet.server + " timed out"));
+        }
+
+        /**
+         * Complete this query if it timed out or was cancelled before it was registered on its current connection.
+         *
+         * @return {@code true} if the query was completed
+         */
+        boolean abandoned() {
+            if (! timedOut && ! cancelled) {
+                return false;
+            }
+            final Connection connection = this.connection;
+            if (! connection.remove(id, this)) {
+                // completed by someone else
+                return true;
+            }
+            if (cancelled) {
+                cancelTimer();
+                result.setCancelled();
+            } else {
+                timeout(connection);
+            }
+            return true;
+        }
+
+        void complete(final Answer answer) {
+            if (connection.remove(id, this)) {
+                cancelTimer();
+                result.setResult(answer);
+            }
+        }
+
+        void fail(final IOException exception) {
+            cancelTimer();
+            result.setException(exception);
+        }
+
+        void retry(final IOException reason) {
+            // only called after removal from the closed connection
+            if (retried) {
+                fail(reason);
+            } else {
+                retried = true;
+                connection.connectionSet.send(this);
+            }
+        }
+
+        public Cancellable cancel() {
+            cancelled = true;
+            final Connection connection = this.connection;
+            if (connection != null && connection.remove(id, this)) {
+                cancelTimer();
+                result.setCancelled();
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.jboss.logging.Logger;
+import org.xnio.Cancellable;
+
+/**
+ * A hashed timing wheel, used to run large numbers of short timeout tasks with coarse precision.  Scheduling and
+ * cancelling a task are constant-time operations which do not contend with each other; a single worker thread
+ * advances the wheel once per tick and runs the tasks which have come due.
+ * <p>
+ * Tasks are run by the worker thread, so they must be short and must never block.  The worker thread is a daemon
+ * thread which is started when the first task is scheduled.
+ */
+public final class TimingWheel {
+
+    private static final Logger log = Logger.getLogger("org.xnio.dns.timer");
+
+    private static final int ST_INITIAL = 0;
+    private static final int ST_STARTED = 1;
+    private static final int ST_SHUTDOWN = 2;
+
+    private final long tickNanos;
+    private final Key[] wheel;
+    private final int mask;
+    private final long startNanos;
+    private final ConcurrentLinkedQueue<Key> newKeys = new ConcurrentLinkedQueue<Key>();
+    private final AtomicInteger state = new AtomicInteger(ST_INITIAL);
+    private final Thread worker;
+    private volatile long currentTimeMillis = System.currentTimeMillis();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param tickDuration the duration of one tick
+     * @param unit the unit of the tick duration
+     * @param ticksPerWheel the number of buckets on the wheel (will be rounded up to a power of two)
+     * @param name the name of the worker thread
+     */
+    public TimingWheel(final long tickDuration, final TimeUnit unit, final int ticksPerWheel, final String name) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("Invalid wheel size");
+        }
+        tickNanos = unit.toNanos(tickDuration);
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Key[size];
+        mask = size - 1;
+        startNanos = System.nanoTime();
+        worker = new Thread(new Worker(), name);
+        worker.setDaemon(true);
+    }
+
+    /**
+     * Construct a new instance with a 10 millisecond tick and 512 buckets.
+     */
+    public TimingWheel() {
+        this(10L, TimeUnit.MILLISECONDS, 512, "DNS timer");
+    }
+
+    private static final class DefaultHolder {
+        static final TimingWheel INSTANCE = new TimingWheel();
+    }
+
+    /**
+     * Get the default timing wheel which is shared by resolvers that are not given one explicitly.
+     *
+     * @return the default timing wheel
+     */
+    public static TimingWheel getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Schedule a task to run after the given delay.  The task will run on the next tick after the delay elapses.
+     *
+     * @param task the task to run
+     * @param delay the delay
+     * @param unit the delay unit
+     * @return the key which may be used to cancel the task
+     */
+    public Key schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task is null");
+        }
+        final int state = this.state.get();
+        if (state == ST_SHUTDOWN) {
+            throw new IllegalStateException("Timing wheel is shut down");
+        } else if (state == ST_INITIAL && this.state.compareAndSet(ST_INITIAL, ST_STARTED)) {
+            worker.start();
+        }
+        final Key key = new Key(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0L, delay)));
+        newKeys.add(key);
+        return key;
+    }
+
+    /**
+     * Get the wall clock time as of the most recent tick.  This is a cheap substitute for
+     * {@link System#currentTimeMillis()} which is accurate to within one tick while the wheel is running.
+     *
+     * @return the current time in milliseconds
+     */
+    public long currentTimeMillis() {
+        return state.get() == ST_STARTED ? currentTimeMillis : System.currentTimeMillis();
+    }
+
+    /**
+     * Stop the worker thread.  Tasks which have not yet run are discarded.
+     */
+    public void shutdown() {
+        if (state.getAndSet(ST_SHUTDOWN) == ST_STARTED) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Key implements Cancellable {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // only accessed by the worker thread
+        private long remainingRounds;
+        private Key prev;
+        private Key next;
+
+        private Key(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task, if it has not yet run.
+         *
+         * @return this key
+         */
+        public Key cancel() {
+            state.compareAndSet(WAITING, CANCELLED);
+            return this;
+        }
+
+        /**
+         * Determine whether this task was cancelled before it ran.
+         *
+         * @return {@code true} if the task was cancelled
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private long tick;
+
+        public void run() {
+            while (state.get() == ST_STARTED) {
+                final long deadline = tickNanos * (tick + 1);
+                long sleepNanos;
+                while ((sleepNanos = deadline - (System.nanoTime() - startNanos)) > 0L) {
+                    LockSupport.parkNanos(this, sleepNanos);
+                    if (state.get() != ST_STARTED) {
+                        return;
+                    }
+                }
+                currentTimeMillis = System.currentTimeMillis();
+                transferNewKeys();
+                expire(wheel[(int) (tick & mask)], deadline);
+                tick ++;
+            }
+        }
+
+        private void transferNewKeys() {
+            Key key;
+            // bound the work per tick so a flood of new keys cannot stall the wheel
+            for (int i = 0; i < 100000 && (key = newKeys.poll()) != null; i ++) {
+                if (key.state.get() == Key.CANCELLED) {
+                    continue;
+                }
+                final long calculated = Math.max(key.deadline / tickNanos, tick);
+                key.remainingRounds = (calculated - tick) / wheel.length;
+                final int idx = (int) (calculated & mask);
+                final Key head = wheel[idx];
+                key.next = head;
+                if (head != null) {
+                    head.prev = key;
+                }
+                wheel[idx] = key;
+            }
+        }
+
+        private void expire(final Key head, final long deadline) {
+            Key key = head;
+            while (key != null) {
+                final Key next = key.next;
+                if (key.state.get() == Key.CANCELLED) {
+                    remove(key);
+                } else if (key.remainingRounds > 0L) {
+                    key.remainingRounds --;
+                } else if (key.deadline <= deadline) {
+                    remove(key);
+                    if (key.state.compareAndSet(Key.WAITING, Key.EXPIRED)) {
+                        try {
+                            key.task.run();
+                        } catch (Throwable t) {
+                            log.error("Timer task %s failed: %s", key.task, t);
+                        }
+                    }
+                }
+                key = next;
+            }
+        }
+
+        private void remove(final Key key) {
+            final Key prev = key.prev;
+            final Key next = key.next;
+            if (prev == null) {
+                wheel[(int) (tick & mask)] = next;
+            } else {
+                prev.next = next;
+            }
+            if (next != null) {
+                next.prev = prev;
+            }
+            key.prev = key.next = null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The TinyLFU admission policy, which admits a new entry only if its question has been asked more often than the
+ * question of the entry it would replace.  Question frequencies are estimated by a count-min sketch of four-bit
+ * counters, four counters per question, packed sixteen to a {@code long}.  Once a sample of ten times the cache size
+ * has been counted, every counter is halved, so that the estimates follow changes in popularity.  The halving is done by
+ * a task on the executor, so that the lookup which completes a sample does not pay for it.
+ * <p>
+ * A counter which has reached its maximum is only read, so asking a popular question does not write to shared memory.
+ */
+public final class TinyLfuAdmissionPolicy implements AdmissionPolicy {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long HALF_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+    private final AtomicBoolean resetting = new AtomicBoolean();
+    private final Executor executor;
+    private final Runnable resetTask = new Runnable() {
+        public void run() {
+            try {
+                reset();
+            } finally {
+                resetting.set(false);
+            }
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param maxSize the size of the cache whose entries are admitted
+     * @param executor the executor to use to halve the counters
+     */
+    public TinyLfuAdmissionPolicy(final int maxSize, final Executor executor) {
+        this.executor = executor;
+        int length = 64;
+        while (length < maxSize && length < 1 << 30) {
+            length <<= 1;
+        }
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, Math.max(10L * maxSize, 10L * 64));
+    }
+
+    /** {@inheritDoc} */
+    public void record(final QueryKey key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i ++) {
+            added |= increment(indexOf(hash, i), (start + i) << 2);
+        }
+        if (added && additions.incrementAndGet() >= sampleSize && resetting.compareAndSet(false, true)) {
+            try {
+                executor.execute(resetTask);
+            } catch (RejectedExecutionException e) {
+                // try again with the next addition
+                resetting.set(false);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean admit(final QueryKey candidate, final QueryKey victim) {
+        return frequency(candidate) > frequency(victim);
+    }
+
+    /**
+     * Estimate the number of times a question was asked in the current sample.
+     *
+     * @param key the question
+     * @return the estimate, at most 15
+     */
+    int frequency(final QueryKey key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i ++) {
+            frequency = Math.min(frequency, (int) (table.get(indexOf(hash, i)) >>> ((start + i) << 2)) & MAX_COUNT);
+        }
+        return frequency;
+    }
+
+    private boolean increment(final int index, final int shift) {
+        long value;
+        do {
+            value = table.get(index);
+            if ((value >>> shift & MAX_COUNT) == MAX_COUNT) {
+                return false;
+            }
+        } while (! table.compareAndSet(index, value, value + (1L << shift)));
+        return true;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length(); i ++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (! table.compareAndSet(i, value, value >>> 1 & HALF_MASK));
+        }
+        additions.addAndGet(-(sampleSize >>> 1));
+    }
+
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(final int hashCode) {
+        final int h = hashCode * 0x31848bab;
+        return h ^ h >>> 14;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.xnio.OptionMap;
+import org.xnio.Sequence;
+
+/**
+ * A policy which adjusts the time for which a cache keeps an answer.  The TTL of every answer is clamped between a
+ * minimum and a maximum, which may be overridden for questions of a given type or for names under a given domain, and
+ * is then shortened by a random amount so that caches which stored an answer at the same moment do not all refresh it
+ * at the same moment.  A TTL which is too close to the minimum to be shortened is lengthened by a random amount
+ * instead, up to the maximum.
+ */
+final class TtlPolicy {
+
+    private final Limits defaults;
+    private final Map<RRType, Limits> typeLimits;
+    private final Map<Domain, Limits> domainLimits;
+    private final int jitterPercent;
+    // one generator per thread, since every store asks for a random number
+    private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private TtlPolicy(final Limits defaults, final Map<RRType, Limits> typeLimits, final Map<Domain, Limits> domainLimits, final int jitterPercent) {
+        this.defaults = defaults;
+        this.typeLimits = typeLimits;
+        this.domainLimits = domainLimits;
+        this.jitterPercent = jitterPercent;
+    }
+
+    /**
+     * Create a policy from the {@link DnsOptions#CACHE_MIN_TTL}, {@link DnsOptions#CACHE_MAX_TTL},
+     * {@link DnsOptions#CACHE_TTL_OVERRIDES} and {@link DnsOptions#CACHE_TTL_JITTER_PERCENT} options.
+     *
+     * @param optionMap the options
+     * @return the policy, or {@code null} if the options leave every TTL unchanged
+     */
+    static TtlPolicy create(final OptionMap optionMap) {
+        final int minTtl = optionMap.get(DnsOptions.CACHE_MIN_TTL, 0);
+        final int maxTtl = optionMap.get(DnsOptions.CACHE_MAX_TTL, 0);
+        final int jitterPercent = optionMap.get(DnsOptions.CACHE_TTL_JITTER_PERCENT, 0);
+        if (jitterPercent < 0 || jitterPercent > 99) {
+            throw new IllegalArgumentException("TTL jitter percentage must be between 0 and 99");
+        }
+        final Limits defaults = new Limits(minTtl, maxTtl == 0 ? Integer.MAX_VALUE : maxTtl);
+        final Map<RRType, Limits> typeLimits = new EnumMap<RRType, Limits>(RRType.class);
+        final Map<Domain, Limits> domainLimits = new HashMap<Domain, Limits>();
+        final Sequence<String> overrides = optionMap.get(DnsOptions.CACHE_TTL_OVERRIDES);
+        if (overrides != null) {
+            for (String override : overrides) {
+                final int eq = override.indexOf('=');
+                final int dash = override.indexOf('-', eq + 1);
+                if (eq < 1 || dash == -1) {
+                    throw new IllegalArgumentException("Invalid TTL override \"" + override + "\"");
+                }
+                final String target = override.substring(0, eq).trim();
+                final Limits limits;
+                try {
+                    limits = new Limits(Integer.parseInt(override.substring(eq + 1, dash).trim()), Integer.parseInt(override.substring(dash + 1).trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid TTL override \"" + override + "\"");
+                }
+                final RRType rrType = getRRType(target);
+                if (rrType != null) {
+                    typeLimits.put(rrType, limits);
+                } else {
+                    domainLimits.put(Domain.fromString(target), limits);
+                }
+            }
+        }
+        if (minTtl == 0 && maxTtl == 0 && jitterPercent == 0 && typeLimits.isEmpty() && domainLimits.isEmpty()) {
+            return null;
+        }
+        return new TtlPolicy(defaults, typeLimits, domainLimits, jitterPercent);
+    }
+
+    private static RRType getRRType(final String name) {
+        for (RRType rrType : RRType.values()) {
+            if (rrType.name().equals(name)) {
+                return rrType;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adjust the expiry time of an answer.
+     *
+     * @param question the question which the answer answers
+     * @param now the current time in milliseconds
+     * @param expiresAt the expiry time given by the TTLs of the answer
+     * @return the adjusted expiry time
+     */
+    long adjust(final QueryKey question, final long now, final long expiresAt) {
+        final Limits limits = getLimits(question);
+        final long minTtl = limits.minTtl * 1000L;
+        final long maxTtl = limits.maxTtl * 1000L;
+        long ttl = Math.max(minTtl, Math.min(maxTtl, expiresAt - now));
+        if (jitterPercent > 0 && ttl > 0L) {
+            final long jitter = ttl * jitterPercent / 100L;
+            if (jitter > 0L) {
+                final long offset = (random.get().nextLong() >>> 1) % (jitter + 1L);
+                if (ttl - jitter >= minTtl) {
+                    // shorten rather than lengthen, so that no answer is kept beyond its TTL
+                    ttl -= offset;
+                } else {
+                    // there is no room below the minimum, so spread the answers out above it
+                    ttl = Math.min(maxTtl, minTtl + offset);
+                }
+            }
+        }
+        return now + ttl;
+    }
+
+    private Limits getLimits(final QueryKey question) {
+        if (! domainLimits.isEmpty()) {
+            // the longest matching suffix wins
+            for (Domain domain = question.getDomain(); domain != null; domain = domain.getParent()) {
+                final Limits limits = domainLimits.get(domain);
+                if (limits != null) {
+                    return limits;
+                }
+            }
+        }
+        final Limits limits = typeLimits.get(question.getRRType());
+        return limits == null ? defaults : limits;
+    }
+
+    private static final class Limits {
+        final int minTtl;
+        final int maxTtl;
+
+        Limits(final int minTtl, final int maxTtl) {
+            if (minTtl < 0 || maxTtl < minTtl) {
+                throw new IllegalArgumentException("Invalid TTL limits " + minTtl + "-" + maxTtl);
+            }
+            this.minTtl = minTtl;
+            this.maxTtl = maxTtl;
+        }
+    }
+}
@@ -24,16 +24,24 @@ package org.xnio.dns;
 
 import java.net.SocketAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.util.Set;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.nio.ByteBuffer;
-import java.nio.BufferUnderflowException;
 import java.nio.channels.Channel;
 import java.io.IOException;
 import org.xnio.BufferAllocator;
+import org.xnio.Cancellable;
 import org.xnio.IoFuture;
 import org.xnio.ChannelListener;
+import org.xnio.OptionMap;
 import org.xnio.Pool;
 import org.xnio.Buffers;
 import org.xnio.IoUtils;
@@ -46,6 +54,24 @@ import org.xnio.channels.SocketAddressBuffer;
 
 /**
  * A network resolver which uses UDP to contact a remote server.
+ * <p>
+ * By default every query is sent from a new channel.  If {@link DnsOptions#UDP_SOCKETS_PER_SERVER} is given, queries
+ * to each server are instead multiplexed over a small set of long-lived channels, and replies are matched to their
+ * queries by server address, message ID and question.  Each shared channel is replaced by a new one after it has
+ * carried {@link DnsOptions#UDP_SOCKET_ROTATE_QUERIES} queries so that the source port keeps changing.
+ * <p>
+ * If a TCP resolver is given, truncated replies are retried over TCP, and queries with the
+ * {@link ResolverFlag#USE_TCP} flag are sent over TCP directly.
+ * <p>
+ * A query which has no reply after {@link DnsOptions#QUERY_RETRANSMIT_INTERVAL} milliseconds is sent again, with the
+ * interval doubling each time, until {@link DnsOptions#QUERY_TIMEOUT} milliseconds have passed, at which point it fails
+ * with a {@link SocketTimeoutException}.  All timers are kept on a shared {@link TimingWheel}.
+ * <p>
+ * Queries carry an EDNS(0) OPT record advertising a UDP payload size of {@link DnsOptions#EDNS_PAYLOAD_SIZE} bytes,
+ * or the size of the pooled buffers if they are smaller, so that most large answers fit in one datagram.
+ * <p>
+ * Queries, replies, timeouts and result codes are counted, per server where it matters, and are available as an
+ * MXBean from {@link #getStatistics()}.
  */
 public final class UdpNetworkResolver extends AbstractNetworkResolver {
 
@@ -55,6 +81,17 @@ public final class UdpNetworkResolver extends AbstractNetworkResolver {
     private final ChannelSource<MulticastMessageChannel> channelSource;
     private final Executor executor;
     private final Random random;
+    private final int socketsPerServer;
+    private final int rotateQueries;
+    private final NetworkResolver tcpResolver;
+    private final TimingWheel timingWheel;
+    private final long queryTimeout;
+    private final long retransmitInterval;
+    private final int ednsPayloadSize;
+    private final QueryTemplateCache queryTemplates;
+    private final ConcurrentMap<InetSocketAddress, SocketSet> socketSets = new ConcurrentHashMap<InetSocketAddress, SocketSet>();
+    private final ConcurrentMap<QueryId, PendingQuery> inFlight = new ConcurrentHashMap<QueryId, PendingQuery>();
+    private final NetworkStatistics statistics = new NetworkStatistics();
 
     /**
      * Construct a new UDP network resolver.  In order to provide resilient security, the given channel source
@@ -65,7 +102,7 @@ public final class UdpNetworkResolver extends AbstractNetworkResolver {
      * @param random the RNG to use to generate request IDs
      */
     public UdpNetworkResolver(final Executor executor, final ChannelSource<MulticastMessageChannel> channelSource, final Random random) {
-        this(Buffers.allocatedBufferPool(BufferAllocator.BYTE_BUFFER_ALLOCATOR, 512), channelSource, executor, random);
+        this(Buffers.allocatedBufferPool(BufferAllocator.BYTE_BUFFER_ALLOCATOR, WireFormat.DEFAULT_EDNS_PAYLOAD_SIZE), channelSource, executor, random);
     }
 
     /**
@@ -78,10 +115,87 @@ public final class UdpNetworkResolver extends AbstractNetworkResolver {
      * @param random the RNG to use to generate request IDs
      */
     public UdpNetworkResolver(final Pool<ByteBuffer> bufferPool, final ChannelSource<MulticastMessageChannel> channelSource, final Executor executor, final Random random) {
+        this(bufferPool, channelSource, executor, random, OptionMap.EMPTY);
+    }
+
+    /**
+     * Construct a new UDP network resolver.  In order to provide resilient security, the given channel source
+     * should choose port numbers at random.
+     *
+     * @param bufferPool the buffer pool to use
+     * @param executor the executor to use for asynchronous notifications
+     * @param channelSource the channel source to use to create new UDP client channels
+     * @param random the RNG to use to generate request IDs
+     * @param optionMap the resolver options
+     */
+    public UdpNetworkResolver(final Pool<ByteBuffer> bufferPool, final ChannelSource<MulticastMessageChannel> channelSource, final Executor executor, final Random random, final OptionMap optionMap) {
+        this(bufferPool, channelSource, executor, random, optionMap, null);
+    }
+
+    /**
+     * Construct a new UDP network resolver.  In order to provide resilient security, the given channel source
+     * should choose port numbers at random.
+     *
+     * @param bufferPool the buffer pool to use
+     * @param executor the executor to use for asynchronous notifications
+     * @param channelSource the channel source to use to create new UDP client channels
+     * @param random the RNG to use to generate request IDs
+     * @param optionMap the resolver options
+     * @param tcpResolver the resolver to use for truncated replies and TCP queries, or {@code null} for none
+     */
+    public UdpNetworkResolver(final Pool<ByteBuffer> bufferPool, final ChannelSource<MulticastMessageChannel> channelSource, final Executor executor, final Random random, final OptionMap optionMap, final NetworkResolver tcpResolver) {
+        this(bufferPool, channelSource, executor, random, optionMap, tcpResolver, TimingWheel.getDefault());
+    }
+
+    /**
+     * Construct a new UDP network resolver.  In order to provide resilient security, the given channel source
+     * should choose port numbers at random.
+     *
+     * @param bufferPool the buffer pool to use
+     * @param executor the executor to use for asynchronous notifications
+     * @param channelSource the channel source to use to create new UDP client channels
+     * @param random the RNG to use to generate request IDs
+     * @param optionMap the resolver options
+     * @param tcpResolver the resolver to use for truncated replies and TCP queries, or {@code null} for none
+     * @param timingWheel the timing wheel to use for query timeouts and retransmissions
+     */
+    public UdpNetworkResolver(final Pool<ByteBuffer> bufferPool, final ChannelSource<MulticastMessageChannel> channelSource, final Executor executor, final Random random, final OptionMap optionMap, final NetworkResolver tcpResolver, final TimingWheel timingWheel) {
+        if (timingWheel == null) {
+            throw new NullPointerException("timingWheel is null");
+        }
+        this.timingWheel = timingWheel;
+        this.tcpResolver = tcpResolver;
         this.bufferPool = bufferPool;
         this.channelSource = channelSource;
         this.executor = executor;
         this.random = random;
+        socketsPerServer = optionMap.get(DnsOptions.UDP_SOCKETS_PER_SERVER, 0);
+        if (socketsPerServer < 0) {
+            throw new IllegalArgumentException("Negative socket count");
+        }
+        rotateQueries = optionMap.get(DnsOptions.UDP_SOCKET_ROTATE_QUERIES, 10000);
+        if (rotateQueries < 1) {
+            throw new IllegalArgumentException("Socket rotation query count must be at least 1");
+        }
+        queryTimeout = TimeUnit.MILLISECONDS.toNanos(optionMap.get(DnsOptions.QUERY_TIMEOUT, 5000));
+        retransmitInterval = TimeUnit.MILLISECONDS.toNanos(optionMap.get(DnsOptions.QUERY_RETRANSMIT_INTERVAL, 1000));
+        if (queryTimeout <= 0L || retransmitInterval <= 0L) {
+            throw new IllegalArgumentException("Query timeout and retransmit interval must be positive");
+        }
+        ednsPayloadSize = optionMap.get(DnsOptions.EDNS_PAYLOAD_SIZE, WireFormat.DEFAULT_EDNS_PAYLOAD_SIZE);
+        if (ednsPayloadSize != 0 && (ednsPayloadSize < 512 || ednsPayloadSize > 65535)) {
+            throw new IllegalArgumentException("EDNS payload size must be zero or between 512 and 65535");
+        }
+        queryTemplates = new QueryTemplateCache(optionMap.get(DnsOptions.QUERY_TEMPLATE_CACHE_SIZE, 1024), ednsPayloadSize, optionMap.get(DnsOptions.EDNS_DNSSEC_OK, false));
+    }
+
+    /**
+     * Get the statistics of this resolver, which may be registered with an MBean server.
+     *
+     * @return the statistics
+     */
+    public NetworkResolverMXBean getStatistics() {
+        return statistics;
     }
 
     /** {@inheritDoc} */
@@ -89,6 +203,25 @@ public final class UdpNetworkResolver extends AbstractNetworkResolver {
         return new ResolverImpl((InetSocketAddress) server);
     }
 
+    private SharedSocket acquireSocket(final InetSocketAddress server) {
+        if (socketsPerServer == 0) {
+            // a private socket which is closed as soon as its only query is done
+            final SharedSocket socket = new SharedSocket(1);
+            socket.acquire();
+            socket.retire();
+            return socket;
+        }
+        SocketSet socketSet = socketSets.get(server);
+        if (socketSet == null) {
+            final SocketSet newSocketSet = new SocketSet();
+            socketSet = socketSets.putIfAbsent(server, newSocketSet);
+            if (socketSet == null) {
+                socketSet = newSocketSet;
+            }
+        }
+        return socketSet.acquire();
+    }
+
     private class ResolverImpl extends AbstractResolver implements Resolver {
         private final InetSocketAddress serverAddress;
 
@@ -97,69 +230,341 @@ public final class UdpNetworkResolver extends AbstractNetworkResolver {
         }
 
         public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
-            final int id = random.nextInt() & 0xffff;
+            if (tcpResolver != null && flags.contains(ResolverFlag.USE_TCP)) {
+                return tcpResolver.resolverFor(serverAddress).resolve(name, rrClass, rrType, flags);
+            }
             final FutureResult<Answer> manager = new FutureResult<Answer>(executor);
-            final IoFuture<? extends MulticastMessageChannel> futureChannel = channelSource.open(new ChannelListener<MulticastMessageChannel>() {
+            final QueryKey question = new QueryKey(name, rrClass, rrType);
+            final SharedSocket socket = acquireSocket(serverAddress);
+            PendingQuery query;
+            do {
+                query = new PendingQuery(new QueryId(serverAddress, random.nextInt() & 0xffff, question), flags, manager, socket);
+            } while (inFlight.putIfAbsent(query.queryId, query) != null);
+            manager.addCancelHandler(query);
+            query.startTimer();
+            socket.send(query);
+            return manager.getIoFuture();
+        }
+    }
+
+    /**
+     * The set of shared channels for one server.
+     */
+    private final class SocketSet {
+        private final AtomicReferenceArray<SharedSocket> sockets;
+
+        SocketSet() {
+            sockets = new AtomicReferenceArray<SharedSocket>(socketsPerServer);
+        }
+
+        SharedSocket acquire() {
+            final AtomicReferenceArray<SharedSocket> sockets = this.sockets;
+            final int idx = random.nextInt(sockets.length());
+            for (;;) {
+                final SharedSocket socket = sockets.get(idx);
+                if (socket != null && socket.acquire()) {
+                    return socket;
+                }
+                // empty slot, or the socket is used up or closed; rotate in a new one
+                final SharedSocket newSocket = new SharedSocket(rotateQueries);
+                if (sockets.compareAndSet(idx, socket, newSocket)) {
+                    // a fresh socket can always be acquired, even if it then fails to open
+                    newSocket.acquire();
+                    newSocket.open();
+                    if (socket != null) {
+                        socket.retire();
+                    }
+                    return newSocket;
+                }
+            }
+        }
+    }
+
+    /**
+     * A channel which may carry many queries.  The channel is opened by whoever puts the socket into its slot, and is
+     * closed once it has been retired and all of its queries are done.  A socket whose channel fails to open is
+     * retired at once, so that its slot is given a new socket.
+     */
+    private final class SharedSocket {
+        private final AtomicInteger remaining;
+        // one reference for each outstanding query, plus one until retired
+        private final AtomicInteger active = new AtomicInteger(1);
+        private final AtomicBoolean retired = new AtomicBoolean();
+        private final FutureResult<MulticastMessageChannel> futureChannel = new FutureResult<MulticastMessageChannel>();
+        private volatile MulticastMessageChannel channel;
+        private volatile boolean closed;
+
+        SharedSocket(final int uses) {
+            remaining = new AtomicInteger(uses);
+        }
+
+        void open() {
+            final IoFuture<? extends MulticastMessageChannel> opening = channelSource.open(new ChannelListener<MulticastMessageChannel>() {
                 public void handleEvent(final MulticastMessageChannel channel) {
                     channel.getCloseSetter().set(new ChannelListener<Channel>() {
                         public void handleEvent(final Channel channel) {
-                            // cancel request if it isn't done
-                            manager.setCancelled();
+                            channelClosed();
                         }
                     });
-                    manager.addCancelHandler(IoUtils.closingCancellable(channel));
-                    channel.getReadSetter().set(new ReadListener(id, manager, name, rrClass, rrType));
-                    channel.resumeReads();
-                    final Pooled<ByteBuffer> pooled = bufferPool.allocate();
-                    final ByteBuffer buffer = pooled.getResource();
-                    buffer.putShort((short) id);
-                    buffer.putShort((short) (flags.contains(ResolverFlag.NO_RECURSION) ? 0 : 1 << 7));
-                    buffer.putShort((short) 1);
-                    buffer.putShort((short) 0);
-                    buffer.putShort((short) 0);
-                    buffer.putShort((short) 0);
-                    for (Domain.Label label : name.getParts()) {
-                        final byte[] bytes = label.getBytes();
-                        buffer.put((byte) bytes.length);
-                        buffer.put(bytes);
-                    }
-                    buffer.put((byte) 0);
-                    buffer.putShort((short) rrType.getId());
-                    buffer.putShort((short) rrClass.getId());
-                    buffer.flip();
-                    try {
-                        channel.sendTo(serverAddress, buffer);
-                    } catch (IOException e) {
-                        manager.setException(e);
+                    channel.getReadSetter().set(new ReadListener());
+                    SharedSocket.this.channel = channel;
+                    if (closed) {
                         IoUtils.safeClose(channel);
+                        return;
                     }
+                    channel.resumeReads();
                 }
             });
-            manager.addCancelHandler(futureChannel);
-            futureChannel.addNotifier(new IoFuture.HandlingNotifier<Channel, FutureResult<Answer>>() {
-                public void handleCancelled(final FutureResult<Answer> attachment) {
-                    attachment.setCancelled();
+            futureChannel.addCancelHandler(opening);
+            opening.addNotifier(new IoFuture.HandlingNotifier<MulticastMessageChannel, SharedSocket>() {
+                public void handleCancelled(final SharedSocket socket) {
+                    socket.openFailed();
+                    futureChannel.setCancelled();
                 }
-            }, manager);
-            return manager.getIoFuture();
+
+                public void handleFailed(final IOException exception, final SharedSocket socket) {
+                    socket.openFailed();
+                    futureChannel.setException(exception);
+                }
+
+                public void handleDone(final MulticastMessageChannel channel, final SharedSocket socket) {
+                    futureChannel.setResult(channel);
+                }
+            }, this);
+        }
+
+        private void openFailed() {
+            // don't hand this socket out again
+            closed = true;
+            retire();
+        }
+
+        boolean acquire() {
+            if (closed || remaining.getAndDecrement() <= 0) {
+                return false;
+            }
+            int cnt;
+            do {
+                cnt = active.get();
+                if (cnt == 0) {
+                    return false;
+                }
+            } while (! active.compareAndSet(cnt, cnt + 1));
+            return true;
+        }
+
+        void release() {
+            if (active.decrementAndGet() == 0) {
+                close();
+            }
+        }
+
+        void retire() {
+            if (retired.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        void send(final PendingQuery query) {
+            futureChannel.getIoFuture().addNotifier(SEND_NOTIFIER, query);
+        }
+
+        private void close() {
+            closed = true;
+            final MulticastMessageChannel channel = this.channel;
+            if (channel != null) {
+                IoUtils.safeClose(channel);
+            } else {
+                futureChannel.getIoFuture().cancel();
+            }
+        }
+
+        private void channelClosed() {
+            closed = true;
+            if (active.get() > 0) {
+                // unexpected close; fail everything still waiting on this channel
+                for (PendingQuery query : inFlight.values()) {
+                    if (query.socket == this) {
+                        query.fail(new IOException("Channel closed before a reply was received"));
+                    }
+                }
+            }
         }
     }
 
-    private class ReadListener implements ChannelListener<MulticastMessageChannel> {
+    private static final IoFuture.Notifier<MulticastMessageChannel, PendingQuery> SEND_NOTIFIER = new IoFuture.HandlingNotifier<MulticastMessageChannel, PendingQuery>() {
+        public void handleCancelled(final PendingQuery query) {
+            query.fail(new IOException("Channel open was cancelled"));
+        }
 
-        private final int id;
-        private final Domain name;
-        private final RRClass rrClass;
-        private final RRType rrType;
-        private final FutureResult<Answer> request;
+        public void handleFailed(final IOException exception, final PendingQuery query) {
+            query.fail(exception);
+        }
 
-        ReadListener(final int id, final FutureResult<Answer> request, final Domain name, final RRClass rrClass, final RRType rrType) {
-            this.id = id;
-            this.request = request;
-            this.name = name;
-            this.rrClass = rrClass;
-            this.rrType = rrType;
+        public void handleDone(final MulticastMessageChannel channel, final PendingQuery query) {
+            query.send(channel);
+        }
+    };
+
+    /**
+     * A query which has been registered in the in-flight table.  Whoever removes the query from the table completes it.
+     * The query is its own retransmission timer task.
+     */
+    private final class PendingQuery implements Cancellable, Runnable {
+        private final QueryId queryId;
+        private final Set<ResolverFlag> flags;
+        private final FutureResult<Answer> result;
+        private final SharedSocket socket;
+        // only accessed by one timer task at a time, after startTimer()
+        private long deadline;
+        private long interval;
+        private volatile TimingWheel.Key timerKey;
+
+        PendingQuery(final QueryId queryId, final Set<ResolverFlag> flags, final FutureResult<Answer> result, final SharedSocket socket) {
+            this.queryId = queryId;
+            this.flags = flags;
+            this.result = result;
+            this.socket = socket;
+        }
+
+        void send(final MulticastMessageChannel channel) {
+            final QueryKey question = queryId.question;
+            final Pooled<ByteBuffer> pooled = bufferPool.allocate();
+            try {
+                final ByteBuffer buffer = pooled.getResource();
+                // never advertise more than we can receive
+                final int payloadSize = ednsPayloadSize == 0 ? 0 : Math.max(512, Math.min(ednsPayloadSize, buffer.capacity()));
+                queryTemplates.writeQuery(buffer, question, queryId.id, ! flags.contains(ResolverFlag.NO_RECURSION), payloadSize);
+                buffer.flip();
+                channel.sendTo(queryId.server, buffer);
+                statistics.querySent(queryId.server);
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                pooled.free();
+            }
+        }
+
+        void startTimer() {
+            deadline = System.nanoTime() + queryTimeout;
+            interval = retransmitInterval;
+            timerKey = timingWheel.schedule(this, Math.min(interval, queryTimeout), TimeUnit.NANOSECONDS);
+        }
+
+        private void cancelTimer() {
+            final TimingWheel.Key timerKey = this.timerKey;
+            if (timerKey != null) {
+                timerKey.cancel();
+            }
+        }
+
+        // retransmit timer
+        public void run() {
+            if (inFlight.get(queryId) != this) {
+                return;
+            }
+            // timer tasks must not block, so the query is sent again by the executor
+            executor.execute(new Runnable() {
+                public void run() {
+                    retransmit();
+                }
+            });
+        }
+
+        void retransmit() {
+            if (inFlight.get(queryId) != this) {
+                return;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0L) {
+                statistics.timeout();
+                fail(new SocketTimeoutException("DNS query to " + queryId.server + " timed out"));
+                return;
+            }
+            // no reply yet; send it again and back off
+            interval <<= 1;
+            statistics.retransmission();
+            socket.send(this);
+            timerKey = timingWheel.schedule(this, Math.min(interval, remaining), TimeUnit.NANOSECONDS);
+        }
+
+        void complete(final Answer answer) {
+            if (inFlight.remove(queryId, this)) {
+                cancelTimer();
+                result.setResult(answer);
+                socket.release();
+            }
+        }
+
+        void fail(final IOException exception) {
+            if (inFlight.remove(queryId, this)) {
+                cancelTimer();
+                result.setException(exception);
+                socket.release();
+            }
+        }
+
+        void retryWithTcp() {
+            if (inFlight.remove(queryId, this)) {
+                cancelTimer();
+                socket.release();
+                final QueryKey question = queryId.question;
+                final IoFuture<Answer> tcpFuture = tcpResolver.resolverFor(queryId.server).resolve(question.getDomain(), question.getRRClass(), question.getRRType(), flags);
+                result.addCancelHandler(tcpFuture);
+                tcpFuture.addNotifier(ForwardingNotifier.<Answer>get(), result);
+            }
+        }
+
+        public Cancellable cancel() {
+            if (inFlight.remove(queryId, this)) {
+                cancelTimer();
+                result.setCancelled();
+                socket.release();
+            }
+            return this;
+        }
+    }
+
+    private void handleReply(final SocketAddress source, final ByteBuffer buffer) {
+        if (! WireFormat.isReply(buffer)) {
+            // ignore queries and bogus replies
+            return;
+        }
+        final QueryKey question;
+        try {
+            question = WireFormat.readQuestion(buffer);
+        } catch (RuntimeException e) {
+            // malformed question
+            return;
+        }
+        final PendingQuery query = inFlight.get(new QueryId(source, WireFormat.getId(buffer), question));
+        if (query == null) {
+            // late, unsolicited or spoofed reply
+            return;
         }
+        statistics.replyReceived(source);
+        if ((WireFormat.getFlags(buffer) & WireFormat.FLAG_TC) != 0) {
+            statistics.truncation();
+            if (tcpResolver != null) {
+                query.retryWithTcp();
+                return;
+            }
+        }
+        Answer answer;
+        try {
+            answer = WireFormat.readAnswer(buffer);
+            if (answer.getFlags().contains(Answer.Flag.TRUNCATED)) {
+                // no TCP resolver to retry with
+                answer = Answer.builder().setHeaderInfo(question.getDomain(), question.getRRClass(), question.getRRType(), ResultCode.FORMAT_ERROR).create();
+            }
+        } catch (RuntimeException e) {
+            answer = Answer.builder().setHeaderInfo(question.getDomain(), question.getRRClass(), question.getRRType(), ResultCode.FORMAT_ERROR).create();
+        }
+        statistics.resultCode(answer.getResultCode());
+        query.complete(answer);
+    }
+
+    private class ReadListener implements ChannelListener<MulticastMessageChannel> {
 
         public void handleEvent(final MulticastMessageChannel channel) {
             final Pooled<ByteBuffer> pooled = bufferPool.allocate();
@@ -167,71 +572,60 @@ public final class UdpNetworkResolver extends AbstractNetworkResolver {
                 final ByteBuffer buffer = pooled.getResource();
                 if (buffer == null) {
                     // todo - delay for a time?
-                    request.setException(new IOException("No buffers available to receive reply"));
-                    IoUtils.safeClose(channel);
+                    log.error("No buffers available to receive reply on channel '%s'", channel);
+                    channel.resumeReads();
                     return;
                 }
                 final SocketAddressBuffer addressBuffer = new SocketAddressBuffer();
-                try {
-                    channel.receiveFrom(addressBuffer, buffer);
-                } catch (IOException e) {
-                    log.error("Closing channel '%s' due to I/O error on read: %s", channel, e);
-                    IoUtils.safeClose(channel);
-                }
-                buffer.flip();
-                try {
-                    final int id = buffer.getShort() & 0xffff;
-                    if (id != this.id) {
-                        // ignore wrong reply ID
-                        channel.resumeReads();
-                        return;
-                    }
-                    final int flags = buffer.getShort() & 0xffff;
-                    if ((flags & 1 << 0) == 0) {
-                        // ignore query
-                        channel.resumeReads();
-                        return;
-                    }
-                    final Answer.Builder builder = Answer.builder();
-                    if (((flags & 1 << 6) != 0)) {
-                        // todo truncation request - handle via TCP some other time
-                        request.setResult(builder.setHeaderInfo(name, rrClass, rrType, ResultCode.FORMAT_ERROR).create());
+                for (;;) {
+                    buffer.clear();
+                    try {
+                        if (channel.receiveFrom(addressBuffer, buffer) <= 0) {
+                            channel.resumeReads();
+                            return;
+                        }
+                    } catch (IOException e) {
+                        log.error("Closing channel '%s' due to I/O error on read: %s", channel, e);
                         IoUtils.safeClose(channel);
                         return;
                     }
-                    builder.setResultCode(ResultCode.fromInt(flags >> 12));
-                    if (((flags & 1 << 5) != 0)) builder.addFlag(Answer.Flag.AUTHORATIVE);
-                    if (((flags & 1 << 8) != 0)) builder.addFlag(Answer.Flag.RECURSION_AVAILABLE);
-                    final int qcnt = buffer.getShort() & 0xffff;
-                    if (qcnt != 1) {
-                        // ignore bogus reply
-                        channel.resumeReads();
-                        return;
-                    }
-                    final int ancnt = buffer.getShort() & 0xffff;
-                    final int nscnt = buffer.getShort() & 0xffff;
-                    final int arcnt = buffer.getShort() & 0xffff;
-                    builder.setQueryDomain(Domain.fromBytes(buffer));
-                    builder.setQueryRRType(RRType.fromInt(buffer.getShort() & 0xffff));
-                    builder.setQueryRRClass(RRClass.fromInt(buffer.getShort() & 0xffff));
-                    for (int i = 0; i < ancnt; i ++) {
-                        builder.addAnswerRecord(Record.fromBytes(buffer));
-                    }
-                    for (int i = 0; i < nscnt; i ++) {
-                        builder.addAuthorityRecord(Record.fromBytes(buffer));
-                    }
-                    for (int i = 0; i < arcnt; i ++) {
-                        builder.addAdditionalRecord(Record.fromBytes(buffer));
-                    }
-                    request.setResult(builder.create());
-                    IoUtils.safeClose(channel);
-                } catch (BufferUnderflowException e) {
-                    request.setResult(Answer.builder().setHeaderInfo(name, rrClass, rrType, ResultCode.FORMAT_ERROR).create());
-                    IoUtils.safeClose(channel);
+                    buffer.flip();
+                    handleReply(addressBuffer.getSourceAddress(), buffer);
                 }
             } finally {
                 pooled.free();
             }
         }
     }
+
+    /**
+     * The in-flight table key: the server, message ID and question of a query.
+     */
+    private static final class QueryId {
+        private final SocketAddress server;
+        private final int id;
+        private final QueryKey question;
+        private final int hashCode;
+
+        QueryId(final SocketAddress server, final int id, final QueryKey question) {
+            this.server = server;
+            this.id = id;
+            this.question = question;
+            int result = server.hashCode();
+            result = 31 * result + id;
+            result = 31 * result + question.hashCode();
+            hashCode = result;
+        }
+
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (! (o instanceof QueryId)) return false;
+            final QueryId queryId = (QueryId) o;
+            return hashCode == queryId.hashCode && id == queryId.id && server.equals(queryId.server) && question.equals(queryId.question);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
@@ -0,0 +1,268 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import org.xnio.dns.record.OptRecord;
+
+/**
+ * DNS message encoding and decoding methods shared by the network resolvers.
+ */
+final class WireFormat {
+
+    private WireFormat() {}
+
+    static final int HEADER_LENGTH = 12;
+
+    static final int FLAG_QR = 1 << 15;
+    static final int FLAG_AA = 1 << 10;
+    static final int FLAG_TC = 1 << 9;
+    static final int FLAG_RD = 1 << 8;
+    static final int FLAG_RA = 1 << 7;
+
+    static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+
+    /**
+     * Write a complete single-question query message.
+     *
+     * @param buffer the target buffer
+     * @param id the message ID
+     * @param recursionDesired {@code true} to set the RD flag
+     * @param name the query name
+     * @param rrClass the query class
+     * @param rrType the query type
+     * @param ednsPayloadSize the UDP payload size to advertise in an EDNS(0) OPT record, or 0 to send no OPT record
+     * @param dnssecOk {@code true} to set the DO bit in the OPT record
+     */
+    static void writeQuery(final ByteBuffer buffer, final int id, final boolean recursionDesired, final Domain name, final RRClass rrClass, final RRType rrType, final int ednsPayloadSize, final boolean dnssecOk) {
+        buffer.putShort((short) id);
+        buffer.putShort((short) (recursionDesired ? FLAG_RD : 0));
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (ednsPayloadSize == 0 ? 0 : 1));
+        writeDomain(buffer, name);
+        buffer.putShort((short) rrType.getId());
+        buffer.putShort((short) rrClass.getId());
+        if (ednsPayloadSize != 0) {
+            writeOpt(buffer, ednsPayloadSize, dnssecOk);
+        }
+    }
+
+    /**
+     * Write an EDNS(0) OPT pseudo-record with no options.
+     *
+     * @param buffer the target buffer
+     * @param payloadSize the UDP payload size to advertise
+     * @param dnssecOk {@code true} to set the DO bit
+     */
+    static void writeOpt(final ByteBuffer buffer, final int payloadSize, final boolean dnssecOk) {
+        buffer.put((byte) 0);
+        buffer.putShort((short) RRType.OPT.getId());
+        buffer.putShort((short) payloadSize);
+        // extended RCODE 0, version 0
+        buffer.putInt(dnssecOk ? 0x8000 : 0);
+        buffer.putShort((short) 0);
+    }
+
+    /**
+     * Write an uncompressed domain name.
+     *
+     * @param buffer the target buffer
+     * @param name the domain name
+     */
+    static void writeDomain(final ByteBuffer buffer, final Domain name) {
+        name.writeTo(buffer);
+    }
+
+    /**
+     * Write a complete single-question reply message for an answer, without name compression.  The message ID is
+     * zero.  This is the inverse of {@link #readAnswer(ByteBuffer)}.
+     *
+     * @param buffer the target buffer
+     * @param answer the answer
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     * @throws UnsupportedOperationException if the answer contains a result code, class or type which has no numeric
+     *      value, or a record which cannot be written
+     */
+    static void writeAnswer(final ByteBuffer buffer, final Answer answer) {
+        final int rcode = answer.getResultCode().getId();
+        if (rcode == -1) {
+            throw new UnsupportedOperationException("Cannot write result code " + answer.getResultCode());
+        }
+        final Set<Answer.Flag> answerFlags = answer.getFlags();
+        int flags = FLAG_QR | rcode & 0xf;
+        if (answerFlags.contains(Answer.Flag.AUTHORATIVE)) flags |= FLAG_AA;
+        if (answerFlags.contains(Answer.Flag.TRUNCATED)) flags |= FLAG_TC;
+        if (answerFlags.contains(Answer.Flag.RECURSION_DESIRED)) flags |= FLAG_RD;
+        if (answerFlags.contains(Answer.Flag.RECURSION_AVAILABLE)) flags |= FLAG_RA;
+        final OptRecord optRecord = answer.getOptRecord();
+        final boolean writeOpt = optRecord != null || rcode > 0xf;
+        buffer.putShort((short) 0);
+        buffer.putShort((short) flags);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) answer.getAnswerRecords().size());
+        buffer.putShort((short) answer.getAuthorityRecords().size());
+        buffer.putShort((short) (answer.getAdditionalRecords().size() + (writeOpt ? 1 : 0)));
+        writeDomain(buffer, answer.getQueryDomain());
+        buffer.putShort((short) checkId(answer.getQueryRRType().getId()));
+        buffer.putShort((short) checkId(answer.getQueryRRClass().getId()));
+        for (Record record : answer.getAnswerRecords()) {
+            writeRecord(buffer, record);
+        }
+        for (Record record : answer.getAuthorityRecords()) {
+            writeRecord(buffer, record);
+        }
+        for (Record record : answer.getAdditionalRecords()) {
+            writeRecord(buffer, record);
+        }
+        if (writeOpt) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) RRType.OPT.getId());
+            if (optRecord == null) {
+                buffer.putShort((short) DEFAULT_EDNS_PAYLOAD_SIZE);
+                buffer.putInt(rcode >> 4 << 24);
+                buffer.putShort((short) 0);
+            } else {
+                final byte[] options = optRecord.getOptions();
+                buffer.putShort((short) optRecord.getUdpPayloadSize());
+                buffer.putInt(rcode >> 4 << 24 | optRecord.getVersion() << 16 | (optRecord.isDnssecOk() ? 0x8000 : 0));
+                buffer.putShort((short) options.length);
+                buffer.put(options);
+            }
+        }
+    }
+
+    private static void writeRecord(final ByteBuffer buffer, final Record record) {
+        writeDomain(buffer, record.getName());
+        buffer.putShort((short) checkId(record.getRrType().getId()));
+        buffer.putShort((short) checkId(record.getRrClass().getId()));
+        buffer.putInt(record.getTtlSpec().getTtl());
+        final int lengthPos = buffer.position();
+        buffer.putShort((short) 0);
+        record.writeRData(buffer);
+        buffer.putShort(lengthPos, (short) (buffer.position() - lengthPos - 2));
+    }
+
+    private static int checkId(final int id) {
+        if (id == -1) {
+            throw new UnsupportedOperationException("Cannot write an unknown class or type");
+        }
+        return id;
+    }
+
+    /**
+     * Get the message ID of the message at the buffer's current position, without moving the position.
+     *
+     * @param message the message buffer
+     * @return the message ID
+     */
+    static int getId(final ByteBuffer message) {
+        return message.getShort(message.position()) & 0xffff;
+    }
+
+    /**
+     * Get the header flags of the message at the buffer's current position, without moving the position.
+     *
+     * @param message the message buffer
+     * @return the header flags
+     */
+    static int getFlags(final ByteBuffer message) {
+        return message.getShort(message.position() + 2) & 0xffff;
+    }
+
+    /**
+     * Determine whether the message at the buffer's current position is a reply with exactly one question.
+     *
+     * @param message the message buffer
+     * @return {@code true} if the message is a single-question reply
+     */
+    static boolean isReply(final ByteBuffer message) {
+        final int pos = message.position();
+        return message.remaining() >= HEADER_LENGTH && (message.getShort(pos + 2) & FLAG_QR) != 0 && (message.getShort(pos + 4) & 0xffff) == 1;
+    }
+
+    /**
+     * Read the question of the message at the buffer's current position, without moving the position.
+     *
+     * @param message the message buffer
+     * @return the question
+     * @throws java.nio.BufferUnderflowException if the message is too short
+     * @throws IllegalArgumentException if the question name is malformed
+     */
+    static QueryKey readQuestion(final ByteBuffer message) {
+        final ByteBuffer buffer = message.duplicate();
+        buffer.position(buffer.position() + HEADER_LENGTH);
+        final Domain name = Domain.fromBytes(buffer);
+        final RRType rrType = RRType.fromInt(buffer.getShort() & 0xffff);
+        final RRClass rrClass = RRClass.fromInt(buffer.getShort() & 0xffff);
+        return new QueryKey(name, rrClass, rrType);
+    }
+
+    /**
+     * Read a complete single-question reply message, consuming the buffer.  A truncated reply is returned with the
+     * {@link Answer.Flag#TRUNCATED} flag set.  An EDNS(0) OPT record is removed from the additional section and its
+     * extended result code bits are merged into the result code.
+     *
+     * @param message the message buffer
+     * @return the answer
+     * @throws java.nio.BufferUnderflowException if the message is too short
+     * @throws IllegalArgumentException if a domain name or record is malformed
+     */
+    static Answer readAnswer(final ByteBuffer message) {
+        final Answer.Builder builder = Answer.builder();
+        message.getShort();
+        final int flags = message.getShort() & 0xffff;
+        if ((flags & FLAG_AA) != 0) builder.addFlag(Answer.Flag.AUTHORATIVE);
+        if ((flags & FLAG_TC) != 0) builder.addFlag(Answer.Flag.TRUNCATED);
+        if ((flags & FLAG_RD) != 0) builder.addFlag(Answer.Flag.RECURSION_DESIRED);
+        if ((flags & FLAG_RA) != 0) builder.addFlag(Answer.Flag.RECURSION_AVAILABLE);
+        message.getShort();
+        final int ancnt = message.getShort() & 0xffff;
+        final int nscnt = message.getShort() & 0xffff;
+        final int arcnt = message.getShort() & 0xffff;
+        builder.setQueryDomain(Domain.fromBytes(message));
+        builder.setQueryRRType(RRType.fromInt(message.getShort() & 0xffff));
+        builder.setQueryRRClass(RRClass.fromInt(message.getShort() & 0xffff));
+        for (int i = 0; i < ancnt; i ++) {
+            builder.addAnswerRecord(Record.fromBytes(message));
+        }
+        for (int i = 0; i < nscnt; i ++) {
+            builder.addAuthorityRecord(Record.fromBytes(message));
+        }
+        int rcode = flags & 0xf;
+        for (int i = 0; i < arcnt; i ++) {
+            final Record record = Record.fromBytes(message);
+            if (record instanceof OptRecord) {
+                final OptRecord optRecord = (OptRecord) record;
+                builder.setOptRecord(optRecord);
+                rcode |= optRecord.getExtendedRcode() << 4;
+            } else {
+                builder.addAdditionalRecord(record);
+            }
+        }
+        builder.setResultCode(ResultCode.fromInt(rcode));
+        return builder.create();
+    }
+}
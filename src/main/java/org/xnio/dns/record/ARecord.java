@@ -118,6 +118,21 @@ public class ARecord extends Record {
         return address;
     }
 
+    /** {@inheritDoc} */
+    public ARecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new ARecord(getName(), getRrClass(), ttlSpec, address);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        buffer.put(address.getAddress());
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 48;
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(address.getHostAddress());
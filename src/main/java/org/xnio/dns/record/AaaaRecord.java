@@ -117,6 +117,21 @@ public class AaaaRecord extends Record {
         return address;
     }
 
+    /** {@inheritDoc} */
+    public AaaaRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new AaaaRecord(getName(), getRrClass(), ttlSpec, address);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        buffer.put(address.getAddress());
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 96;
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(address.getHostAddress());
@@ -105,6 +105,21 @@ public class CNameRecord extends Record {
         return cname;
     }
 
+    /** {@inheritDoc} */
+    public CNameRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new CNameRecord(getName(), getRrClass(), ttlSpec, cname);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        cname.writeTo(buffer);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + estimateSize(cname);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(cname);
@@ -46,6 +46,12 @@ public class HInfoRecord extends Record {
         return new String(Buffers.take(buffer, buffer.get() & 0xff), LATIN_1);
     }
 
+    private static void writeCharString(ByteBuffer buffer, String string) {
+        final byte[] bytes = string.getBytes(LATIN_1);
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+    }
+
     /**
      * Construct a new instance.
      *
@@ -132,6 +138,22 @@ public class HInfoRecord extends Record {
         return os;
     }
 
+    /** {@inheritDoc} */
+    public HInfoRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new HInfoRecord(getName(), getRrClass(), ttlSpec, cpu, os);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        writeCharString(buffer, cpu);
+        writeCharString(buffer, os);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 80 + (cpu.length() + os.length() << 1);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(" \"").append(cpu).append("\" \"").append(os).append('"');
@@ -107,6 +107,22 @@ public class MxRecord extends Record {
         this(name, TTLSpec.ZERO, preference, exchanger);
     }
 
+    /** {@inheritDoc} */
+    public MxRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new MxRecord(getName(), getRrClass(), ttlSpec, preference, exchanger);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        buffer.putShort((short) preference);
+        exchanger.writeTo(buffer);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + estimateSize(exchanger);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(preference).append(' ').append(exchanger);
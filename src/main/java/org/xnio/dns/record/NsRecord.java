@@ -105,6 +105,21 @@ public class NsRecord extends Record {
         return server;
     }
 
+    /** {@inheritDoc} */
+    public NsRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new NsRecord(getName(), getRrClass(), ttlSpec, server);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        server.writeTo(buffer);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + estimateSize(server);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(server);
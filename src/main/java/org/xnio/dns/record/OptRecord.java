@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns.record;
+
+import org.xnio.dns.Record;
+import org.xnio.dns.Domain;
+import org.xnio.dns.RRClass;
+import org.xnio.dns.RRType;
+import org.xnio.dns.TTLSpec;
+import org.xnio.Buffers;
+import java.nio.ByteBuffer;
+
+/**
+ * An EDNS(0) pseudo-record of type {@link RRType#OPT} (RFC 6891).  The class and TTL fields of this record carry the
+ * sender's UDP payload size, the upper bits of the extended result code, the EDNS version and the DO bit.
+ */
+public class OptRecord extends Record {
+
+    private static final long serialVersionUID = -4127313418766502338L;
+
+    private final int udpPayloadSize;
+    private final int extendedRcode;
+    private final int version;
+    private final boolean dnssecOk;
+    private final byte[] options;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param udpPayloadSize the raw value of the class field
+     * @param ttl the raw value of the TTL field
+     * @param recordBuffer the buffer from which the record data should be built
+     */
+    public OptRecord(final int udpPayloadSize, final int ttl, final ByteBuffer recordBuffer) {
+        super(Domain.ROOT, RRClass.UNKNOWN, RRType.OPT, TTLSpec.ZERO);
+        this.udpPayloadSize = udpPayloadSize;
+        extendedRcode = ttl >>> 24;
+        version = (ttl >> 16) & 0xff;
+        dnssecOk = (ttl & 0x8000) != 0;
+        options = Buffers.take(recordBuffer, recordBuffer.remaining());
+    }
+
+    /**
+     * Construct a new instance with no options.
+     *
+     * @param udpPayloadSize the UDP payload size
+     * @param extendedRcode the upper eight bits of the extended result code
+     * @param version the EDNS version
+     * @param dnssecOk {@code true} to set the DO bit
+     */
+    public OptRecord(final int udpPayloadSize, final int extendedRcode, final int version, final boolean dnssecOk) {
+        super(Domain.ROOT, RRClass.UNKNOWN, RRType.OPT, TTLSpec.ZERO);
+        this.udpPayloadSize = udpPayloadSize;
+        this.extendedRcode = extendedRcode;
+        this.version = version;
+        this.dnssecOk = dnssecOk;
+        options = new byte[0];
+    }
+
+    /**
+     * Get the largest UDP payload size that the sender can receive.
+     *
+     * @return the UDP payload size
+     */
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /**
+     * Get the upper eight bits of the extended result code.
+     *
+     * @return the extended result code bits
+     */
+    public int getExtendedRcode() {
+        return extendedRcode;
+    }
+
+    /**
+     * Get the EDNS version.
+     *
+     * @return the EDNS version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Determine whether the DO (DNSSEC OK) bit is set.
+     *
+     * @return {@code true} if the DO bit is set
+     */
+    public boolean isDnssecOk() {
+        return dnssecOk;
+    }
+
+    /**
+     * Get the raw option data.
+     *
+     * @return a copy of the option data
+     */
+    public byte[] getOptions() {
+        return options.clone();
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 16 + options.length;
+    }
+
+    /** {@inheritDoc} */
+    protected void appendRData(final StringBuilder builder) {
+        builder.append(" udp=").append(udpPayloadSize).append(" version=").append(version);
+        if (dnssecOk) {
+            builder.append(" do");
+        }
+    }
+}
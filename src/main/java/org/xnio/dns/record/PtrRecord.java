@@ -96,6 +96,21 @@ public class PtrRecord extends Record {
         this(name, TTLSpec.ZERO, target);
     }
 
+    /** {@inheritDoc} */
+    public PtrRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new PtrRecord(getName(), getRrClass(), ttlSpec, target);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        target.writeTo(buffer);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + estimateSize(target);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(target);
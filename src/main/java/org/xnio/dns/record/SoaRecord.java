@@ -210,6 +210,27 @@ public class SoaRecord extends Record {
         return minimum;
     }
 
+    /** {@inheritDoc} */
+    public SoaRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new SoaRecord(getName(), getRrClass(), ttlSpec, mName, rName, serial, refresh, retry, expire, minimum);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        mName.writeTo(buffer);
+        rName.writeTo(buffer);
+        buffer.putInt(serial);
+        buffer.putInt(refresh);
+        buffer.putInt(retry);
+        buffer.putInt(expire);
+        buffer.putInt(minimum.getTtl());
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + estimateSize(mName) + estimateSize(rName) + 32;
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(mName).append(' ').append(rName).append(" ( ").append(serial & 0xffffffffL);
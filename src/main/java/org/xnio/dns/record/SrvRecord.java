@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xnio.dns.record;
+
+import org.xnio.dns.Record;
+import org.xnio.dns.RRClass;
+import org.xnio.dns.RRType;
+import org.xnio.dns.Domain;
+import org.xnio.dns.TTLSpec;
+import java.nio.ByteBuffer;
+
+/**
+ * A record of type {@link RRType#SRV}, which locates the servers of a service.  See RFC 2782.
+ */
+public class SrvRecord extends Record {
+
+    private static final long serialVersionUID = 2950341563027384718L;
+
+    private final int priority;
+    private final int weight;
+    private final int port;
+    private final Domain target;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param name the domain name
+     * @param rrClass the resource record class
+     * @param ttlSpec the TTL spec
+     * @param recordBuffer the buffer from which the record data should be built
+     */
+    public SrvRecord(final Domain name, final RRClass rrClass, final TTLSpec ttlSpec, final ByteBuffer recordBuffer) {
+        this(name, rrClass, ttlSpec, recordBuffer.getShort() & 0xffff, recordBuffer.getShort() & 0xffff, recordBuffer.getShort() & 0xffff, Domain.fromBytes(recordBuffer));
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param name the domain name
+     * @param rrClass the resource record class
+     * @param ttlSpec the TTL spec
+     * @param recordString the string from which the record data should be built
+     */
+    public SrvRecord(final Domain name, final RRClass rrClass, final TTLSpec ttlSpec, final String recordString) {
+        super(name, rrClass, RRType.SRV, ttlSpec);
+        final String[] fields = recordString.trim().split(" +");
+        if (fields.length != 4) {
+            throw new IllegalArgumentException("Invalid record data format");
+        }
+        priority = checkShort(Integer.parseInt(fields[0]));
+        weight = checkShort(Integer.parseInt(fields[1]));
+        port = checkShort(Integer.parseInt(fields[2]));
+        target = Domain.fromString(fields[3]);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param name the domain name
+     * @param rrClass the record class
+     * @param ttlSpec the TTL spec
+     * @param priority the priority of the target; lower values are tried first
+     * @param weight the relative weight of the target among those of the same priority
+     * @param port the port of the service on the target
+     * @param target the target host
+     */
+    public SrvRecord(final Domain name, final RRClass rrClass, final TTLSpec ttlSpec, final int priority, final int weight, final int port, final Domain target) {
+        super(name, rrClass, RRType.SRV, ttlSpec);
+        this.priority = checkShort(priority);
+        this.weight = checkShort(weight);
+        this.port = checkShort(port);
+        this.target = target;
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param name the domain name
+     * @param ttlSpec the TTL spec
+     * @param priority the priority of the target; lower values are tried first
+     * @param weight the relative weight of the target among those of the same priority
+     * @param port the port of the service on the target
+     * @param target the target host
+     */
+    public SrvRecord(final Domain name, final TTLSpec ttlSpec, final int priority, final int weight, final int port, final Domain target) {
+        this(name, RRClass.IN, ttlSpec, priority, weight, port, target);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param name the domain name
+     * @param priority the priority of the target; lower values are tried first
+     * @param weight the relative weight of the target among those of the same priority
+     * @param port the port of the service on the target
+     * @param target the target host
+     */
+    public SrvRecord(final Domain name, final int priority, final int weight, final int port, final Domain target) {
+        this(name, TTLSpec.ZERO, priority, weight, port, target);
+    }
+
+    private static int checkShort(final int value) {
+        if (value < 0 || value > 0xffff) {
+            throw new IllegalArgumentException("Value out of range");
+        }
+        return value;
+    }
+
+    /** {@inheritDoc} */
+    public SrvRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new SrvRecord(getName(), getRrClass(), ttlSpec, priority, weight, port, target);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        buffer.putShort((short) priority);
+        buffer.putShort((short) weight);
+        buffer.putShort((short) port);
+        target.writeTo(buffer);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 8 + estimateSize(target);
+    }
+
+    /** {@inheritDoc} */
+    protected void appendRData(final StringBuilder builder) {
+        builder.append(' ').append(priority).append(' ').append(weight).append(' ').append(port).append(' ').append(target);
+    }
+
+    /**
+     * Get the priority.  Targets of lower priority values are tried first.
+     *
+     * @return the priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Get the weight, which sets the share of connections a target receives among those of the same priority.
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Get the port of the service on the target.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the target host.  A target of {@code .} means that the service is not available at this domain.
+     *
+     * @return the target host
+     */
+    public Domain getTarget() {
+        return target;
+    }
+}
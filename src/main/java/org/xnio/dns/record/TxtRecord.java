@@ -147,7 +147,7 @@ public class TxtRecord extends Record {
         super(name, rrClass, RRType.TXT, ttlSpec);
         final StringBuilder builder = new StringBuilder(recordBuffer.remaining());
         while (recordBuffer.hasRemaining()) {
-            for (int len = recordBuffer.get() & 0xff; len >= 0; len --) {
+            for (int len = recordBuffer.get() & 0xff; len > 0; len --) {
                 // Latin-1
                 builder.append((char) recordBuffer.get());
             }
@@ -202,6 +202,32 @@ public class TxtRecord extends Record {
         return builder.toString();
     }
 
+    /** {@inheritDoc} */
+    public TxtRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new TxtRecord(getName(), getRrClass(), ttlSpec, text, false);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        final String text = this.text;
+        final int len = text.length();
+        int i = 0;
+        do {
+            // split into character strings of at most 255 bytes
+            final int cnt = Math.min(255, len - i);
+            buffer.put((byte) cnt);
+            for (int j = 0; j < cnt; j ++) {
+                // Latin-1
+                buffer.put((byte) text.charAt(i ++));
+            }
+        } while (i < len);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 40 + (text.length() << 1);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(getDeparsedText());
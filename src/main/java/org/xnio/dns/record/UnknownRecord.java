@@ -90,6 +90,21 @@ public class UnknownRecord extends Record {
         data = Buffers.take(recordBuffer, recordBuffer.remaining());
     }
 
+    /** {@inheritDoc} */
+    public UnknownRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new UnknownRecord(getName(), getRrClass(), getRrType(), ttlSpec, data);
+    }
+
+    /** {@inheritDoc} */
+    protected void writeRData(final ByteBuffer buffer) {
+        buffer.put(data);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 16 + data.length;
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         for (byte b : data) {
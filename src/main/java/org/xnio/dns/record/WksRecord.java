@@ -188,6 +188,16 @@ public class WksRecord extends Record {
         return protocol;
     }
 
+    /** {@inheritDoc} */
+    public WksRecord withTtlSpec(final TTLSpec ttlSpec) {
+        return new WksRecord(getName(), getRrClass(), ttlSpec, protocol, ports);
+    }
+
+    /** {@inheritDoc} */
+    protected int estimateSize() {
+        return super.estimateSize() + 32 + (ports.length << 2);
+    }
+
     /** {@inheritDoc} */
     protected void appendRData(final StringBuilder builder) {
         builder.append(' ').append(protocol);
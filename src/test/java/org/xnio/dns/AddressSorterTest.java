@@ -0,0 +1,147 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link AddressSorter}, mostly by the examples of RFC 6724, section 10.2.
+ */
+public final class AddressSorterTest {
+
+    private static InetAddress address(final String address) {
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<InetAddress> addresses(final String... addresses) {
+        final List<InetAddress> list = new ArrayList<InetAddress>();
+        for (String address : addresses) {
+            list.add(address(address));
+        }
+        return list;
+    }
+
+    private static AddressSorter sorter(final String... sources) {
+        final List<AddressSorter.Source> list = new ArrayList<AddressSorter.Source>();
+        for (String source : sources) {
+            final InetAddress address = address(source);
+            list.add(new AddressSorter.Source(address, address.getAddress().length == 4 ? 24 : 64));
+        }
+        return new AddressSorter(list);
+    }
+
+    private static void assertSorted(final AddressSorter sorter, final String... expected) {
+        final List<InetAddress> addresses = addresses(expected);
+        final List<InetAddress> reversed = new ArrayList<InetAddress>(addresses);
+        Collections.reverse(reversed);
+        assertEquals(addresses, sorter.sort(addresses));
+        assertEquals(addresses, sorter.sort(reversed));
+    }
+
+    @Test
+    public void testMatchingScope() {
+        // rule 2
+        assertSorted(sorter("2001:db8:1::2", "169.254.13.78"), "2001:db8:1::1", "198.51.100.121");
+        assertSorted(sorter("fe80::1", "198.51.100.117"), "198.51.100.121", "2001:db8:1::1");
+    }
+
+    @Test
+    public void testPrecedence() {
+        // rule 6
+        assertSorted(sorter("2001:db8:1::2", "fe80::1", "10.1.2.4"), "2001:db8:1::1", "10.1.2.3");
+        assertSorted(sorter("2001:db8:1::2", "2002:c633:6401::2"), "2001:db8:1::1", "2002:c633:6401::1");
+    }
+
+    @Test
+    public void testMatchingLabel() {
+        // rule 5
+        assertSorted(sorter("2002:c633:6401::2", "fe80::2"), "2002:c633:6401::1", "2001:db8:1::1");
+    }
+
+    @Test
+    public void testSmallerScope() {
+        // rule 8
+        assertSorted(sorter("2001:db8:1::2", "fe80::2"), "fe80::1", "2001:db8:1::1");
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        // rule 9
+        assertSorted(sorter("2001:db8:1::2"), "2001:db8:1::1", "2001:db8:2::1");
+    }
+
+    @Test
+    public void testUnusable() {
+        // rule 1
+        assertSorted(sorter("192.0.2.10"), "198.51.100.121", "2001:db8:1::1");
+        assertSorted(sorter("2001:db8:1::2"), "2001:db8:1::1", "198.51.100.121");
+    }
+
+    @Test
+    public void testStable() {
+        // rule 10; none of these shares any prefix with the source
+        final List<InetAddress> addresses = addresses("198.51.100.1", "203.0.113.1", "198.51.100.2");
+        assertEquals(addresses, sorter("10.0.0.1").sort(addresses));
+        final List<InetAddress> other = addresses("203.0.113.1", "198.51.100.2", "198.51.100.1");
+        assertEquals(other, sorter("10.0.0.1").sort(other));
+    }
+
+    @Test
+    public void testPrefersInet6() {
+        assertTrue(sorter("2001:db8:1::2", "192.0.2.10").prefersInet6());
+        assertFalse(sorter("fe80::1", "192.0.2.10").prefersInet6());
+        // a unique local address is not an ordinary global address
+        assertFalse(sorter("fd00::1", "192.0.2.10").prefersInet6());
+    }
+
+    @Test
+    public void testScope() {
+        assertEquals(2, AddressSorter.scope(address("fe80::1")));
+        assertEquals(2, AddressSorter.scope(address("::1")));
+        assertEquals(14, AddressSorter.scope(address("2001:db8::1")));
+        assertEquals(5, AddressSorter.scope(address("ff05::1")));
+        assertEquals(2, AddressSorter.scope(address("127.0.0.1")));
+        assertEquals(2, AddressSorter.scope(address("169.254.1.1")));
+        assertEquals(14, AddressSorter.scope(address("10.0.0.1")));
+    }
+
+    @Test
+    public void testCommonPrefixLength() {
+        assertEquals(32, AddressSorter.commonPrefixLength(address("192.0.2.1").getAddress(), address("192.0.2.1").getAddress()));
+        assertEquals(30, AddressSorter.commonPrefixLength(address("192.0.2.1").getAddress(), address("192.0.2.2").getAddress()));
+        assertEquals(0, AddressSorter.commonPrefixLength(address("128.0.0.0").getAddress(), address("0.0.0.0").getAddress()));
+        assertEquals(46, AddressSorter.commonPrefixLength(address("2001:db8:1::").getAddress(), address("2001:db8:2::").getAddress()));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xnio.FinishedIoFuture;
+import org.xnio.IoFuture;
+import org.xnio.OptionMap;
+import org.xnio.dns.record.ARecord;
+
+/**
+ * A trace-driven comparison of the hit ratio of a {@link CachingResolver} with and without the
+ * {@link TinyLfuAdmissionPolicy}, against a plain LRU cache of the same size.  The trace is replayed through the
+ * resolver in front of an upstream which answers everything with a long TTL and counts the questions which reach it.
+ * <p>
+ * Without a trace file the trace is synthetic, from a fixed seed: questions for a Zipf-distributed population of names,
+ * interrupted by scans of names which are asked once, like a sweep of reverse lookups.  A trace file holds one name
+ * per line.  Run it with
+ * <pre>
+ *     mvn test-compile
+ *     java -cp target/classes:target/test-classes:&lt;xnio-api jar&gt; org.xnio.dns.AdmissionHitRatioBenchmark [cache size] [trace file]
+ * </pre>
+ */
+public final class AdmissionHitRatioBenchmark {
+
+    private static final int NAMES = 100000;
+    private static final int QUERIES = 2000000;
+    private static final double SKEW = 0.9;
+    private static final int SCAN_INTERVAL = 100000;
+    private static final int SCAN_LENGTH = 20000;
+
+    private AdmissionHitRatioBenchmark() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int cacheSize = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final List<Domain> trace = args.length > 1 ? readTrace(args[1]) : syntheticTrace();
+        System.out.printf("%d questions, cache size %d%n", trace.size(), cacheSize);
+        System.out.printf("LRU:              %.2f%%%n", 100.0 * lru(trace, cacheSize));
+        System.out.printf("clock:            %.2f%%%n", 100.0 * replay(trace, cacheSize, false));
+        System.out.printf("clock + TinyLFU:  %.2f%%%n", 100.0 * replay(trace, cacheSize, true));
+    }
+
+    private static List<Domain> readTrace(final String fileName) throws IOException {
+        final List<Domain> trace = new ArrayList<Domain>();
+        final BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    trace.add(Domain.fromString(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+    private static List<Domain> syntheticTrace() {
+        final Random random = new Random(42L);
+        final double[] cumulative = new double[NAMES];
+        double sum = 0;
+        for (int i = 0; i < NAMES; i ++) {
+            sum += 1.0 / Math.pow(i + 1, SKEW);
+            cumulative[i] = sum;
+        }
+        final Domain[] names = new Domain[NAMES];
+        final List<Domain> trace = new ArrayList<Domain>(QUERIES + QUERIES / SCAN_INTERVAL * SCAN_LENGTH);
+        int scanned = 0;
+        for (int i = 0; i < QUERIES; i ++) {
+            if (i % SCAN_INTERVAL == SCAN_INTERVAL - 1) {
+                for (int j = 0; j < SCAN_LENGTH; j ++) {
+                    trace.add(Domain.fromString("scan" + scanned ++ + ".example.net"));
+                }
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            if (index < 0) {
+                index = Math.min(-index - 1, NAMES - 1);
+            }
+            if (names[index] == null) {
+                names[index] = Domain.fromString("host" + index + ".example.com");
+            }
+            trace.add(names[index]);
+        }
+        return trace;
+    }
+
+    private static double lru(final List<Domain> trace, final int cacheSize) {
+        final Map<Domain, Boolean> cache = new LinkedHashMap<Domain, Boolean>(cacheSize << 1, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<Domain, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        long hits = 0;
+        for (Domain name : trace) {
+            if (cache.get(name) != null) {
+                hits ++;
+            } else {
+                cache.put(name, Boolean.TRUE);
+            }
+        }
+        return (double) hits / trace.size();
+    }
+
+    private static double replay(final List<Domain> trace, final int cacheSize, final boolean admission) throws UnknownHostException {
+        final Executor executor = new Executor() {
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+        final AtomicLong misses = new AtomicLong();
+        final Inet4Address address = (Inet4Address) InetAddress.getByName("192.0.2.1");
+        final Resolver upstream = new AbstractResolver() {
+            public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+                misses.incrementAndGet();
+                return new FinishedIoFuture<Answer>(Answer.builder()
+                        .setHeaderInfo(name, rrClass, rrType, ResultCode.NOERROR)
+                        .addAnswerRecord(new ARecord(name, rrClass, TTLSpec.createFixed(86400), address))
+                        .create());
+            }
+        };
+        final TimingWheel timingWheel = new TimingWheel();
+        try {
+            final OptionMap optionMap = OptionMap.builder()
+                    .set(DnsOptions.CACHE_SIZE, cacheSize)
+                    .set(DnsOptions.RRSET_CACHE_SIZE, 0)
+                    .getMap();
+            final CachingResolver resolver = new CachingResolver(upstream, executor, optionMap, admission ? new TinyLfuAdmissionPolicy(cacheSize, executor) : null, timingWheel);
+            for (Domain name : trace) {
+                resolver.resolve(name, RRClass.IN, RRType.A);
+            }
+        } finally {
+            timingWheel.shutdown();
+        }
+        return 1.0 - (double) misses.get() / trace.size();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import org.junit.Test;
+import org.xnio.dns.record.ARecord;
+import org.xnio.dns.record.CNameRecord;
+import org.xnio.dns.record.DNameRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link AliasChain}.
+ */
+public final class AliasChainTest {
+
+    private static final TTLSpec TTL = TTLSpec.createFixed(300);
+
+    private static Domain domain(final String name) {
+        return Domain.fromString(name);
+    }
+
+    private static Record cname(final String name, final String target) {
+        return new CNameRecord(domain(name), TTL, domain(target));
+    }
+
+    private static Record address(final String name) {
+        try {
+            return new ARecord(domain(name), RRClass.IN, TTL, (Inet4Address) InetAddress.getByName("192.0.2.1"));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Answer answer(final String name, final Record... records) {
+        final Answer.Builder builder = Answer.builder().setHeaderInfo(domain(name), RRClass.IN, RRType.A, ResultCode.NOERROR);
+        for (Record record : records) {
+            builder.addAnswerRecord(record);
+        }
+        return builder.create();
+    }
+
+    private static AliasChain chain(final String name) {
+        return new AliasChain(domain(name), RRClass.IN, RRType.A, 8);
+    }
+
+    @Test
+    public void testCompleteAnswer() {
+        final AliasChain chain = chain("www.example.com");
+        final Answer answer = answer("www.example.com", cname("www.example.com", "web.example.com"), address("web.example.com"));
+        assertFalse(chain.follow(answer));
+        assertFalse(chain.isBroken());
+        assertSame(answer, chain.merge(answer));
+    }
+
+    @Test
+    public void testCnameAcrossAnswers() {
+        final AliasChain chain = chain("www.example.com");
+        assertTrue(chain.follow(answer("www.example.com", cname("www.example.com", "web.example.net"))));
+        assertEquals(domain("web.example.net"), chain.getTarget());
+        final Answer last = answer("web.example.net", address("web.example.net"));
+        assertFalse(chain.follow(last));
+        final Answer merged = chain.merge(last);
+        assertEquals(domain("www.example.com"), merged.getQueryDomain());
+        final List<Record> records = merged.getAnswerRecords();
+        assertEquals(2, records.size());
+        assertEquals(RRType.CNAME, records.get(0).getRrType());
+        assertEquals(RRType.A, records.get(1).getRrType());
+    }
+
+    @Test
+    public void testDname() {
+        final AliasChain chain = chain("www.example.com");
+        assertTrue(chain.follow(answer("www.example.com", new DNameRecord(domain("example.com"), TTL, domain("example.net")))));
+        assertEquals(domain("www.example.net"), chain.getTarget());
+        final Answer last = answer("www.example.net", address("www.example.net"));
+        assertFalse(chain.follow(last));
+        // the DNAME is kept with the CNAME synthesized from it
+        final List<Record> records = chain.merge(last).getAnswerRecords();
+        assertEquals(3, records.size());
+        assertEquals(RRType.DNAME, records.get(0).getRrType());
+        assertEquals(RRType.CNAME, records.get(1).getRrType());
+        assertEquals(domain("www.example.net"), ((CNameRecord) records.get(1)).getCname());
+        assertEquals(RRType.A, records.get(2).getRrType());
+    }
+
+    @Test
+    public void testDnameInCompleteAnswer() {
+        final AliasChain chain = chain("www.example.com");
+        final Answer answer = answer("www.example.com", new DNameRecord(domain("example.com"), TTL, domain("example.net")), address("www.example.net"));
+        assertFalse(chain.follow(answer));
+        // the server sent no CNAME, so one is synthesized
+        final List<Record> records = chain.merge(answer).getAnswerRecords();
+        assertEquals(3, records.size());
+        assertEquals(RRType.CNAME, records.get(0).getRrType());
+    }
+
+    @Test
+    public void testLoop() {
+        final AliasChain chain = chain("a.example.com");
+        assertFalse(chain.follow(answer("a.example.com", cname("a.example.com", "b.example.com"), cname("b.example.com", "a.example.com"))));
+        assertTrue(chain.isBroken());
+    }
+
+    @Test
+    public void testLoopAcrossAnswers() {
+        final AliasChain chain = chain("a.example.com");
+        assertTrue(chain.follow(answer("a.example.com", cname("a.example.com", "b.example.com"))));
+        assertFalse(chain.follow(answer("b.example.com", cname("b.example.com", "a.example.com"))));
+        assertTrue(chain.isBroken());
+    }
+
+    @Test
+    public void testTooLong() {
+        final AliasChain chain = new AliasChain(domain("a.example.com"), RRClass.IN, RRType.A, 2);
+        assertFalse(chain.follow(answer("a.example.com", cname("a.example.com", "b.example.com"), cname("b.example.com", "c.example.com"), cname("c.example.com", "d.example.com"))));
+        assertTrue(chain.isBroken());
+    }
+
+    @Test
+    public void testNotFollowed() {
+        // aliases are not followed for a question about them, nor in a failure
+        final AliasChain cnameChain = new AliasChain(domain("www.example.com"), RRClass.IN, RRType.CNAME, 8);
+        assertFalse(cnameChain.follow(answer("www.example.com", cname("www.example.com", "web.example.com"))));
+        final AliasChain chain = chain("www.example.com");
+        assertFalse(chain.follow(Answer.builder().setHeaderInfo(domain("www.example.com"), RRClass.IN, RRType.A, ResultCode.NXDOMAIN).create()));
+        assertFalse(chain.isBroken());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.xnio.FinishedIoFuture;
+import org.xnio.IoFuture;
+import org.xnio.dns.record.ARecord;
+import org.xnio.dns.record.SoaRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link CachingResolver}, in front of an upstream resolver which answers at once and counts its queries.
+ */
+public final class CachingResolverTest {
+
+    static final Executor DIRECT = new Executor() {
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private final TimingWheel timingWheel = new TimingWheel();
+    private final Upstream upstream = new Upstream();
+
+    @After
+    public void shutdown() {
+        timingWheel.shutdown();
+    }
+
+    static Domain domain(final String name) {
+        return Domain.fromString(name);
+    }
+
+    static Answer addressAnswer(final Domain name, final int ttl) {
+        try {
+            return Answer.builder()
+                    .setHeaderInfo(name, RRClass.IN, RRType.A, ResultCode.NOERROR)
+                    .addAnswerRecord(new ARecord(name, RRClass.IN, TTLSpec.createFixed(ttl), (Inet4Address) InetAddress.getByName("192.0.2.1")))
+                    .create();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Answer get(final Resolver resolver, final String name) throws IOException {
+        return resolver.resolve(domain(name), RRClass.IN, RRType.A).get();
+    }
+
+    @Test
+    public void testHit() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        assertEquals(ResultCode.NOERROR, get(resolver, "www.example.com").getResultCode());
+        assertEquals(1, upstream.queries.get());
+        final Answer answer = get(resolver, "www.example.com");
+        assertEquals(1, answer.getAnswerRecords().size());
+        assertEquals(1, upstream.queries.get());
+        assertEquals(1L, resolver.getStatistics().getHits());
+    }
+
+    @Test
+    public void testClockEviction() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 4, 4, timingWheel);
+        for (String name : new String[] { "a.example.com", "b.example.com", "c.example.com", "d.example.com" }) {
+            get(resolver, name);
+        }
+        // a and b are referenced, c and d are not
+        get(resolver, "a.example.com");
+        get(resolver, "b.example.com");
+        assertEquals(4, upstream.queries.get());
+        get(resolver, "e.example.com");
+        assertEquals(5, upstream.queries.get());
+        assertEquals(1L, resolver.getStatistics().getEvictions());
+        assertEquals(4, resolver.getStatistics().getSize());
+        // the clock passes over referenced entries
+        get(resolver, "a.example.com");
+        get(resolver, "b.example.com");
+        assertEquals(5, upstream.queries.get());
+    }
+
+    @Test
+    public void testBypassCache() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        get(resolver, "www.example.com");
+        resolver.resolve(domain("www.example.com"), RRClass.IN, RRType.A, EnumSet.of(ResolverFlag.BYPASS_CACHE)).get();
+        assertEquals(2, upstream.queries.get());
+    }
+
+    static Answer negativeAnswer(final Domain name, final ResultCode resultCode, final int soaTtl, final int minimum) {
+        return Answer.builder()
+                .setHeaderInfo(name, RRClass.IN, RRType.A, resultCode)
+                .addAuthorityRecord(new SoaRecord(domain("example.com"), TTLSpec.createFixed(soaTtl), domain("ns1.example.com"), domain("hostmaster.example.com"), 1, 7200, 900, 1209600, TTLSpec.createFixed(minimum)))
+                .create();
+    }
+
+    @Test
+    public void testNxdomainCached() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        upstream.answers.put(domain("missing.example.com"), negativeAnswer(domain("missing.example.com"), ResultCode.NXDOMAIN, 3600, 300));
+        assertEquals(ResultCode.NXDOMAIN, get(resolver, "missing.example.com").getResultCode());
+        assertEquals(ResultCode.NXDOMAIN, get(resolver, "missing.example.com").getResultCode());
+        assertEquals(1, upstream.queries.get());
+        assertEquals(1L, resolver.getStatistics().getNegativeHits());
+    }
+
+    @Test
+    public void testNoDataCached() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        upstream.answers.put(domain("nodata.example.com"), negativeAnswer(domain("nodata.example.com"), ResultCode.NOERROR, 3600, 300));
+        get(resolver, "nodata.example.com");
+        final Answer answer = get(resolver, "nodata.example.com");
+        assertEquals(ResultCode.NOERROR, answer.getResultCode());
+        assertTrue(answer.getAnswerRecords().isEmpty());
+        assertEquals(1, upstream.queries.get());
+    }
+
+    @Test
+    public void testNegativeWithoutSoaNotCached() throws IOException {
+        // RFC 2308 section 5: without an SOA record there is no TTL for the negative answer
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        upstream.answers.put(domain("missing.example.com"), Answer.builder().setHeaderInfo(domain("missing.example.com"), RRClass.IN, RRType.A, ResultCode.NXDOMAIN).create());
+        get(resolver, "missing.example.com");
+        get(resolver, "missing.example.com");
+        assertEquals(2, upstream.queries.get());
+    }
+
+    @Test
+    public void testNegativeTtlIsSoaMinimum() throws IOException, InterruptedException {
+        // RFC 2308 section 5: the lesser of the SOA TTL and the SOA MINIMUM field
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        upstream.answers.put(domain("a.example.com"), negativeAnswer(domain("a.example.com"), ResultCode.NXDOMAIN, 3600, 1));
+        upstream.answers.put(domain("b.example.com"), negativeAnswer(domain("b.example.com"), ResultCode.NXDOMAIN, 1, 3600));
+        get(resolver, "a.example.com");
+        get(resolver, "b.example.com");
+        assertEquals(2, upstream.queries.get());
+        Thread.sleep(1500L);
+        get(resolver, "a.example.com");
+        get(resolver, "b.example.com");
+        assertEquals(4, upstream.queries.get());
+    }
+
+    @Test
+    public void testNegativeCachingDisabled() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 0, timingWheel);
+        upstream.answers.put(domain("missing.example.com"), negativeAnswer(domain("missing.example.com"), ResultCode.NXDOMAIN, 3600, 300));
+        get(resolver, "missing.example.com");
+        get(resolver, "missing.example.com");
+        assertEquals(2, upstream.queries.get());
+    }
+
+    @Test
+    public void testNegativeAnswerDoesNotDisplacePositive() throws IOException {
+        final CachingResolver resolver = new CachingResolver(upstream, DIRECT, 16, 16, timingWheel);
+        upstream.answers.put(domain("missing.example.com"), negativeAnswer(domain("missing.example.com"), ResultCode.NXDOMAIN, 3600, 300));
+        get(resolver, "www.example.com");
+        get(resolver, "missing.example.com");
+        assertEquals(ResultCode.NOERROR, get(resolver, "www.example.com").getResultCode());
+        assertEquals(2, upstream.queries.get());
+    }
+
+    /**
+     * An upstream resolver which answers with the answer given for a name, or else an address record, and counts the
+     * queries it is asked.
+     */
+    static final class Upstream extends AbstractResolver {
+        final AtomicInteger queries = new AtomicInteger();
+        final Map<Domain, Answer> answers = new ConcurrentHashMap<Domain, Answer>();
+
+        public IoFuture<Answer> resolve(final Domain name, final RRClass rrClass, final RRType rrType, final Set<ResolverFlag> flags) {
+            queries.incrementAndGet();
+            final Answer answer = answers.get(name);
+            return new FinishedIoFuture<Answer>(answer != null ? answer : addressAnswer(name, 3600));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the wire form of domain names.
+ */
+public final class DomainTest {
+
+    private static byte[] toBytes(final Domain domain) {
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+        domain.writeTo(buffer);
+        buffer.flip();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testWriteTo() {
+        assertArrayEquals(new byte[] { 3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0 }, toBytes(Domain.fromString("www.example.com")));
+        assertArrayEquals(new byte[] { 0 }, toBytes(Domain.ROOT));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        for (String name : new String[] { "www.example.com", "a.b.c.d.e.f.example.org", "_sip._tcp.example.net", "1.2.0.192.in-addr.arpa", "x" }) {
+            final Domain domain = Domain.fromString(name);
+            final byte[] bytes = toBytes(domain);
+            assertEquals(name, bytes.length, domain.getWireLength());
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            assertEquals(name, domain, Domain.fromBytes(buffer));
+            assertFalse(name, buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testRootRoundTrip() {
+        assertSame(Domain.ROOT, Domain.fromBytes(ByteBuffer.wrap(toBytes(Domain.ROOT))));
+        assertEquals(1, Domain.ROOT.getWireLength());
+    }
+
+    @Test
+    public void testCompressionPointer() {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        Domain.fromString("example.com").writeTo(buffer);
+        final int second = buffer.position();
+        buffer.put((byte) 3).put((byte) 'w').put((byte) 'w').put((byte) 'w');
+        // pointer to offset 0
+        buffer.put((byte) 0xc0).put((byte) 0);
+        final int end = buffer.position();
+        buffer.flip();
+        buffer.position(second);
+        assertEquals(Domain.fromString("www.example.com"), Domain.fromBytes(buffer));
+        // the pointer ends the name
+        assertEquals(end, buffer.position());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompressionLoop() {
+        // a pointer to itself
+        Domain.fromBytes(ByteBuffer.wrap(new byte[] { (byte) 0xc0, 0 }));
+    }
+}
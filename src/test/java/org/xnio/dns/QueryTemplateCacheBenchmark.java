@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A microbenchmark comparing the encoding of queries from scratch with copying them from a {@link QueryTemplateCache}.
+ * The names are drawn from a fixed seed with a skewed popularity, like the names a busy client looks up, and each
+ * timed round is preceded by a warm-up round so that both paths are compiled.  Run it with
+ * <pre>
+ *     mvn test-compile
+ *     java -cp target/classes:target/test-classes:&lt;xnio-api jar&gt; org.xnio.dns.QueryTemplateCacheBenchmark [names] [queries]
+ * </pre>
+ * and compare the nanoseconds per query which it reports.
+ */
+public final class QueryTemplateCacheBenchmark {
+
+    private static final int PAYLOAD_SIZE = 1232;
+
+    private QueryTemplateCacheBenchmark() {
+    }
+
+    public static void main(final String[] args) {
+        final int names = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        final int queries = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        final QueryKey[] questions = new QueryKey[names];
+        for (int i = 0; i < names; i ++) {
+            questions[i] = new QueryKey(Domain.fromString("host" + i + ".service.example.com"), RRClass.IN, RRType.A);
+        }
+        // a skewed trace: most queries go to a few names
+        final Random random = new Random(42L);
+        final int[] trace = new int[1 << 16];
+        for (int i = 0; i < trace.length; i ++) {
+            final double u = random.nextDouble();
+            trace[i] = (int) (names * u * u * u);
+        }
+        final QueryTemplateCache cache = new QueryTemplateCache(1024, PAYLOAD_SIZE, false);
+        final ByteBuffer buffer = ByteBuffer.allocate(512);
+        for (int round = 0; round < 2; round ++) {
+            final boolean timed = round == 1;
+            long start = System.nanoTime();
+            long check = 0;
+            for (int i = 0; i < queries; i ++) {
+                final QueryKey question = questions[trace[i & trace.length - 1]];
+                buffer.clear();
+                WireFormat.writeQuery(buffer, i & 0xffff, true, question.getDomain(), question.getRRClass(), question.getRRType(), PAYLOAD_SIZE, false);
+                check += buffer.position();
+            }
+            final long encoded = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i ++) {
+                final QueryKey question = questions[trace[i & trace.length - 1]];
+                buffer.clear();
+                cache.writeQuery(buffer, question, i & 0xffff, true, PAYLOAD_SIZE);
+                check -= buffer.position();
+            }
+            final long copied = System.nanoTime() - start;
+            if (check != 0) {
+                throw new IllegalStateException("Templates and encoded queries differ in length");
+            }
+            if (timed) {
+                System.out.printf("encode: %.1f ns/query%n", (double) encoded / queries);
+                System.out.printf("template: %.1f ns/query%n", (double) copied / queries);
+            }
+        }
+    }
+}
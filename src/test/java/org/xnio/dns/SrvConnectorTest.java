@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.xnio.dns.record.ARecord;
+import org.xnio.dns.record.SrvRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the SRV target selection of {@link SrvConnector}, by RFC 2782.
+ */
+public final class SrvConnectorTest {
+
+    private static final TTLSpec TTL = TTLSpec.createFixed(300);
+    private static final Domain SERVICE = Domain.fromString("_imap._tcp.example.com");
+    private static final int ROUNDS = 10000;
+
+    private static SrvConnector.Target target(final String host, final int priority, final int weight) {
+        return new SrvConnector.Target(Domain.fromString(host), priority, weight, 143);
+    }
+
+    private static SrvConnector.Service service(final SrvConnector.Target... targets) {
+        return new SrvConnector.Service(targets, Long.MAX_VALUE);
+    }
+
+    private static Answer.Builder answer() {
+        return Answer.builder().setHeaderInfo(SERVICE, RRClass.IN, RRType.SRV, ResultCode.NOERROR);
+    }
+
+    @Test
+    public void testPriority() {
+        final SrvConnector.Target a = target("a.example.com", 10, 1);
+        final SrvConnector.Target b = target("b.example.com", 10, 1);
+        final SrvConnector.Target c = target("c.example.com", 20, 100);
+        final SrvConnector.Service service = service(a, b, c);
+        final Random random = new Random(1L);
+        final Set<SrvConnector.Target> firsts = new HashSet<SrvConnector.Target>();
+        for (int i = 0; i < 100; i ++) {
+            final List<SrvConnector.Target> order = service.order(random);
+            assertEquals(3, order.size());
+            assertSame(c, order.get(2));
+            firsts.add(order.get(0));
+        }
+        // both targets of the better priority are tried first in turn
+        assertEquals(new HashSet<SrvConnector.Target>(Arrays.asList(a, b)), firsts);
+    }
+
+    @Test
+    public void testWeight() {
+        final SrvConnector.Target light = target("light.example.com", 10, 10);
+        final SrvConnector.Target heavy = target("heavy.example.com", 10, 90);
+        final SrvConnector.Service service = service(light, heavy);
+        final Random random = new Random(1L);
+        int heavyFirst = 0;
+        for (int i = 0; i < ROUNDS; i ++) {
+            if (service.order(random).get(0) == heavy) {
+                heavyFirst ++;
+            }
+        }
+        // chosen in proportion to weight, about 90% of the time
+        assertTrue("heavy first " + heavyFirst, heavyFirst > ROUNDS * 85 / 100 && heavyFirst < ROUNDS * 95 / 100);
+    }
+
+    @Test
+    public void testZeroWeight() {
+        final SrvConnector.Target zero = target("zero.example.com", 10, 0);
+        final SrvConnector.Target other = target("other.example.com", 10, 50);
+        final SrvConnector.Service service = service(other, zero);
+        final Random random = new Random(1L);
+        int zeroFirst = 0;
+        for (int i = 0; i < ROUNDS; i ++) {
+            if (service.order(random).get(0) == zero) {
+                zeroFirst ++;
+            }
+        }
+        // a target of zero weight has a very small chance of being selected first
+        assertTrue("zero first " + zeroFirst, zeroFirst > 0 && zeroFirst < ROUNDS * 5 / 100);
+    }
+
+    @Test
+    public void testAllZeroWeight() {
+        final SrvConnector.Target a = target("a.example.com", 10, 0);
+        final SrvConnector.Target b = target("b.example.com", 10, 0);
+        final SrvConnector.Service service = service(a, b);
+        final Random random = new Random(1L);
+        int aFirst = 0;
+        for (int i = 0; i < ROUNDS; i ++) {
+            if (service.order(random).get(0) == a) {
+                aFirst ++;
+            }
+        }
+        assertTrue("a first " + aFirst, aFirst > ROUNDS * 40 / 100 && aFirst < ROUNDS * 60 / 100);
+    }
+
+    @Test
+    public void testCreateService() throws Exception {
+        final Inet4Address address = (Inet4Address) InetAddress.getByName("192.0.2.1");
+        final Answer answer = answer()
+                .addAnswerRecord(new SrvRecord(SERVICE, TTL, 20, 0, 143, Domain.fromString("backup.example.com")))
+                .addAnswerRecord(new SrvRecord(SERVICE, TTL, 10, 0, 1143, Domain.fromString("mail.example.com")))
+                .addAdditionalRecord(new ARecord(Domain.fromString("mail.example.com"), RRClass.IN, TTL, address))
+                .create();
+        final SrvConnector.Service service = SrvConnector.createService(answer, Domain.fromString("example.com"));
+        assertEquals(2, service.targets.length);
+        assertEquals(Domain.fromString("mail.example.com"), service.targets[0].host);
+        assertEquals(1143, service.targets[0].port);
+        assertEquals(Arrays.<InetAddress>asList(address), service.targets[0].addresses);
+        assertEquals(Domain.fromString("backup.example.com"), service.targets[1].host);
+        assertNull(service.targets[1].addresses);
+    }
+
+    @Test
+    public void testServiceUnavailable() throws Exception {
+        final Answer answer = answer().addAnswerRecord(new SrvRecord(SERVICE, TTL, 0, 0, 0, Domain.ROOT)).create();
+        assertEquals(0, SrvConnector.createService(answer, Domain.fromString("example.com")).targets.length);
+    }
+
+    @Test
+    public void testNoSrvRecords() throws Exception {
+        // the domain itself is used, at the port given by the caller
+        final Domain domain = Domain.fromString("example.com");
+        final SrvConnector.Service nxdomain = SrvConnector.createService(Answer.builder().setHeaderInfo(SERVICE, RRClass.IN, RRType.SRV, ResultCode.NXDOMAIN).create(), domain);
+        final SrvConnector.Service nodata = SrvConnector.createService(answer().create(), domain);
+        for (SrvConnector.Service service : Arrays.asList(nxdomain, nodata)) {
+            assertEquals(1, service.targets.length);
+            assertEquals(domain, service.targets[0].host);
+            assertEquals(-1, service.targets[0].port);
+        }
+    }
+
+    @Test(expected = DNSException.class)
+    public void testFailure() throws Exception {
+        SrvConnector.createService(Answer.builder().setHeaderInfo(SERVICE, RRClass.IN, RRType.SRV, ResultCode.SERVER_FAILURE).create(), Domain.fromString("example.com"));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link TimingWheel}.
+ */
+public final class TimingWheelTest {
+
+    // a small wheel, so that the longer delays take several rounds
+    private final TimingWheel timingWheel = new TimingWheel(2L, TimeUnit.MILLISECONDS, 8, "test timer");
+
+    @After
+    public void shutdown() {
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void testDelay() throws InterruptedException {
+        for (long delay : new long[] { 0L, 5L, 40L, 100L }) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final long start = System.nanoTime();
+            final long[] ran = new long[1];
+            timingWheel.schedule(new Runnable() {
+                public void run() {
+                    ran[0] = System.nanoTime();
+                    latch.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            assertTrue("task did not run", latch.await(5L, TimeUnit.SECONDS));
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(ran[0] - start);
+            assertTrue("ran after " + elapsed + "ms, before its delay of " + delay + "ms", elapsed >= delay);
+        }
+    }
+
+    @Test
+    public void testOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        for (final int delay : new int[] { 60, 20, 100, 40 }) {
+            timingWheel.schedule(new Runnable() {
+                public void run() {
+                    order.add(Integer.valueOf(delay));
+                    latch.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(latch.await(5L, TimeUnit.SECONDS));
+        assertEquals("[20, 40, 60, 100]", order.toString());
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        final TimingWheel.Key key = timingWheel.schedule(new Runnable() {
+            public void run() {
+                cancelled.countDown();
+            }
+        }, 20L, TimeUnit.MILLISECONDS);
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                other.countDown();
+            }
+        }, 40L, TimeUnit.MILLISECONDS);
+        assertSame(key, key.cancel());
+        assertTrue(key.isCancelled());
+        assertTrue(other.await(5L, TimeUnit.SECONDS));
+        assertEquals(1L, cancelled.getCount());
+    }
+
+    @Test
+    public void testCancelAfterRun() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TimingWheel.Key key = timingWheel.schedule(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        }, 1L, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5L, TimeUnit.SECONDS));
+        key.cancel();
+        assertFalse(key.isCancelled());
+    }
+
+    @Test
+    public void testCurrentTimeMillis() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        }, 10L, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5L, TimeUnit.SECONDS));
+        // within a few ticks of the wall clock
+        assertTrue(Math.abs(System.currentTimeMillis() - timingWheel.currentTimeMillis()) < 1000L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterShutdown() {
+        timingWheel.shutdown();
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+            }
+        }, 1L, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTick() {
+        new TimingWheel(0L, TimeUnit.MILLISECONDS, 8, "invalid");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.xnio.OptionMap;
+import org.xnio.Sequence;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link TtlPolicy}.
+ */
+public final class TtlPolicyTest {
+
+    private static final long NOW = 1000000000L;
+
+    private static QueryKey question(final String name, final RRType rrType) {
+        return new QueryKey(Domain.fromString(name), RRClass.IN, rrType);
+    }
+
+    /**
+     * Adjust a TTL, in seconds, and return the adjusted TTL in milliseconds.
+     */
+    private static long adjust(final TtlPolicy policy, final QueryKey question, final int ttl) {
+        return policy.adjust(question, NOW, NOW + ttl * 1000L) - NOW;
+    }
+
+    @Test
+    public void testNoPolicy() {
+        assertNull(TtlPolicy.create(OptionMap.EMPTY));
+    }
+
+    @Test
+    public void testClamp() {
+        final TtlPolicy policy = TtlPolicy.create(OptionMap.builder().set(DnsOptions.CACHE_MIN_TTL, 60).set(DnsOptions.CACHE_MAX_TTL, 3600).getMap());
+        final QueryKey question = question("www.example.com", RRType.A);
+        assertEquals(60000L, adjust(policy, question, 10));
+        assertEquals(300000L, adjust(policy, question, 300));
+        assertEquals(3600000L, adjust(policy, question, 86400));
+    }
+
+    @Test
+    public void testOverrides() {
+        final TtlPolicy policy = TtlPolicy.create(OptionMap.builder()
+                .set(DnsOptions.CACHE_MAX_TTL, 3600)
+                .set(DnsOptions.CACHE_TTL_OVERRIDES, Sequence.of("MX=300-600", "example.com=5-10", "a.example.com=20-30"))
+                .getMap());
+        assertEquals(600000L, adjust(policy, question("example.org", RRType.MX), 86400));
+        assertEquals(300000L, adjust(policy, question("example.org", RRType.MX), 1));
+        assertEquals(3600000L, adjust(policy, question("example.org", RRType.A), 86400));
+        // a domain override applies to every name under the domain, and the longest suffix wins
+        assertEquals(10000L, adjust(policy, question("www.example.com", RRType.A), 86400));
+        assertEquals(10000L, adjust(policy, question("example.com", RRType.MX), 86400));
+        assertEquals(30000L, adjust(policy, question("x.a.example.com", RRType.A), 86400));
+    }
+
+    @Test
+    public void testJitterShortens() {
+        final TtlPolicy policy = TtlPolicy.create(OptionMap.builder().set(DnsOptions.CACHE_TTL_JITTER_PERCENT, 10).getMap());
+        final QueryKey question = question("www.example.com", RRType.A);
+        final Set<Long> seen = new HashSet<Long>();
+        for (int i = 0; i < 1000; i ++) {
+            final long ttl = adjust(policy, question, 1000);
+            assertTrue("TTL " + ttl + " out of range", ttl >= 900000L && ttl <= 1000000L);
+            seen.add(Long.valueOf(ttl));
+        }
+        assertTrue("no jitter", seen.size() > 1);
+    }
+
+    @Test
+    public void testJitterAtMinimum() {
+        final TtlPolicy policy = TtlPolicy.create(OptionMap.builder().set(DnsOptions.CACHE_MIN_TTL, 60).set(DnsOptions.CACHE_MAX_TTL, 63).set(DnsOptions.CACHE_TTL_JITTER_PERCENT, 10).getMap());
+        final QueryKey question = question("www.example.com", RRType.A);
+        final Set<Long> seen = new HashSet<Long>();
+        for (int i = 0; i < 1000; i ++) {
+            // clamped up to the minimum, then spread above it, but never past the maximum
+            final long ttl = adjust(policy, question, 1);
+            assertTrue("TTL " + ttl + " out of range", ttl >= 60000L && ttl <= 63000L);
+            seen.add(Long.valueOf(ttl));
+        }
+        assertTrue("no jitter", seen.size() > 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        TtlPolicy.create(OptionMap.builder().set(DnsOptions.CACHE_TTL_JITTER_PERCENT, 100).getMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        TtlPolicy.create(OptionMap.builder().set(DnsOptions.CACHE_MIN_TTL, 60).set(DnsOptions.CACHE_MAX_TTL, 30).getMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidOverride() {
+        TtlPolicy.create(OptionMap.builder().set(DnsOptions.CACHE_TTL_OVERRIDES, Sequence.of("A=60")).getMap());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2011, JBoss Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.xnio.dns;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.Test;
+import org.xnio.dns.record.ARecord;
+import org.xnio.dns.record.CNameRecord;
+import org.xnio.dns.record.DNameRecord;
+import org.xnio.dns.record.NsRecord;
+import org.xnio.dns.record.OptRecord;
+import org.xnio.dns.record.SrvRecord;
+import org.xnio.dns.record.SoaRecord;
+import org.xnio.dns.record.TxtRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the encoding of queries and the round trip of replies through {@link WireFormat}.
+ */
+public final class WireFormatTest {
+
+    private static final TTLSpec TTL = TTLSpec.createFixed(3600);
+
+    static Domain domain(final String name) {
+        return Domain.fromString(name);
+    }
+
+    static Answer roundTrip(final Answer answer) {
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        WireFormat.writeAnswer(buffer, answer);
+        buffer.flip();
+        final Answer read = WireFormat.readAnswer(buffer);
+        assertFalse("trailing bytes", buffer.hasRemaining());
+        return read;
+    }
+
+    static void assertRecordsEqual(final List<Record> expected, final List<Record> actual) {
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testQuery() {
+        final ByteBuffer buffer = ByteBuffer.allocate(512);
+        WireFormat.writeQuery(buffer, 0x1234, true, domain("www.example.com"), RRClass.IN, RRType.AAAA, 0, false);
+        buffer.flip();
+        assertEquals(0x1234, WireFormat.getId(buffer));
+        assertEquals(WireFormat.FLAG_RD, WireFormat.getFlags(buffer));
+        assertFalse(WireFormat.isReply(buffer));
+        assertEquals(new QueryKey(domain("www.example.com"), RRClass.IN, RRType.AAAA), WireFormat.readQuestion(buffer));
+        // no OPT record
+        assertEquals(0, buffer.getShort(10));
+        assertEquals(WireFormat.HEADER_LENGTH + 17 + 4, buffer.remaining());
+    }
+
+    @Test
+    public void testQueryWithoutRecursion() {
+        final ByteBuffer buffer = ByteBuffer.allocate(512);
+        WireFormat.writeQuery(buffer, 0xffff, false, domain("example.com"), RRClass.IN, RRType.NS, 0, false);
+        buffer.flip();
+        assertEquals(0xffff, WireFormat.getId(buffer));
+        assertEquals(0, WireFormat.getFlags(buffer));
+    }
+
+    @Test
+    public void testAnswerRoundTrip() throws Exception {
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("www.example.com"), RRClass.IN, RRType.A, ResultCode.NOERROR)
+                .addFlag(Answer.Flag.AUTHORATIVE)
+                .addFlag(Answer.Flag.RECURSION_AVAILABLE)
+                .addAnswerRecord(new CNameRecord(domain("www.example.com"), TTL, domain("web.example.com")))
+                .addAnswerRecord(new ARecord(domain("web.example.com"), RRClass.IN, TTL, (Inet4Address) InetAddress.getByName("192.0.2.1")))
+                .addAuthorityRecord(new NsRecord(domain("example.com"), TTL, domain("ns1.example.com")))
+                .addAdditionalRecord(new ARecord(domain("ns1.example.com"), RRClass.IN, TTL, (Inet4Address) InetAddress.getByName("192.0.2.53")))
+                .create();
+        final Answer read = roundTrip(answer);
+        assertEquals(domain("www.example.com"), read.getQueryDomain());
+        assertEquals(RRType.A, read.getQueryRRType());
+        assertEquals(RRClass.IN, read.getQueryRRClass());
+        assertEquals(ResultCode.NOERROR, read.getResultCode());
+        assertTrue(read.getFlags().contains(Answer.Flag.AUTHORATIVE));
+        assertTrue(read.getFlags().contains(Answer.Flag.RECURSION_AVAILABLE));
+        assertFalse(read.getFlags().contains(Answer.Flag.TRUNCATED));
+        assertRecordsEqual(answer.getAnswerRecords(), read.getAnswerRecords());
+        assertRecordsEqual(answer.getAuthorityRecords(), read.getAuthorityRecords());
+        assertRecordsEqual(answer.getAdditionalRecords(), read.getAdditionalRecords());
+        assertNull(read.getOptRecord());
+    }
+
+    @Test
+    public void testNegativeAnswerRoundTrip() {
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("missing.example.com"), RRClass.IN, RRType.A, ResultCode.NXDOMAIN)
+                .addAuthorityRecord(new SoaRecord(domain("example.com"), TTL, domain("ns1.example.com"), domain("hostmaster.example.com"), 2011010101, 7200, 900, 1209600, TTLSpec.createFixed(300)))
+                .create();
+        final Answer read = roundTrip(answer);
+        assertEquals(ResultCode.NXDOMAIN, read.getResultCode());
+        assertTrue(read.getAnswerRecords().isEmpty());
+        final SoaRecord soaRecord = (SoaRecord) read.getAuthorityRecords().get(0);
+        assertEquals(domain("hostmaster.example.com"), soaRecord.getRName());
+        assertEquals(2011010101L, soaRecord.getSerial());
+        assertEquals(300, soaRecord.getMinimum().getTtl());
+    }
+
+    @Test
+    public void testTxtRoundTrip() {
+        // longer than one character string, so it is split
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 300; i ++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        final String text = builder.toString();
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("example.com"), RRClass.IN, RRType.TXT, ResultCode.NOERROR)
+                .addAnswerRecord(new TxtRecord(domain("example.com"), TTL, "v=spf1 -all"))
+                .addAnswerRecord(new TxtRecord(domain("example.com"), TTL, text))
+                .create();
+        final Answer read = roundTrip(answer);
+        assertEquals("v=spf1 -all", ((TxtRecord) read.getAnswerRecords().get(0)).getText());
+        assertEquals(text, ((TxtRecord) read.getAnswerRecords().get(1)).getText());
+    }
+
+    @Test
+    public void testQueryWithOpt() {
+        final ByteBuffer buffer = ByteBuffer.allocate(512);
+        WireFormat.writeQuery(buffer, 1, true, domain("example.com"), RRClass.IN, RRType.A, 1232, true);
+        buffer.flip();
+        // one additional record
+        assertEquals(1, buffer.getShort(10));
+        final int opt = WireFormat.HEADER_LENGTH + 13 + 4;
+        assertEquals(opt + 11, buffer.remaining());
+        // root name, type OPT, payload size in the class field, DO bit in the TTL field, no options
+        assertEquals(0, buffer.get(opt));
+        assertEquals(RRType.OPT.getId(), buffer.getShort(opt + 1));
+        assertEquals(1232, buffer.getShort(opt + 3));
+        assertEquals(0x8000, buffer.getInt(opt + 5));
+        assertEquals(0, buffer.getShort(opt + 9));
+    }
+
+    @Test
+    public void testOptRoundTrip() {
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("example.com"), RRClass.IN, RRType.A, ResultCode.NOERROR)
+                .setOptRecord(new OptRecord(4096, 0, 0, true))
+                .create();
+        final Answer read = roundTrip(answer);
+        final OptRecord optRecord = read.getOptRecord();
+        assertNotNull(optRecord);
+        assertEquals(4096, optRecord.getUdpPayloadSize());
+        assertEquals(0, optRecord.getVersion());
+        assertTrue(optRecord.isDnssecOk());
+        assertEquals(0, optRecord.getOptions().length);
+        // the OPT record is not an additional record
+        assertTrue(read.getAdditionalRecords().isEmpty());
+    }
+
+    @Test
+    public void testExtendedResultCode() {
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("example.com"), RRClass.IN, RRType.A, ResultCode.BADVERS)
+                .create();
+        final Answer read = roundTrip(answer);
+        // the upper bits travel in an OPT record
+        assertEquals(ResultCode.BADVERS, read.getResultCode());
+        assertEquals(1, read.getOptRecord().getExtendedRcode());
+    }
+
+    @Test
+    public void testDnameRoundTrip() {
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("www.example.com"), RRClass.IN, RRType.A, ResultCode.NOERROR)
+                .addAnswerRecord(new DNameRecord(domain("example.com"), TTL, domain("example.net")))
+                .addAnswerRecord(new CNameRecord(domain("www.example.com"), TTL, domain("www.example.net")))
+                .create();
+        final Answer read = roundTrip(answer);
+        assertRecordsEqual(answer.getAnswerRecords(), read.getAnswerRecords());
+        assertEquals(domain("example.net"), ((DNameRecord) read.getAnswerRecords().get(0)).getTarget());
+    }
+
+    @Test
+    public void testSrvRoundTrip() {
+        final Answer answer = Answer.builder()
+                .setHeaderInfo(domain("_imap._tcp.example.com"), RRClass.IN, RRType.SRV, ResultCode.NOERROR)
+                .addAnswerRecord(new SrvRecord(domain("_imap._tcp.example.com"), TTL, 10, 60, 143, domain("mail.example.com")))
+                .addAnswerRecord(new SrvRecord(domain("_imap._tcp.example.com"), TTL, 65535, 65535, 65535, domain("backup.example.com")))
+                .create();
+        final Answer read = roundTrip(answer);
+        assertRecordsEqual(answer.getAnswerRecords(), read.getAnswerRecords());
+        final SrvRecord last = (SrvRecord) read.getAnswerRecords().get(1);
+        assertEquals(65535, last.getPriority());
+        assertEquals(65535, last.getWeight());
+        assertEquals(65535, last.getPort());
+        assertEquals(domain("backup.example.com"), last.getTarget());
+    }
+}